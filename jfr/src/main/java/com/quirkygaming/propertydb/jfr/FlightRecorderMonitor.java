@@ -0,0 +1,115 @@
+package com.quirkygaming.propertydb.jfr;
+
+import java.io.File;
+
+import com.quirkygaming.propertydb.PropertyDB;
+import com.quirkygaming.propertydb.PropertyMonitor;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Records the database's work as Flight Recorder events: PropertyDB.Save, PropertyDB.Load, PropertyDB.SavePass
+ * and PropertyDB.MonitorWait. Events are only recorded above their threshold (1 ms, or 10 ms for save passes),
+ * which recordings can change; while an event is disabled, its begin method returns null and nothing is timed.
+ * @author chandler
+ *
+ */
+public final class FlightRecorderMonitor implements PropertyMonitor {
+	
+	static {
+		FlightRecorder.register(SaveEvent.class);
+		FlightRecorder.register(LoadEvent.class);
+		FlightRecorder.register(SavePassEvent.class);
+		FlightRecorder.register(MonitorWaitEvent.class);
+	}
+	
+	// The recorded save pass running on a thread, which sums the bytes of its saves
+	private final ThreadLocal<SavePassEvent> passes = new ThreadLocal<SavePassEvent>();
+	
+	/**
+	 * Installs a new monitor; see PropertyDB.setMonitor
+	 */
+	public static void install() {
+		PropertyDB.setMonitor(new FlightRecorderMonitor());
+	}
+	
+	@Override
+	public Object beginSave(File directory, String fieldName, long version) {
+		SaveEvent event = new SaveEvent();
+		if (!event.isEnabled() && passes.get() == null) return null; // Still timed for the bytes of a recorded pass
+		event.directory = directory.getPath();
+		event.fieldName = fieldName;
+		event.version = version;
+		event.begin();
+		return event;
+	}
+	
+	@Override
+	public void endSave(Object save, long bytes) {
+		SaveEvent event = (SaveEvent) save;
+		event.end();
+		if (event.shouldCommit()) {
+			event.bytes = bytes;
+			event.commit();
+		}
+		SavePassEvent pass = passes.get();
+		if (pass != null && bytes > 0) pass.bytes += bytes;
+	}
+	
+	@Override
+	public Object beginLoad(File directory, String fieldName, long version) {
+		LoadEvent event = new LoadEvent();
+		if (!event.isEnabled()) return null;
+		event.directory = directory.getPath();
+		event.fieldName = fieldName;
+		event.version = version;
+		event.begin();
+		return event;
+	}
+	
+	@Override
+	public void endLoad(Object load, long bytes) {
+		LoadEvent event = (LoadEvent) load;
+		event.end();
+		if (event.shouldCommit()) {
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+	
+	@Override
+	public Object beginSavePass() {
+		SavePassEvent event = new SavePassEvent();
+		if (!event.isEnabled()) return null;
+		event.begin();
+		passes.set(event);
+		return event;
+	}
+	
+	@Override
+	public void endSavePass(Object pass, int properties) {
+		SavePassEvent event = (SavePassEvent) pass;
+		passes.remove();
+		event.end();
+		if (event.shouldCommit()) {
+			event.properties = properties;
+			event.commit();
+		}
+	}
+	
+	@Override
+	public Object beginMonitorWait(String fieldName) {
+		MonitorWaitEvent event = new MonitorWaitEvent();
+		if (!event.isEnabled()) return null;
+		event.fieldName = fieldName;
+		event.begin();
+		return event;
+	}
+	
+	@Override
+	public void endMonitorWait(Object wait) {
+		MonitorWaitEvent event = (MonitorWaitEvent) wait;
+		event.end();
+		if (event.shouldCommit()) event.commit();
+	}
+}
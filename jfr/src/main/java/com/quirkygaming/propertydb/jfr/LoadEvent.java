@@ -0,0 +1,30 @@
+package com.quirkygaming.propertydb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("PropertyDB.Load")
+@Label("Property Load")
+@Description("A stored property read from storage")
+@Category("PropertyDB")
+@Threshold("1 ms")
+final class LoadEvent extends jdk.jfr.Event {
+	
+	@Label("Directory")
+	String directory;
+	
+	@Label("Field Name")
+	String fieldName;
+	
+	@Label("Version")
+	long version;
+	
+	@Label("Bytes")
+	@Description("Length of the file; -1 if reading failed")
+	@DataAmount
+	long bytes;
+}
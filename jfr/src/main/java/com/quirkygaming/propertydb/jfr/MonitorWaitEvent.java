@@ -0,0 +1,18 @@
+package com.quirkygaming.propertydb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("PropertyDB.MonitorWait")
+@Label("Save Queue Wait")
+@Description("A changed property waiting for the save queue, which a save pass holds while taking it")
+@Category("PropertyDB")
+@Threshold("1 ms")
+final class MonitorWaitEvent extends jdk.jfr.Event {
+	
+	@Label("Field Name")
+	String fieldName;
+}
@@ -0,0 +1,32 @@
+package com.quirkygaming.propertydb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("PropertyDB.Save")
+@Label("Property Save")
+@Description("A property written to storage")
+@Category("PropertyDB")
+@Threshold("1 ms")
+@StackTrace(false)
+final class SaveEvent extends jdk.jfr.Event {
+	
+	@Label("Directory")
+	String directory;
+	
+	@Label("Field Name")
+	String fieldName;
+	
+	@Label("Version")
+	long version;
+	
+	@Label("Bytes")
+	@Description("Length of the file after writing; -1 if writing failed")
+	@DataAmount
+	long bytes;
+}
@@ -0,0 +1,26 @@
+package com.quirkygaming.propertydb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("PropertyDB.SavePass")
+@Label("Save Pass")
+@Description("A pass writing the properties changed since the previous one")
+@Category("PropertyDB")
+@Threshold("10 ms")
+@StackTrace(false)
+final class SavePassEvent extends jdk.jfr.Event {
+	
+	@Label("Properties")
+	int properties;
+	
+	@Label("Bytes")
+	@Description("Total length of the files written")
+	@DataAmount
+	long bytes;
+}
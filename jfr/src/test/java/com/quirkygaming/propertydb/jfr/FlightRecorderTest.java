@@ -0,0 +1,104 @@
+package com.quirkygaming.propertydb.jfr;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.InitializationToken;
+import com.quirkygaming.propertydb.PropertyDB;
+import com.quirkygaming.propertylib.MutableProperty;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Records a workload with every PropertyDB event enabled and no thresholds, checking the events and their fields,
+ * then compares the time of save passes without a monitor and with the monitor installed but no recording running.
+ *
+ * Usage: FlightRecorderTest [properties]
+ */
+public class FlightRecorderTest {
+	
+	static final File DIR = new File("/tmp/test_db_jfr/");
+	static final String[] EVENTS = {"PropertyDB.Save", "PropertyDB.Load", "PropertyDB.SavePass", "PropertyDB.MonitorWait"};
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		delete(DIR);
+		
+		long unmonitored = workload(count, 5); // Also warms up
+		FlightRecorderMonitor.install();
+		long disabled = workload(count, 5);
+		System.out.printf("Save pass of %,d properties: %d ms without a monitor, %d ms monitored without a recording%n", count, unmonitored, disabled);
+		
+		Map<String, List<RecordedEvent>> events = new HashMap<String, List<RecordedEvent>>();
+		for (String name : EVENTS) events.put(name, new ArrayList<RecordedEvent>());
+		Path dump = File.createTempFile("propertydb", ".jfr").toPath();
+		try (Recording recording = new Recording()) {
+			for (String name : EVENTS) recording.enable(name).withThreshold(null);
+			recording.start();
+			workload(count, 1);
+			recording.stop();
+			recording.dump(dump);
+		}
+		for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+			List<RecordedEvent> list = events.get(event.getEventType().getName());
+			if (list != null) list.add(event);
+		}
+		dump.toFile().delete();
+		
+		List<RecordedEvent> saves = events.get("PropertyDB.Save");
+		List<RecordedEvent> passes = events.get("PropertyDB.SavePass");
+		System.out.printf("Recorded %d saves, %d loads, %d passes, %d waits%n", saves.size(), events.get("PropertyDB.Load").size(), passes.size(), events.get("PropertyDB.MonitorWait").size());
+		check("saves", saves.size() == count && saves.get(0).getString("fieldName").startsWith("p") && saves.get(0).getLong("bytes") > 0);
+		check("save directory", saves.get(0).getString("directory").equals(DIR.getCanonicalPath()) && saves.get(0).getLong("version") == 1);
+		check("loads", events.get("PropertyDB.Load").size() == count);
+		check("pass", passes.size() == 1 && passes.get(0).getInt("properties") == count);
+		long bytes = 0;
+		for (RecordedEvent save : saves) bytes += save.getLong("bytes");
+		check("pass bytes", passes.get(0).getLong("bytes") == bytes);
+		check("durations", passes.get(0).getDuration().toNanos() > 0);
+		check("waits", events.get("PropertyDB.MonitorWait").size() == count);
+		
+		PropertyDB.setMonitor(null);
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	// Loads every property, changes it and runs save passes; returns the fastest pass
+	static long workload(int count, int rounds) {
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		List<MutableProperty<Integer>> properties = new ArrayList<MutableProperty<Integer>>();
+		for (int i = 0; i < count; i++) properties.add(PropertyDB.initiateProperty(DIR, "p" + i, 1, 0, ErrorHandler.throwAll()));
+		PropertyDB.forceSave(token); // Creates missing files
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < rounds; round++) {
+			for (MutableProperty<Integer> property : properties) property.set(property.get() + 1);
+			long start = System.nanoTime();
+			PropertyDB.forceSave(token);
+			best = Math.min(best, (System.nanoTime() - start) / 1000000);
+		}
+		PropertyDB.closeDatabase(token);
+		return best;
+	}
+	
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) for (File child : children) delete(child);
+		file.delete();
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory packed into a single file, so that it can be moved between hosts without copying every small file.
+ * Files are stored back to back as they are, followed by an index, so that an archive is written in one pass and any
+ * file can be read without scanning the others:
+ *
+ * "QGAR" magic, format version (4 bytes), file contents, then the index: file count (4 bytes) and for each file
+ * its path relative to the directory with '/' separators (UTF), offset (8 bytes), length (8 bytes) and CRC-32C (4 bytes),
+ * and finally the index offset (8 bytes) and the magic again.
+ * @author chandler
+ *
+ */
+final class Archive {
+	
+	static final byte[] MAGIC = {'Q', 'G', 'A', 'R'};
+	static final int FORMAT = 1;
+	private static final int HEADER = 8;
+	private static final int TRAILER = 12;
+	
+	/**
+	 * One file of an archive
+	 */
+	static final class Entry {
+		final String path;
+		final long offset;
+		final long length;
+		final int crc;
+		
+		Entry(String path, long offset, long length, int crc) {
+			this.path = path; this.offset = offset; this.length = length; this.crc = crc;
+		}
+		
+		File in(File directory) {
+			return new File(directory, path.replace('/', File.separatorChar));
+		}
+	}
+	
+	private final File file;
+	private final FileChannel channel;
+	private final List<Entry> entries;
+	
+	private Archive(File file, FileChannel channel, List<Entry> entries) {
+		this.file = file; this.channel = channel; this.entries = entries;
+	}
+	
+	/**
+	 * Opens an archive and reads its index
+	 */
+	static Archive open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			ByteBuffer header = read(channel, 0, HEADER, file);
+			ByteBuffer trailer = read(channel, size - TRAILER, TRAILER, file);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) throw new CorruptPropertyException(file, "Not an archive");
+			if (header.getInt() != FORMAT) throw new CorruptPropertyException(file, "Unknown archive format");
+			long indexOffset = trailer.getLong();
+			trailer.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || indexOffset < HEADER || indexOffset > size - TRAILER) {
+				throw new CorruptPropertyException(file, "Archive is truncated");
+			}
+			
+			ByteBuffer index = read(channel, indexOffset, (int) (size - TRAILER - indexOffset), file);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+			int count = in.readInt();
+			List<Entry> entries = new ArrayList<Entry>(count);
+			for (int i = 0; i < count; i++) {
+				Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt());
+				if (entry.offset < HEADER || entry.offset + entry.length > indexOffset) throw new CorruptPropertyException(file, "Bad index entry " + entry.path);
+				entries.add(entry);
+			}
+			return new Archive(file, channel, Collections.unmodifiableList(entries));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	List<Entry> entries() {
+		return entries;
+	}
+	
+	/**
+	 * Reads and checks one file; safe to call from several threads
+	 */
+	byte[] read(Entry entry) throws IOException {
+		if (entry.length > Integer.MAX_VALUE - 8) throw new IOException("Archived file too large: " + entry.path);
+		byte[] bytes = read(channel, entry.offset, (int) entry.length, file).array();
+		if (Crc32c.of(bytes, 0, bytes.length) != entry.crc) throw new CorruptPropertyException(file, "Checksum mismatch in " + entry.path);
+		return bytes;
+	}
+	
+	void close() throws IOException {
+		channel.close();
+	}
+	
+	/**
+	 * Packs every file of a directory except snapshot staging and temporary files, reading them on several threads.
+	 * The archive is written next to its location and renamed into place once complete.
+	 * @return The number of files packed
+	 * @throws IOException if the directory couldn't be listed or the archive written; files that couldn't be read
+	 * are left out and added to failures
+	 */
+	static int write(final File directory, File archive, int threads, Map<File, Exception> failures) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		list(directory, "", paths);
+		
+		File temp = new File(archive.getPath() + FileBackend.TEMP_EXTENSION);
+		if (archive.getParentFile() != null) archive.getParentFile().mkdirs();
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		final List<Entry> entries = new ArrayList<Entry>(paths.size());
+		final long[] position = {HEADER};
+		try {
+			out.write(MAGIC);
+			out.writeInt(FORMAT);
+			Map<String, Exception> failed = Parallel.forEach(paths, threads, new Parallel.Task<String>() {
+				public void run(String path) throws IOException {
+					byte[] bytes = readAll(new Entry(path, 0, 0, 0).in(directory));
+					int crc = Crc32c.of(bytes, 0, bytes.length);
+					synchronized (out) { // Only the copy into the stream is serialized
+						entries.add(new Entry(path, position[0], bytes.length, crc));
+						out.write(bytes);
+						position[0] += bytes.length;
+					}
+				}
+			});
+			for (Map.Entry<String, Exception> failure : failed.entrySet()) {
+				failures.put(new Entry(failure.getKey(), 0, 0, 0).in(directory), failure.getValue());
+			}
+			
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.path);
+				out.writeLong(entry.offset);
+				out.writeLong(entry.length);
+				out.writeInt(entry.crc);
+			}
+			out.writeLong(position[0]);
+			out.write(MAGIC);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		out.close();
+		Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		return entries.size();
+	}
+	
+	// Lists the files below a directory through the storage backend, which can't tell an empty directory from a file
+	private static void list(File directory, String prefix, List<String> paths) throws IOException {
+		for (String name : PropertyDB.storage().list(directory)) {
+			if ((prefix.isEmpty() && name.equals(Directory.SNAPSHOT_STAGING)) || name.endsWith(FileBackend.TEMP_EXTENSION)) continue;
+			File child = new File(directory, name);
+			if (PropertyDB.storage().list(child).isEmpty()) paths.add(prefix + name);
+			else list(child, prefix + name + "/", paths);
+		}
+	}
+	
+	private static byte[] readAll(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(PropertyDB.storage().length(file), 1 << 20) + 16);
+		InputStream in = PropertyDB.storage().read(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int length, File file) throws IOException {
+		if (position < 0 || length < 0) throw new CorruptPropertyException(file, "Archive is truncated");
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new CorruptPropertyException(file, "Archive is truncated");
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,201 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps another backend and restores a directory from an archive written by PropertyDB.exportDirectory lazily:
+ * each archived file is copied into the wrapped backend when it is first accessed, so that the database can start
+ * before a large import has finished. Call restoreAll to copy the rest, for example in the background.
+ *
+ * Files already present in the wrapped backend take precedence over the archive, so the same archive can be opened
+ * again after a restart. A file deleted before it was restored comes back in that case, unless restoreAll completed.
+ * @author chandler
+ *
+ */
+public class ArchiveBackend implements StorageBackend {
+	
+	private final StorageBackend backend;
+	private final Archive archive;
+	private final ConcurrentNavigableMap<String, Archive.Entry> pending = new ConcurrentSkipListMap<String, Archive.Entry>();
+	private final AtomicInteger restored = new AtomicInteger();
+	
+	/**
+	 * Opens an archive and reads its index
+	 * @param backend The backend to restore into
+	 * @param archive The archive
+	 * @param directory The directory the archive is restored to
+	 * @throws CorruptPropertyException if the archive is damaged
+	 */
+	public ArchiveBackend(StorageBackend backend, File archive, File directory) throws IOException {
+		this.backend = backend;
+		this.archive = Archive.open(archive);
+		directory = directory.getCanonicalFile();
+		
+		Map<File, Set<String>> present = new HashMap<File, Set<String>>(); // Listed once per directory
+		for (Archive.Entry entry : this.archive.entries()) {
+			File location = entry.in(directory);
+			Set<String> names = present.get(location.getParentFile());
+			if (names == null) {
+				names = new LinkedHashSet<String>(backend.list(location.getParentFile()));
+				present.put(location.getParentFile(), names);
+			}
+			if (!names.contains(location.getName())) pending.put(key(location), entry);
+		}
+		restore(new File(directory, Directory.SHARD_MARKER)); // Read directly from disk by Directory
+	}
+	
+	/**
+	 * @return Number of archived files not restored yet
+	 */
+	public int pending() {
+		return pending.size();
+	}
+	
+	/**
+	 * @return Number of archived files restored so far
+	 */
+	public int restored() {
+		return restored.get();
+	}
+	
+	/**
+	 * Restores every file not yet restored on several threads, while the database keeps running
+	 * @param threads Number of threads; 0 for the default
+	 * @return The number of files restored by this call
+	 * @throws IOException for the first file that couldn't be restored, after trying all of them
+	 */
+	public int restoreAll(int threads) throws IOException {
+		int before = restored.get();
+		Map<String, Exception> failures = Parallel.forEach(new ArrayList<String>(pending.keySet()), threads > 0 ? threads : Parallel.DEFAULT_THREADS,
+				new Parallel.Task<String>() {
+					public void run(String key) throws IOException {
+						restore(new File(key));
+					}
+				});
+		if (!failures.isEmpty()) {
+			Map.Entry<String, Exception> first = failures.entrySet().iterator().next();
+			throw new IOException(failures.size() + " files couldn't be restored, including " + first.getKey(), first.getValue());
+		}
+		return restored.get() - before;
+	}
+	
+	/**
+	 * Closes the archive; files not yet restored can't be read afterwards
+	 */
+	public void close() throws IOException {
+		archive.close();
+	}
+	
+	@Override
+	public InputStream read(File location) throws IOException {
+		restore(location);
+		return backend.read(location);
+	}
+	
+	@Override
+	public OutputStream write(File location) throws IOException {
+		forget(location); // Replaced, so never restored
+		return backend.write(location);
+	}
+	
+	@Override
+	public OutputStream append(File location) throws IOException {
+		restore(location);
+		return backend.append(location);
+	}
+	
+	@Override
+	public void writeAt(File location, long position, ByteBuffer data) throws IOException {
+		restore(location);
+		backend.writeAt(location, position, data);
+	}
+	
+	@Override
+	public int readAt(File location, long position, ByteBuffer into) throws IOException {
+		restore(location);
+		return backend.readAt(location, position, into);
+	}
+	
+	@Override
+	public void truncate(File location, long length) throws IOException {
+		restore(location);
+		backend.truncate(location, length);
+	}
+	
+	@Override
+	public boolean delete(File location) throws IOException {
+		boolean archived = forget(location);
+		return backend.delete(location) || archived;
+	}
+	
+	@Override
+	public boolean exists(File location) {
+		String key = key(location);
+		if (pending.containsKey(key)) return true;
+		String child = pending.ceilingKey(key + File.separator);
+		return (child != null && child.startsWith(key + File.separator)) || backend.exists(location);
+	}
+	
+	@Override
+	public long length(File location) {
+		Archive.Entry entry = pending.get(key(location));
+		return entry != null ? entry.length : backend.length(location);
+	}
+	
+	@Override
+	public List<String> list(File directory) throws IOException {
+		String prefix = key(directory) + File.separator;
+		Set<String> names = new LinkedHashSet<String>(backend.list(directory));
+		for (String path : pending.tailMap(prefix).keySet()) {
+			if (!path.startsWith(prefix)) break;
+			int end = path.indexOf(File.separatorChar, prefix.length());
+			names.add(path.substring(prefix.length(), end < 0 ? path.length() : end));
+		}
+		return new ArrayList<String>(names);
+	}
+	
+	// Copies an archived file into the backend unless it was restored or replaced already
+	private void restore(File location) throws IOException {
+		String key = key(location);
+		Archive.Entry entry = pending.get(key);
+		if (entry == null) return;
+		synchronized (entry) {
+			if (pending.get(key) != entry) return; // Restored meanwhile
+			OutputStream out = backend.write(location);
+			try {
+				out.write(archive.read(entry));
+			} finally {
+				out.close();
+			}
+			pending.remove(key);
+			restored.incrementAndGet();
+		}
+	}
+	
+	// Drops an archived file that is about to be replaced or deleted; true if it was pending
+	private boolean forget(File location) {
+		String key = key(location);
+		Archive.Entry entry = pending.get(key);
+		if (entry == null) return false;
+		synchronized (entry) { // Waits for a restore in progress
+			return pending.remove(key, entry);
+		}
+	}
+	
+	private static String key(File location) {
+		return location.getAbsolutePath();
+	}
+}
@@ -0,0 +1,114 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.quirkygaming.propertylib.BufferProperty;
+
+/**
+ * Stores a BufferProperty as its raw bytes behind a small header, written from the buffer by the
+ * channel without passing through the heap, so that the value can also be mapped from the file:
+ *
+ * "QGBF" magic, reserved (4 bytes), length (8 bytes), value
+ *
+ * The property's monitor is held while a buffer is written, since nothing is copied.
+ * A mapped property is saved by forcing its buffer; the file is its value. Mapping requires a FileBackend,
+ * and other backends may copy the buffer while writing it.
+ * @author chandler
+ *
+ */
+final class BufferFile {
+	
+	static final byte[] MAGIC = {'Q', 'G', 'B', 'F'};
+	static final int HEADER = 16;
+	
+	private BufferFile() {}
+	
+	static void save(File location, BufferProperty property) throws IOException {
+		if (property.isMapped()) {
+			((MappedByteBuffer) property.get()).force(); // Writers may continue; the pages are the file
+			return;
+		}
+		
+		OutputStream out = PropertyDB.storage().write(location);
+		try {
+			WritableByteChannel channel = out instanceof WritableByteChannel ? (WritableByteChannel) out : Channels.newChannel(out);
+			synchronized (property) {
+				ByteBuffer value = property.get().duplicate();
+				value.position(0);
+				writeFully(channel, header(value.limit()));
+				writeFully(channel, value);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a whole buffer file into a direct buffer; the magic has already been checked
+	 */
+	static BufferProperty read(File location) throws IOException {
+		long length = readLength(location);
+		ByteBuffer value = ByteBuffer.allocateDirect((int) length);
+		PropertyFormat.readFully(location, HEADER, value);
+		value.clear();
+		return BufferProperty.newBufferProperty(value);
+	}
+	
+	/**
+	 * Maps the value of a buffer file, creating the file with a zeroed value of the given length if it doesn't exist
+	 */
+	static BufferProperty map(File location, int length) throws IOException {
+		FileChannel channel = FileChannel.open(location.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try {
+			if (channel.size() == 0) {
+				writeFully(channel, header(length));
+				channel.truncate(HEADER); // Sparse until written
+			} else {
+				length = (int) readLength(location);
+			}
+			return BufferProperty.newMappedProperty(channel.map(FileChannel.MapMode.READ_WRITE, HEADER, length)); // Extends the file
+		} finally {
+			channel.close(); // The mapping stays valid
+		}
+	}
+	
+	static boolean isBufferFile(File location) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+		while (magic.hasRemaining()) {
+			if (PropertyDB.storage().readAt(location, magic.position(), magic) < 0) return false;
+		}
+		return Arrays.equals(magic.array(), MAGIC);
+	}
+	
+	private static long readLength(File location) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		PropertyFormat.readFully(location, 0, header);
+		byte[] magic = new byte[MAGIC.length];
+		header.flip();
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a buffer property: " + location);
+		long length = header.getLong(8);
+		if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("Buffer property too large: " + location);
+		return length;
+	}
+	
+	private static ByteBuffer header(int length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.put(MAGIC).putInt(0).putLong(length);
+		header.flip();
+		return header;
+	}
+	
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+}
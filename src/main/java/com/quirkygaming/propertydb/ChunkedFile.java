@@ -0,0 +1,119 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.quirkygaming.propertylib.ChunkedProperty;
+
+/**
+ * Stores a ChunkedProperty as its raw bytes behind a small header, so that single chunks can be
+ * rewritten in place and ranges read without loading the value:
+ *
+ * "QGCH" magic, chunk size (4 bytes), length (8 bytes), value
+ *
+ * The property's monitor is only held while changed chunks are copied, never during disk writes.
+ * Chunked files are never compressed. A crash while chunks are rewritten can leave a mix of old and new chunks.
+ * @author chandler
+ *
+ */
+final class ChunkedFile {
+	
+	static final byte[] MAGIC = {'Q', 'G', 'C', 'H'};
+	static final int HEADER = 16;
+	
+	private ChunkedFile() {}
+	
+	static void save(File location, ChunkedProperty property) throws IOException {
+		int chunkSize = property.chunkSize();
+		byte[] whole = null;
+		int[] indexes = null;
+		byte[][] chunks = null;
+		BitSet dirty;
+		
+		synchronized (property) {
+			dirty = property.takeDirtyChunks();
+			byte[] value = property.get();
+			if (dirty == null || !PropertyDB.storage().exists(location)) {
+				whole = value.clone();
+			} else if (dirty.isEmpty()) {
+				return;
+			} else {
+				indexes = new int[dirty.cardinality()];
+				chunks = new byte[indexes.length][];
+				int n = 0;
+				for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1), n++) {
+					indexes[n] = i;
+					chunks[n] = Arrays.copyOfRange(value, i * chunkSize, Math.min(value.length, (i + 1) * chunkSize));
+				}
+			}
+		}
+		
+		try {
+			if (whole != null) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(PropertyDB.storage().write(location), 65536));
+				try {
+					out.write(MAGIC);
+					out.writeInt(chunkSize);
+					out.writeLong(whole.length);
+					out.write(whole);
+				} finally {
+					out.close();
+				}
+				return;
+			}
+			
+			for (int n = 0; n < indexes.length; n++) {
+				PropertyDB.storage().writeAt(location, HEADER + (long) indexes[n] * chunkSize, ByteBuffer.wrap(chunks[n]));
+			}
+		} catch (IOException e) {
+			// Write the taken chunks, or the whole value, again next time
+			synchronized (property) {
+				property.restoreDirtyChunks(whole != null ? null : dirty);
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Reads a whole chunked file; the magic has already been checked
+	 */
+	static ChunkedProperty read(File location) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(PropertyDB.storage().read(location), 65536));
+		try {
+			in.skipBytes(MAGIC.length);
+			int chunkSize = in.readInt();
+			long length = in.readLong();
+			if (length > Integer.MAX_VALUE - 8) throw new IOException("Chunked property too large: " + location);
+			byte[] value = new byte[(int) length];
+			in.readFully(value);
+			ChunkedProperty property = ChunkedProperty.newChunkedProperty(value, chunkSize);
+			property.takeDirtyChunks(); // Matches the file
+			return property;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads part of a chunked file
+	 */
+	static byte[] readRange(File location, long offset, int length) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		PropertyFormat.readFully(location, 0, header);
+		if (!Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)) throw new IOException("Not a chunked property: " + location);
+		long total = header.getLong(8);
+		if (offset < 0 || length < 0 || offset + length > total) {
+			throw new IOException("Range " + offset + "+" + length + " outside of " + total + " bytes: " + location);
+		}
+		byte[] result = new byte[length];
+		PropertyFormat.readFully(location, HEADER + offset, ByteBuffer.wrap(result));
+		return result;
+	}
+}
@@ -0,0 +1,28 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown when a property file fails its header or checksum check. See PropertyDB.verifyDirectory.
+ * @author chandler
+ *
+ */
+public class CorruptPropertyException extends IOException {
+	
+	private static final long serialVersionUID = 4038851512846013522L;
+	
+	private final String reason;
+	
+	public CorruptPropertyException(File file, String reason) {
+		super(reason + ": " + file);
+		this.reason = reason;
+	}
+	
+	/**
+	 * @return What is wrong with the file
+	 */
+	public String getReason() {
+		return reason;
+	}
+}
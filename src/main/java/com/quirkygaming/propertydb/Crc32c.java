@@ -0,0 +1,76 @@
+package com.quirkygaming.propertydb;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of property file headers. Uses java.util.zip.CRC32C, which is
+ * hardware accelerated, where the runtime has it (Java 9 and later) and a table-driven implementation otherwise.
+ * @author chandler
+ *
+ */
+final class Crc32c implements Checksum {
+	
+	private static final int[] TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) crc = (crc >>> 1) ^ (0x82F63B78 & -(crc & 1));
+			TABLE[i] = crc;
+		}
+	}
+	
+	private static final Constructor<?> RUNTIME = runtime();
+	
+	private int crc = 0xFFFFFFFF;
+	
+	/**
+	 * @return A new CRC-32C checksum, from the runtime if available
+	 */
+	static Checksum create() {
+		if (RUNTIME != null) {
+			try {
+				return (Checksum) RUNTIME.newInstance();
+			} catch (ReflectiveOperationException e) {
+				// Fall through
+			}
+		}
+		return new Crc32c();
+	}
+	
+	static int of(byte[] b, int off, int len) {
+		Checksum checksum = create();
+		checksum.update(b, off, len);
+		return (int) checksum.getValue();
+	}
+	
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+	}
+	
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		for (int i = off, end = off + len; i < end; i++) c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+		crc = c;
+	}
+	
+	@Override
+	public long getValue() {
+		return ~crc & 0xFFFFFFFFL;
+	}
+	
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+	
+	private static Constructor<?> runtime() {
+		try {
+			return Class.forName("java.util.zip.CRC32C").getConstructor();
+		} catch (ReflectiveOperationException e) {
+			return null; // Java 8
+		}
+	}
+}
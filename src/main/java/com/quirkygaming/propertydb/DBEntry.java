@@ -0,0 +1,120 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.BufferProperty;
+import com.quirkygaming.propertylib.ChunkedProperty;
+import com.quirkygaming.propertylib.MapProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * A registered property. Entries are kept as small as possible since millions of them may be loaded:
+ * the file location is derived from the interned Directory, field name and version on demand,
+ * and the observer that feeds the save queue is shared by the whole database.
+ *
+ * Two entries are equal if they refer to the same location; an entry with a null mutable can
+ * therefore be used to look up the registered entry of a location.
+ * @author chandler
+ *
+ */
+class DBEntry<T, E extends Exception> {
+	
+	final MutableProperty<T> mutable;
+	final Directory directory;
+	final String fieldName;
+	final long version;
+	final ErrorHandler<E> handler;
+	
+	DBEntry(MutableProperty<T> mutable, Directory directory, String fieldName, long version, ErrorHandler<E> handler) {
+		this.mutable = mutable;
+		this.directory = directory;
+		this.fieldName = fieldName;
+		this.version = version;
+		this.handler = handler;
+	}
+	
+	File location() {
+		return directory.locate(fieldName, version);
+	}
+	
+	void save() {
+		save(null, false);
+	}
+	
+	/**
+	 * Saves the property, reporting failures to its handler
+	 * @param persisted Receives the event of the property once written, or null
+	 * @param bytes Whether the event should carry the serialized property
+	 */
+	synchronized void save(List<Persisted> persisted, boolean bytes) {
+		PropertyMonitor monitor = PropertyDB.monitor();
+		Object save = monitor == null ? null : monitor.beginSave(directory.file, fieldName, version);
+		long written = -1;
+		try {
+			PropertyFormat.Bytes serialized = write();
+			if (save != null) written = PropertyDB.storage().length(location());
+			if (persisted != null) {
+				persisted.add(new Persisted(directory.file, fieldName, version, bytes && serialized != null ? serialized.toByteArray() : null));
+			}
+		} catch (FileNotFoundException e) {
+			//TODO Don't really like this
+			try {handler.handle(new DatabaseException("FileNotFoundException while saving property: " + fieldName + " version " + version, e));} catch (Exception e1) {}
+		} catch (IOException e) {
+			try {handler.handle(new DatabaseException("IOException while saving property: " + fieldName + " version " + version, e));} catch (Exception e1) {}
+		} finally {
+			if (save != null) monitor.endSave(save, written);
+		}
+	}
+	
+	/**
+	 * Writes the property in the format of its type
+	 * @return The serialized property if written as one, otherwise null
+	 */
+	PropertyFormat.Bytes write() throws IOException {
+		directory.writes.readLock().lock();
+		try {
+			File location = location();
+			PropertyFormat.Bytes bytes = null;
+			boolean created = !PropertyDB.storage().exists(location); // The backend creates missing directories
+			String previous = directory.store && !created ? Dedup.referenceOf(location) : null; // Released once overwritten
+			if (mutable instanceof BufferProperty) {
+				BufferFile.save(location, (BufferProperty) mutable);
+			} else if (mutable instanceof ChunkedProperty) {
+				ChunkedFile.save(location, (ChunkedProperty) mutable);
+			} else if (mutable instanceof MapProperty) {
+				MapLog.save(location, (MapProperty<?, ?>) mutable, PropertyDB.compressionOf(directory));
+				directory.changed(MapLog.of(location));
+			} else if (directory.deduplicate) {
+				bytes = Dedup.write(directory, location, previous, mutable, PropertyDB.compressionOf(directory));
+				previous = null; // Released by Dedup if changed
+			} else {
+				bytes = PropertyFormat.write(location, mutable, PropertyDB.compressionOf(directory));
+			}
+			directory.changed(location);
+			if (previous != null) Dedup.release(directory, previous);
+			
+			ExistenceIndex index = directory.index;
+			if (created && index != null) index.created(fieldName, version);
+			return bytes;
+		} finally {
+			directory.writes.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) return true;
+		if (!(other instanceof DBEntry)) return false;
+		DBEntry<?,?> entry = (DBEntry<?,?>) other;
+		return directory == entry.directory && version == entry.version && fieldName.equals(entry.fieldName);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * (31 * System.identityHashCode(directory) + fieldName.hashCode()) + (int) (version ^ (version >>> 32));
+	}
+}
@@ -0,0 +1,211 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Content-addressed storage of property values for deduplicated directories. Each distinct
+ * serialized property is stored once in the directory's store, named by its SHA-256 hash and reference counted,
+ * and property files hold only a reference:
+ *
+ * "QGRF" magic, hash (32 bytes)
+ *
+ * Store: STORE/[hash].blob, a property file in the usual format; STORE/[hash].refs, the reference count (8 bytes).
+ * A blob is referenced before a file points to it and released after, so a crash can only leave a count too high.
+ * Immutable values loaded from the store are interned, so properties holding the same value share one instance.
+ * @author chandler
+ *
+ */
+final class Dedup {
+	
+	static final byte[] MAGIC = {'Q', 'G', 'R', 'F'};
+	static final int HASH_LENGTH = 32;
+	static final String STORE = ".dedup";
+	
+	// Values of these classes are shared between properties once loaded
+	private static final Set<Class<?>> IMMUTABLE = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+			Float.class, Double.class, BigInteger.class, BigDecimal.class, UUID.class));
+	
+	// Interned values by hash; entries whose value was collected are removed on the next load
+	private static final Map<String, Interned> interned = new ConcurrentHashMap<String, Interned>();
+	private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	
+	private static final class Interned extends WeakReference<Object> {
+		final String key;
+		
+		Interned(String key, Object value) {
+			super(value, collected);
+			this.key = key;
+		}
+	}
+	
+	private Dedup() {}
+	
+	/**
+	 * Writes a property of a deduplicated directory as a reference, storing its value unless already stored.
+	 * Nothing is written if the file already references the same value.
+	 * @param previous The hash the file references (see referenceOf), or null
+	 * @return The serialized property
+	 */
+	static PropertyFormat.Bytes write(Directory directory, File location, String previous, MutableProperty<?> property, PropertyFormat.Compression compression) throws IOException {
+		PropertyFormat.Bytes bytes = PropertyFormat.serialize(property);
+		MessageDigest digest = digest();
+		digest.update(bytes.array(), 0, bytes.size());
+		byte[] hash = digest.digest();
+		String key = hex(hash);
+		if (key.equals(previous)) return bytes; // Unchanged
+		
+		File store = new File(directory.file, STORE);
+		synchronized (directory) {
+			long refs = refs(store, key);
+			if (refs == 0) {
+				PropertyFormat.write(new File(store, key + ".blob"), bytes, compression);
+				directory.changed(new File(store, key + ".blob"));
+			}
+			setRefs(store, key, refs + 1);
+			directory.changed(new File(store, key + ".refs"));
+		}
+		
+		OutputStream out = PropertyDB.storage().write(location);
+		try {
+			out.write(MAGIC);
+			out.write(hash);
+		} finally {
+			out.close();
+		}
+		if (previous != null) release(directory, previous);
+		return bytes;
+	}
+	
+	/**
+	 * Returns the hash referenced by a property file, or null if it doesn't exist or holds its value itself
+	 */
+	static String referenceOf(File location) throws IOException {
+		StorageBackend storage = PropertyDB.storage();
+		if (!storage.exists(location)) return null;
+		ByteBuffer head = ByteBuffer.allocate(MAGIC.length + HASH_LENGTH);
+		while (head.hasRemaining()) {
+			if (storage.readAt(location, head.position(), head) < 0) return null;
+		}
+		byte[] bytes = head.array();
+		if (!Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) return null;
+		return hex(Arrays.copyOfRange(bytes, MAGIC.length, bytes.length));
+	}
+	
+	/**
+	 * Drops a reference to a stored value, deleting it when it was the last
+	 */
+	static void release(Directory directory, String key) throws IOException {
+		File store = new File(directory.file, STORE);
+		synchronized (directory) {
+			long refs = refs(store, key);
+			if (refs > 1) {
+				setRefs(store, key, refs - 1);
+			} else {
+				PropertyDB.storage().delete(new File(store, key + ".blob"));
+				PropertyDB.storage().delete(new File(store, key + ".refs"));
+				directory.changed(new File(store, key + ".blob"));
+			}
+			directory.changed(new File(store, key + ".refs"));
+		}
+	}
+	
+	/**
+	 * Loads the value referenced by a property file, sharing interned immutable values
+	 */
+	static Object load(File location, String key) throws IOException, ClassNotFoundException {
+		purge();
+		Interned cached = interned.get(key);
+		Object shared = cached == null ? null : cached.get();
+		if (shared != null) return MutableProperty.newProperty(shared);
+		
+		File blob = blobOf(location, key);
+		if (blob == null) throw new IOException("Stored value " + key + " missing for " + location);
+		
+		Object property = PropertyFormat.read(blob);
+		if (property.getClass() == MutableProperty.class) {
+			Object value = ((MutableProperty<?>) property).get();
+			if (value != null && (IMMUTABLE.contains(value.getClass()) || value instanceof Enum)) {
+				interned.put(key, new Interned(key, value));
+			}
+		}
+		return property;
+	}
+	
+	// Removes the entries whose value was collected, unless already replaced
+	private static void purge() {
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null) {
+			Interned entry = (Interned) reference;
+			interned.remove(entry.key, entry);
+		}
+	}
+	
+	/**
+	 * @return The number of interned values not known to be collected
+	 */
+	static int interned() {
+		purge();
+		return interned.size();
+	}
+	
+	/**
+	 * Finds the stored value referenced by a property file, or null if it is missing
+	 */
+	static File blobOf(File location, String key) {
+		for (File dir = location.getParentFile(); dir != null; dir = dir.getParentFile()) { // The store is above any shards
+			File blob = new File(new File(dir, STORE), key + ".blob");
+			if (PropertyDB.storage().exists(blob)) return blob;
+		}
+		return null;
+	}
+	
+	static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+	
+	private static long refs(File store, String key) throws IOException {
+		File file = new File(store, key + ".refs");
+		if (!PropertyDB.storage().exists(file)) return 0;
+		ByteBuffer refs = ByteBuffer.allocate(8);
+		PropertyFormat.readFully(file, 0, refs);
+		return refs.getLong(0);
+	}
+	
+	private static void setRefs(File store, String key, long count) throws IOException {
+		OutputStream refs = PropertyDB.storage().write(new File(store, key + ".refs"));
+		try {
+			refs.write(ByteBuffer.allocate(8).putLong(count).array());
+		} finally {
+			refs.close();
+		}
+	}
+	
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Required of every Java platform
+		}
+	}
+}
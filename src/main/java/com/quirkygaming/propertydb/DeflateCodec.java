@@ -0,0 +1,64 @@
+package com.quirkygaming.propertydb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses property files with java.util.zip's Deflater. Always registered.
+ * @author chandler
+ *
+ */
+public final class DeflateCodec implements PropertyCodec {
+	
+	public static final byte ID = 1;
+	
+	private final int level;
+	
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * @param level Deflater compression level, 0 to 9; lower is faster
+	 */
+	public DeflateCodec(int level) {
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) throw new IllegalArgumentException("Invalid compression level: " + level);
+		this.level = level;
+	}
+	
+	public byte id() {
+		return ID;
+	}
+	
+	public OutputStream compress(OutputStream out) {
+		final Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end(); // Not done by DeflaterOutputStream for a deflater it was given
+				}
+			}
+		};
+	}
+	
+	public InputStream decompress(InputStream in) {
+		return new InflaterInputStream(in, new Inflater(), 8192) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inf.end();
+				}
+			}
+		};
+	}
+}
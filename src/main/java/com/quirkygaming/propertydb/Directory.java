@@ -0,0 +1,180 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An interned property directory. Every registered property references one of these
+ * instead of holding its own File and canonical path, so the path is stored once per directory.
+ * Two Directory instances are never created for the same canonical path.
+ *
+ * A directory either stores its files flat or sharded into hashed subdirectories, as recorded
+ * by a marker file (see ShardedLayout).
+ * @author chandler
+ *
+ */
+final class Directory {
+	
+	static final String SHARD_MARKER = ".shards";
+	static final String EXTENSION = ".property";
+	static final String QUARANTINE = ".quarantine";
+	static final String SNAPSHOT_STAGING = ".snapshot";
+	
+	final File file;
+	
+	// Number of hashed subdirectory levels; 0 for the flat layout
+	volatile int shardLevels;
+	
+	// Answers existence checks from memory once the directory has been indexed
+	volatile ExistenceIndex index = null;
+	
+	// Compression of this directory's files; null to use the database's setting
+	volatile PropertyFormat.Compression compression = null;
+	
+	// Order in which a deadline-bounded shutdown saves this directory's properties; higher first
+	volatile int priority = 0;
+	
+	// Whether saves store values in the shared store (see Dedup), and whether the store exists
+	volatile boolean deduplicate = false;
+	volatile boolean store;
+	
+	// Converters between versions of this directory's properties; null until one is registered
+	volatile Migrations migrations = null;
+	
+	// Held for reading while files are written or deleted, and for writing while a snapshot captures them
+	final ReentrantReadWriteLock writes = new ReentrantReadWriteLock();
+	
+	// Files written or deleted since the last snapshot captured them; null until the first one is taken
+	volatile Set<File> changes = null;
+	
+	// The last complete snapshot, on which the next one is based; guarded by this
+	File lastSnapshot = null;
+	boolean snapshotting = false;
+	
+	Directory(File canonicalFile) throws IOException {
+		this.file = canonicalFile;
+		this.shardLevels = readShardLevels(canonicalFile);
+		this.store = !PropertyDB.storage().list(new File(canonicalFile, Dedup.STORE)).isEmpty();
+	}
+	
+	/**
+	 * Resolves the file in which a property is stored
+	 * @param fieldName Name of the property
+	 * @param version Property version
+	 * @return The property file
+	 */
+	File locate(String fieldName, long version) {
+		return new File(shardFor(fieldName), fieldName + "_" + version + EXTENSION);
+	}
+	
+	/**
+	 * Resolves the directory holding every version of a property
+	 */
+	File shardFor(String fieldName) {
+		return shardFor(file, fieldName, shardLevels);
+	}
+	
+	static File shardFor(File directory, String fieldName, int levels) {
+		if (levels == 0) return directory;
+		int hash = shardHash(fieldName);
+		StringBuilder path = new StringBuilder();
+		for (int level = 0; level < levels; level++) {
+			if (level > 0) path.append(File.separatorChar);
+			int bucket = (hash >>> (24 - 8 * level)) & 0xFF;
+			if (bucket < 0x10) path.append('0');
+			path.append(Integer.toHexString(bucket));
+		}
+		return new File(directory, path.toString());
+	}
+	
+	// String.hashCode is specified, so shard assignment is stable across JVMs; mix it so similar names spread out
+	static int shardHash(String fieldName) {
+		int h = fieldName.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+	
+	/**
+	 * Extracts the field name from a property file name
+	 * @return The field name, or null if this is not a property file
+	 */
+	static String fieldNameOf(String fileName) {
+		int end = fileName.lastIndexOf(EXTENSION);
+		if (end <= 0) return null;
+		int split = fileName.lastIndexOf('_', end);
+		if (split <= 0) return null;
+		return fileName.substring(0, split);
+	}
+	
+	/**
+	 * Checks that a file name has the exact form fieldName_version.property, unlike temporary files and map logs
+	 */
+	static boolean isPropertyFile(String fileName) {
+		String fieldName = fieldNameOf(fileName);
+		if (fieldName == null || !fileName.endsWith(EXTENSION)) return false;
+		try {
+			Long.parseLong(fileName.substring(fieldName.length() + 1, fileName.length() - EXTENSION.length()));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Records a file written or deleted for the next snapshot; the read lock of writes must be held
+	 */
+	void changed(File file) {
+		Set<File> changed = changes;
+		if (changed != null) changed.add(file);
+	}
+	
+	/**
+	 * Receives the stored property files of a directory
+	 */
+	interface Visitor {
+		void visit(String fieldName, long version);
+	}
+	
+	/**
+	 * Lists every property file stored in this directory, including any shards
+	 */
+	void scan(Visitor visitor) throws IOException {
+		scan(file, shardLevels, visitor);
+	}
+	
+	private static void scan(File dir, int levels, Visitor visitor) throws IOException {
+		for (String name : PropertyDB.storage().list(dir)) {
+			if (levels > 0 && !name.startsWith(".")) scan(new File(dir, name), levels - 1, visitor); // Empty unless a shard
+			String fieldName = fieldNameOf(name);
+			if (fieldName == null || !name.endsWith(EXTENSION)) continue;
+			try {
+				visitor.visit(fieldName, Long.parseLong(name.substring(fieldName.length() + 1, name.length() - EXTENSION.length())));
+			} catch (NumberFormatException e) {
+				// Not a property file
+			}
+		}
+	}
+	
+	static int readShardLevels(File directory) throws IOException {
+		File marker = new File(directory, SHARD_MARKER);
+		if (!marker.isFile()) return 0;
+		try {
+			return Integer.parseInt(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Unreadable shard marker in " + directory, e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+}
@@ -0,0 +1,95 @@
+package com.quirkygaming.propertydb;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler that runs the save routine on a ScheduledExecutorService, either its own or one of the application's.
+ * Saves are spaced by a fixed delay like the default scheduler's. When the database closes, the pending save is
+ * cancelled without interrupting one in progress, which is waited for; an executor of its own is then shut down.
+ * 
+ * Subclasses may also supply the threads of bulk operations such as closing saves, deletes, verification,
+ * export and import, for example virtual threads.
+ * @author chandler
+ *
+ */
+public class ExecutorScheduler implements CustomScheduler {
+	
+	private final ScheduledExecutorService executor;
+	private final boolean owned;
+	private final long period;
+	private final TimeUnit unit;
+	private final ThreadFactory workers;
+	
+	// Held while the save routine runs, so that closing can wait for it
+	private final Object running = new Object();
+	private ScheduledFuture<?> future;
+	
+	/**
+	 * Runs saves on a thread of its own
+	 * @param periodMillis Delay between saves
+	 */
+	public ExecutorScheduler(long periodMillis) {
+		this(Executors.newSingleThreadScheduledExecutor(), true, periodMillis, TimeUnit.MILLISECONDS, null);
+	}
+	
+	/**
+	 * Runs saves on an application's executor, which is left running when the database closes
+	 * @param executor The executor
+	 * @param period Delay between saves
+	 * @param unit Unit of the delay
+	 */
+	public ExecutorScheduler(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		this(executor, false, period, unit, null);
+	}
+	
+	/**
+	 * @param executor The executor
+	 * @param owned Whether to shut the executor down when the database closes
+	 * @param period Delay between saves
+	 * @param unit Unit of the delay
+	 * @param workers Makes the threads of bulk operations, or null for the default daemon threads
+	 */
+	protected ExecutorScheduler(ScheduledExecutorService executor, boolean owned, long period, TimeUnit unit, ThreadFactory workers) {
+		if (period <= 0) throw new IllegalArgumentException("Period must be positive");
+		this.executor = executor;
+		this.owned = owned;
+		this.period = period;
+		this.unit = unit;
+		this.workers = workers;
+	}
+	
+	ThreadFactory workerThreads() {
+		return workers;
+	}
+	
+	@Override
+	public synchronized void scheduleRepeatingTask(final InitializationToken token, final Runnable saveRoutine) {
+		future = executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				synchronized (running) {
+					if (token.valid()) saveRoutine.run();
+				}
+			}
+		}, period, period, unit);
+	}
+	
+	@Override
+	public synchronized void onDatabaseClose() {
+		if (future == null) return;
+		future.cancel(false); // Only cancels the wait, like interrupting the default scheduler's sleep
+		synchronized (running) {} // Waits for a save in progress, like joining the default scheduler's thread
+		future = null;
+		if (owned) {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.MINUTES));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.quirkygaming.propertydb;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory record of which property files exist in a directory, built from a single scan
+ * and kept current by PropertyDB's own saves and deletes.
+ *
+ * A bloom filter answers negative lookups without touching the filesystem. Positive answers are
+ * checked against the set of files deleted since the scan and then confirmed with a single stat.
+ * Files written into the directory by anything other than this PropertyDB are not seen until the next scan.
+ * @author chandler
+ *
+ */
+final class ExistenceIndex {
+	
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASHES = 7;
+	private static final int MIN_CAPACITY = 1024;
+	
+	private final Directory directory;
+	
+	// Lookups read the current filter without locking; writers synchronize with rebuilds so no insertion is lost
+	private volatile AtomicLongArray bits;
+	private int capacity;
+	private int inserted;
+	private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+	
+	ExistenceIndex(Directory directory) {
+		this.directory = directory;
+		rebuild();
+	}
+	
+	/**
+	 * Rescans the directory and replaces the filter, sized with room to grow
+	 */
+	synchronized void rebuild() {
+		int size = Math.max(MIN_CAPACITY, inserted * 2);
+		AtomicLongArray scanned = newFilter(size);
+		int count;
+		try {
+			count = scan(scanned);
+			if (count > size) { // Undersized; scan again with the real count
+				size = count * 2;
+				scanned = newFilter(size);
+				count = scan(scanned);
+			}
+		} catch (IOException e) { // Unlistable; every lookup falls through to the backend
+			assert PropertyDB.debug("Couldn't scan " + directory.file + ": " + e);
+			for (int i = 0; i < scanned.length(); i++) scanned.set(i, -1L);
+			count = size;
+		}
+		deleted.clear();
+		capacity = size;
+		inserted = count;
+		bits = scanned;
+	}
+	
+	/**
+	 * Checks if a property file exists
+	 */
+	boolean exists(String fieldName, long version) {
+		if (!mightContain(bits, fieldName, version)) return false;
+		if (deleted.contains(key(fieldName, version))) return false;
+		return PropertyDB.storage().exists(directory.locate(fieldName, version));
+	}
+	
+	/**
+	 * Records a file written by PropertyDB
+	 */
+	synchronized void created(String fieldName, long version) {
+		deleted.remove(key(fieldName, version));
+		add(bits, fieldName, version);
+		if (++inserted > capacity * 2) rebuild(); // Saturated; false positive rate would climb
+	}
+	
+	/**
+	 * Records a file deleted by PropertyDB
+	 */
+	void deleted(String fieldName, long version) {
+		deleted.add(key(fieldName, version));
+	}
+	
+	private static AtomicLongArray newFilter(int entries) {
+		return new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, ((long) entries * BITS_PER_ENTRY + 63) / 64));
+	}
+	
+	private static String key(String fieldName, long version) {
+		return fieldName + "_" + version;
+	}
+	
+	private int scan(final AtomicLongArray into) throws IOException {
+		final int[] count = {0};
+		directory.scan(new Directory.Visitor() {
+			public void visit(String fieldName, long version) {
+				add(into, fieldName, version);
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+	
+	// Double hashing over a 64 bit FNV-1a hash of the field name and version
+	private static long hash(String fieldName, long version) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < fieldName.length(); i++) {
+			h ^= fieldName.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		h ^= version;
+		h *= 0x100000001B3L;
+		h ^= h >>> 29;
+		return h;
+	}
+	
+	private static void add(AtomicLongArray bits, String fieldName, long version) {
+		long h = hash(fieldName, version);
+		long size = bits.length() * 64L;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h + i * (h >>> 32 | 1), size);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+			do {
+				old = bits.get(word);
+				if ((old & mask) != 0) break;
+			} while (!bits.compareAndSet(word, old, old | mask));
+		}
+	}
+	
+	private static boolean mightContain(AtomicLongArray bits, String fieldName, long version) {
+		long h = hash(fieldName, version);
+		long size = bits.length() * 64L;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h + i * (h >>> 32 | 1), size);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+}
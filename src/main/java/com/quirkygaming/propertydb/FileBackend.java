@@ -0,0 +1,183 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores each file in the file system, as PropertyDB always has. Written files are replaced
+ * atomically: they are written next to their location with TEMP_EXTENSION appended and then renamed,
+ * so a crash leaves either the previous or the new content. Streams that are abandoned without being closed
+ * leave the temporary file behind rather than publishing a partial write.
+ * @author chandler
+ *
+ */
+public class FileBackend implements StorageBackend {
+	
+	static final String TEMP_EXTENSION = ".tmp";
+	
+	@Override
+	public InputStream read(File location) throws IOException {
+		return new FileInputStream(location);
+	}
+	
+	@Override
+	public OutputStream write(File location) throws IOException {
+		File parent = location.getParentFile();
+		if (parent != null && !parent.isDirectory()) parent.mkdirs();
+		return new TempFileStream(location);
+	}
+	
+	/**
+	 * Writes to a temporary file and renames it over the location when closed. It is also a channel
+	 * so that direct buffers can be written without copying them to the heap.
+	 */
+	private static class TempFileStream extends FilterOutputStream implements WritableByteChannel {
+		private final File location;
+		private final File temp;
+		private final FileChannel channel;
+		private boolean failed = false;
+		private boolean closed = false;
+		
+		TempFileStream(File location) throws IOException {
+			this(location, new File(location.getPath() + TEMP_EXTENSION), new FileOutputStream(location.getPath() + TEMP_EXTENSION));
+		}
+		
+		private TempFileStream(File location, File temp, FileOutputStream out) {
+			super(out);
+			this.location = location;
+			this.temp = temp;
+			this.channel = out.getChannel();
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			try {
+				return channel.write(src);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			out.close();
+			if (failed) Files.deleteIfExists(temp.toPath());
+			else Files.move(temp.toPath(), location.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	@Override
+	public OutputStream append(File location) throws IOException {
+		return new FileOutputStream(location, true);
+	}
+	
+	@Override
+	public void writeAt(File location, long position, ByteBuffer data) throws IOException {
+		FileChannel channel = open(location, StandardOpenOption.WRITE);
+		try {
+			while (data.hasRemaining()) position += channel.write(data, position);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	@Override
+	public int readAt(File location, long position, ByteBuffer into) throws IOException {
+		FileChannel channel = open(location, StandardOpenOption.READ);
+		try {
+			int total = 0;
+			while (into.hasRemaining()) {
+				int n = channel.read(into, position + total);
+				if (n < 0) return total == 0 ? -1 : total;
+				total += n;
+			}
+			return total;
+		} finally {
+			channel.close();
+		}
+	}
+	
+	@Override
+	public void truncate(File location, long length) throws IOException {
+		FileChannel channel = open(location, StandardOpenOption.WRITE);
+		try {
+			channel.truncate(length);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	@Override
+	public boolean delete(File location) throws IOException {
+		return Files.deleteIfExists(location.toPath());
+	}
+	
+	@Override
+	public boolean exists(File location) {
+		return location.exists();
+	}
+	
+	@Override
+	public long length(File location) {
+		return location.length();
+	}
+	
+	@Override
+	public List<String> list(File directory) {
+		String[] names = directory.list();
+		if (names == null) return Collections.emptyList();
+		return Arrays.asList(names);
+	}
+	
+	private static FileChannel open(File location, StandardOpenOption option) throws IOException {
+		try {
+			return FileChannel.open(location.toPath(), option);
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(location.getPath());
+		}
+	}
+}
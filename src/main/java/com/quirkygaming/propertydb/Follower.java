@@ -0,0 +1,187 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+import com.quirkygaming.propertylib.Mutator;
+import com.quirkygaming.propertylib.Property;
+
+/**
+ * A read-only view of a directory written by another process, started by PropertyDB.follow. Each followed property
+ * is read once and then reloaded whenever the writer replaces its file or appends to its change log, as reported
+ * by a WatchService; the rest of the directory is never scanned. Observers of a followed property receive a SET
+ * event on the follower's thread when a reload changes its value.
+ *
+ * Followers never write, so they don't need an initialized database and don't interfere with the writer.
+ * @author chandler
+ *
+ */
+public final class Follower<E extends Exception> {
+	
+	private static final class Followed<T> {
+		final String fieldName;
+		final long version;
+		final T defaultValue;
+		final Property<T> property;
+		T value; // Compared without signaling GET; only touched by the follower's thread once added
+		
+		Followed(String fieldName, long version, T defaultValue, T value, Mutator mutator) {
+			this.fieldName = fieldName; this.version = version; this.defaultValue = defaultValue; this.value = value;
+			this.property = Property.newProperty(mutator, value);
+		}
+	}
+	
+	private final Directory directory;
+	private final WatchService watcher;
+	private final ErrorHandler<E> handler;
+	private final Mutator mutator = new Mutator();
+	
+	// By property file
+	private final Map<File, Followed<?>> followed = new ConcurrentHashMap<File, Followed<?>>();
+	private final Set<File> watched = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+	private final AtomicLong reloads = new AtomicLong();
+	private volatile boolean closed = false;
+	
+	Follower(Directory directory, WatchService watcher, ErrorHandler<E> handler) {
+		this.directory = directory;
+		this.watcher = watcher;
+		this.handler = handler;
+	}
+	
+	static <E extends Exception> Follower<E> start(Directory directory, ErrorHandler<E> handler) throws IOException {
+		final Follower<E> follower = new Follower<E>(directory, FileSystems.getDefault().newWatchService(), handler);
+		Parallel.daemonThreads("PropertyDB-Follower").newThread(new Runnable() {
+			public void run() {
+				follower.watch();
+			}
+		}).start();
+		return follower;
+	}
+	
+	/**
+	 * Follows a property, reading its current value
+	 * @param fieldName Name of the property
+	 * @param version Version
+	 * @param defaultValue Value while the property doesn't exist
+	 * @return A property holding the latest stored value; the same instance for every call with the same name and version
+	 * @throws E Will throw a DatabaseException if the property couldn't be read or its directory watched
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Property<T> property(String fieldName, long version, T defaultValue) throws E {
+		File location = directory.locate(fieldName, version);
+		synchronized (followed) {
+			Followed<?> existing = followed.get(location);
+			if (existing != null) return (Property<T>) existing.property;
+			try {
+				File parent = location.getParentFile();
+				if (watched.add(parent)) { // Watched before the property is read, so no change is missed
+					parent.mkdirs(); // The writer creates it anyway; a missing directory can't be watched
+					parent.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				}
+				Followed<T> added = new Followed<T>(fieldName, version, defaultValue, read(fieldName, version, defaultValue), mutator);
+				followed.put(location, added);
+				return added.property;
+			} catch (DatabaseException e) {
+				handler.handle(e);
+				return null;
+			} catch (IOException e) {
+				watched.remove(location.getParentFile());
+				handler.handle(new DatabaseException("IOException while following property: " + fieldName + " version " + version, e));
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of times a followed property was reread
+	 */
+	public long reloads() {
+		return reloads.get();
+	}
+	
+	/**
+	 * Stops following; the properties keep their last values
+	 */
+	public void close() {
+		closed = true;
+		try {watcher.close();} catch (IOException e) {}
+	}
+	
+	private void watch() {
+		while (!closed) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Set<File> changed = new LinkedHashSet<File>();
+			boolean overflow = false;
+			do { // Coalesces a burst of events, so each file is reread once
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						overflow = true;
+						continue;
+					}
+					String name = event.context().toString();
+					if (name.endsWith(MapLog.EXTENSION)) name = name.substring(0, name.length() - MapLog.EXTENSION.length());
+					changed.add(dir.resolve(name).toFile());
+				}
+				key.reset();
+			} while ((key = watcher.poll()) != null);
+			
+			Collection<Followed<?>> reload = new ArrayList<Followed<?>>();
+			if (overflow) { // Events were lost; reread everything followed
+				reload.addAll(followed.values());
+			} else {
+				for (File file : changed) {
+					Followed<?> entry = followed.get(file);
+					if (entry != null) reload.add(entry);
+				}
+			}
+			for (Followed<?> entry : reload) {
+				if (closed) return;
+				reload(entry);
+			}
+		}
+	}
+	
+	private <T> T read(String fieldName, long version, T defaultValue) throws DatabaseException, IOException {
+		MutableProperty<T> stored = PropertyDB.peek(directory, fieldName, version);
+		return stored == null ? defaultValue : stored.get();
+	}
+	
+	private <T> void reload(Followed<T> entry) {
+		try {
+			T value = read(entry.fieldName, entry.version, entry.defaultValue);
+			reloads.incrementAndGet();
+			if (!Objects.deepEquals(value, entry.value)) {
+				entry.value = value;
+				mutator.set(entry.property, value); // Signals observers
+			}
+		} catch (DatabaseException e) {
+			try {handler.handle(e);} catch (Exception e1) {}
+		} catch (IOException e) { // Kept at the last value; the next change is picked up as usual
+			try {handler.handle(new DatabaseException("IOException while reloading property: " + entry.fieldName + " version " + entry.version, e));} catch (Exception e1) {}
+		}
+	}
+}
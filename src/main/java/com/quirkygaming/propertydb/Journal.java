@@ -0,0 +1,139 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import com.quirkygaming.propertylib.BufferProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * A recovery journal holding properties that could not be saved before a shutdown deadline.
+ * Properties are appended to a single file, which is much faster than writing each of them, and
+ * written to their own files when the journal is recovered.
+ *
+ * Format: one record per property: directory (UTF), field name (UTF), version (8 bytes), kind (1 byte),
+ * length (4 bytes), then the serialized property, or the raw value of a BufferProperty.
+ * A partially written final record is ignored.
+ * @author chandler
+ *
+ */
+final class Journal {
+	
+	static final byte SERIALIZED = 0;
+	static final byte BUFFER = 1;
+	
+	interface Replay {
+		void record(File directory, String fieldName, long version, MutableProperty<?> property);
+	}
+	
+	private final FileOutputStream file;
+	private final DataOutputStream out;
+	
+	Journal(File location) throws IOException {
+		file = new FileOutputStream(location);
+		out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+	}
+	
+	/**
+	 * Appends a property. Mapped BufferProperties are skipped; their changes are already in the file's pages.
+	 * @return Whether the property was journaled
+	 */
+	boolean append(DBEntry<?,?> entry) throws IOException {
+		MutableProperty<?> property = entry.mutable;
+		byte kind;
+		byte[] record;
+		
+		synchronized (property) {
+			if (property instanceof BufferProperty) {
+				if (((BufferProperty) property).isMapped()) return false;
+				ByteBuffer value = ((BufferProperty) property).get().duplicate();
+				value.position(0);
+				record = new byte[value.remaining()];
+				value.get(record);
+				kind = BUFFER;
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeObject(property);
+				oos.close();
+				record = bytes.toByteArray();
+				kind = SERIALIZED;
+			}
+		}
+		
+		out.writeUTF(entry.directory.file.getPath());
+		out.writeUTF(entry.fieldName);
+		out.writeLong(entry.version);
+		out.writeByte(kind);
+		out.writeInt(record.length);
+		out.write(record);
+		return true;
+	}
+	
+	/**
+	 * Writes the journal through to the disk and closes it
+	 */
+	void close() throws IOException {
+		try {
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads every complete record of a journal
+	 * @return The number of records read
+	 */
+	static int replay(File location, Replay replay) throws IOException, ClassNotFoundException {
+		int records = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location), 1 << 16));
+		try {
+			while (true) {
+				File directory;
+				String fieldName;
+				long version;
+				byte kind;
+				byte[] record;
+				try {
+					directory = new File(in.readUTF());
+					fieldName = in.readUTF();
+					version = in.readLong();
+					kind = in.readByte();
+					int length = in.readInt();
+					if (length < 0 || length > location.length()) break; // Partially written
+					record = new byte[length];
+					in.readFully(record);
+				} catch (EOFException e) {
+					break; // Partially written
+				}
+				
+				MutableProperty<?> property;
+				if (kind == BUFFER) {
+					property = BufferProperty.newBufferProperty(ByteBuffer.wrap(record));
+				} else {
+					ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record));
+					property = (MutableProperty<?>) ois.readObject();
+				}
+				replay.record(directory, fieldName, version, property);
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+}
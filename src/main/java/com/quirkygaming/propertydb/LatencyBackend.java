@@ -0,0 +1,229 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wraps another backend, delaying every operation by a fixed latency and measuring the time spent
+ * in storage, so that storage cost can be simulated and told apart from CPU cost. Opening a stream counts
+ * as one operation; the time spent reading or writing it is measured as well.
+ * @author chandler
+ *
+ */
+public class LatencyBackend implements StorageBackend {
+	
+	private final StorageBackend backend;
+	private final long readNanos;
+	private final long writeNanos;
+	
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+	
+	/**
+	 * @param backend The backend to wrap
+	 * @param readMicros Latency added to reads, exists, length and list
+	 * @param writeMicros Latency added to writes, appends, truncates and deletes
+	 */
+	public LatencyBackend(StorageBackend backend, long readMicros, long writeMicros) {
+		this.backend = backend;
+		this.readNanos = TimeUnit.MICROSECONDS.toNanos(readMicros);
+		this.writeNanos = TimeUnit.MICROSECONDS.toNanos(writeMicros);
+	}
+	
+	/**
+	 * @return Number of operations performed
+	 */
+	public long operations() {
+		return operations.get();
+	}
+	
+	/**
+	 * @return Total time spent in storage operations and streams, including the injected latency, in nanoseconds
+	 */
+	public long storageNanos() {
+		return nanos.get();
+	}
+	
+	public void resetCounters() {
+		operations.set(0);
+		nanos.set(0);
+	}
+	
+	@Override
+	public InputStream read(File location) throws IOException {
+		long start = begin(readNanos);
+		try {
+			return new FilterInputStream(backend.read(location)) {
+				@Override
+				public int read() throws IOException {
+					long start = System.nanoTime();
+					try {
+						return super.read();
+					} finally {
+						end(start);
+					}
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					long start = System.nanoTime();
+					try {
+						return super.read(b, off, len);
+					} finally {
+						end(start);
+					}
+				}
+			};
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public OutputStream write(File location) throws IOException {
+		long start = begin(writeNanos);
+		try {
+			return timed(backend.write(location));
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public OutputStream append(File location) throws IOException {
+		long start = begin(writeNanos);
+		try {
+			return timed(backend.append(location));
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public void writeAt(File location, long position, ByteBuffer data) throws IOException {
+		long start = begin(writeNanos);
+		try {
+			backend.writeAt(location, position, data);
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public int readAt(File location, long position, ByteBuffer into) throws IOException {
+		long start = begin(readNanos);
+		try {
+			return backend.readAt(location, position, into);
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public void truncate(File location, long length) throws IOException {
+		long start = begin(writeNanos);
+		try {
+			backend.truncate(location, length);
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public boolean delete(File location) throws IOException {
+		long start = begin(writeNanos);
+		try {
+			return backend.delete(location);
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public boolean exists(File location) {
+		long start = begin(readNanos);
+		try {
+			return backend.exists(location);
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public long length(File location) {
+		long start = begin(readNanos);
+		try {
+			return backend.length(location);
+		} finally {
+			end(start);
+		}
+	}
+	
+	@Override
+	public List<String> list(File directory) throws IOException {
+		long start = begin(readNanos);
+		try {
+			return backend.list(directory);
+		} finally {
+			end(start);
+		}
+	}
+	
+	private OutputStream timed(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.write(b);
+				} finally {
+					end(start);
+				}
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.write(b, off, len);
+				} finally {
+					end(start);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.close();
+				} finally {
+					end(start);
+				}
+			}
+		};
+	}
+	
+	private long begin(long latency) {
+		long start = System.nanoTime();
+		operations.incrementAndGet();
+		if (latency > 0) {
+			long until = start + latency;
+			long remaining;
+			while ((remaining = until - System.nanoTime()) > 0) LockSupport.parkNanos(remaining);
+		}
+		return start;
+	}
+	
+	private void end(long start) {
+		nanos.addAndGet(System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,137 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import com.quirkygaming.propertylib.MapProperty;
+
+/**
+ * Persists MapProperty changes as an append-only log next to the property file, so that a save
+ * costs as much as the change rather than the whole map. The property file holds the map as of the last checkpoint;
+ * a checkpoint is written instead of appending once the log outgrows it, or when the whole map changed.
+ *
+ * Log format: checkpoint number (8 bytes), then one record per save: length (4 bytes), serialized list of changes.
+ * A log whose checkpoint number doesn't match the map's is left over from an interrupted checkpoint and ignored.
+ * @author chandler
+ *
+ */
+final class MapLog {
+	
+	static final String EXTENSION = ".log";
+	
+	private MapLog() {}
+	
+	static File of(File location) {
+		return new File(location.getPath() + EXTENSION);
+	}
+	
+	/**
+	 * Saves a map property, appending to its log where possible
+	 */
+	static void save(File location, MapProperty<?, ?> property, PropertyFormat.Compression compression) throws IOException {
+		StorageBackend storage = PropertyDB.storage();
+		File log = of(location);
+		byte[] record = null;
+		long checkpoint;
+		
+		synchronized (property) {
+			List<?> changes = property.takeChanges();
+			if (changes == null || !storage.exists(location) || storage.length(log) > storage.length(location)) {
+				checkpoint = property.newCheckpoint();
+			} else if (changes.isEmpty()) {
+				return;
+			} else {
+				checkpoint = property.checkpoint();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeObject(changes); // While locked; values may be modified once it is released
+				oos.close();
+				record = bytes.toByteArray();
+			}
+		}
+		
+		try {
+			if (record == null) {
+				PropertyFormat.write(location, property, compression);
+				storage.delete(log);
+				assert PropertyDB.debug("Checkpoint " + checkpoint + " of " + location.getName());
+				return;
+			}
+			
+			boolean fresh = !storage.exists(log);
+			DataOutputStream out = new DataOutputStream(storage.append(log));
+			try {
+				if (fresh) out.writeLong(checkpoint);
+				out.writeInt(record.length);
+				out.write(record);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// The changes were taken, and the log may end in a partial record; write the whole map next time
+			synchronized (property) {
+				property.markRewrite();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Applies the log of a map property that was just read
+	 * @param repair Whether to delete a stale log and drop a partially written record; false where another process writes
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static void replay(File location, MapProperty<?, ?> property, boolean repair) throws IOException, ClassNotFoundException {
+		StorageBackend storage = PropertyDB.storage();
+		File log = of(location);
+		if (!storage.exists(log)) return;
+		
+		long valid = 0;
+		long size = storage.length(log);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(storage.read(log)));
+		try {
+			if (in.readLong() != property.checkpoint()) {
+				in.close();
+				if (repair) storage.delete(log); // Stale
+				return;
+			}
+			valid = 8;
+			while (true) {
+				int length;
+				byte[] record;
+				try {
+					length = in.readInt();
+					if (length < 0 || length > size - valid - 4) break; // Partially written
+					record = new byte[length];
+					in.readFully(record);
+				} catch (EOFException e) {
+					break;
+				}
+				ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record));
+				((MapProperty) property).replay((List) ois.readObject());
+				valid += 4 + length;
+			}
+		} catch (EOFException e) {
+			// Header incomplete
+		} finally {
+			in.close();
+		}
+		
+		if (!repair) {
+			return;
+		} else if (valid == 0) {
+			storage.delete(log);
+		} else if (valid != size) { // Drop a partially written record so appends stay aligned
+			storage.truncate(log, valid);
+		}
+	}
+}
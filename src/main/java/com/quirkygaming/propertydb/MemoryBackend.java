@@ -0,0 +1,179 @@
+package com.quirkygaming.propertydb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps every file in memory, keyed by absolute path, for tests and benchmarks that shouldn't
+ * touch the disk. Directories exist implicitly while they contain files. The content survives closing
+ * and reinitializing the database as long as the same instance is used.
+ * @author chandler
+ *
+ */
+public class MemoryBackend implements StorageBackend {
+	
+	// Content of one file; locked while read or modified
+	private static final class Data {
+		byte[] bytes;
+		int length;
+		
+		Data(byte[] bytes) {
+			this.bytes = bytes; this.length = bytes.length;
+		}
+		
+		void ensure(long capacity) throws IOException {
+			if (capacity > Integer.MAX_VALUE - 8) throw new IOException("File too large for memory");
+			if (capacity > bytes.length) bytes = Arrays.copyOf(bytes, (int) Math.max(capacity, bytes.length * 2L));
+		}
+	}
+	
+	private final ConcurrentNavigableMap<String, Data> files = new ConcurrentSkipListMap<String, Data>();
+	
+	@Override
+	public InputStream read(File location) throws IOException {
+		Data data = get(location);
+		synchronized (data) {
+			return new ByteArrayInputStream(Arrays.copyOf(data.bytes, data.length));
+		}
+	}
+	
+	@Override
+	public OutputStream write(final File location) throws IOException {
+		return new ByteArrayOutputStream() {
+			private boolean closed = false;
+			
+			@Override
+			public void close() {
+				if (closed) return;
+				closed = true;
+				files.put(key(location), new Data(toByteArray()));
+			}
+		};
+	}
+	
+	@Override
+	public OutputStream append(File location) throws IOException {
+		Data created = new Data(new byte[0]);
+		Data existing = files.putIfAbsent(key(location), created);
+		final Data data = existing == null ? created : existing;
+		
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized (data) {
+					data.ensure((long) data.length + len);
+					System.arraycopy(b, off, data.bytes, data.length, len);
+					data.length += len;
+				}
+			}
+		};
+	}
+	
+	@Override
+	public void writeAt(File location, long position, ByteBuffer source) throws IOException {
+		Data data = get(location);
+		synchronized (data) {
+			int n = source.remaining();
+			data.ensure(position + n);
+			if (position > data.length) Arrays.fill(data.bytes, data.length, (int) position, (byte) 0);
+			source.get(data.bytes, (int) position, n);
+			data.length = Math.max(data.length, (int) position + n);
+		}
+	}
+	
+	@Override
+	public int readAt(File location, long position, ByteBuffer into) throws IOException {
+		Data data = get(location);
+		synchronized (data) {
+			if (position >= data.length) return -1;
+			int n = (int) Math.min(into.remaining(), data.length - position);
+			into.put(data.bytes, (int) position, n);
+			return n;
+		}
+	}
+	
+	@Override
+	public void truncate(File location, long length) throws IOException {
+		Data data = get(location);
+		synchronized (data) {
+			if (length < data.length) data.length = (int) length;
+		}
+	}
+	
+	@Override
+	public boolean delete(File location) {
+		return files.remove(key(location)) != null;
+	}
+	
+	@Override
+	public boolean exists(File location) {
+		String key = key(location);
+		if (files.containsKey(key)) return true;
+		String child = files.ceilingKey(key + File.separator);
+		return child != null && child.startsWith(key + File.separator);
+	}
+	
+	@Override
+	public long length(File location) {
+		Data data = files.get(key(location));
+		if (data == null) return 0;
+		synchronized (data) {
+			return data.length;
+		}
+	}
+	
+	@Override
+	public List<String> list(File directory) {
+		String prefix = key(directory) + File.separator;
+		Set<String> names = new LinkedHashSet<String>();
+		for (Map.Entry<String, Data> entry : files.tailMap(prefix).entrySet()) {
+			String path = entry.getKey();
+			if (!path.startsWith(prefix)) break;
+			int end = path.indexOf(File.separatorChar, prefix.length());
+			names.add(path.substring(prefix.length(), end < 0 ? path.length() : end));
+		}
+		return new ArrayList<String>(names);
+	}
+	
+	/**
+	 * @return The total length of all files
+	 */
+	public long size() {
+		long size = 0;
+		for (Data data : files.values()) {
+			synchronized (data) {
+				size += data.length;
+			}
+		}
+		return size;
+	}
+	
+	private Data get(File location) throws FileNotFoundException {
+		Data data = files.get(key(location));
+		if (data == null) throw new FileNotFoundException(location.getPath());
+		return data;
+	}
+	
+	private static String key(File location) {
+		return location.getAbsolutePath();
+	}
+}
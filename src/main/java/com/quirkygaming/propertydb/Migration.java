@@ -0,0 +1,115 @@
+package com.quirkygaming.propertydb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Progress and control of a background migration started by PropertyDB.migrate.
+ * The totals are known once the directory has been scanned.
+ * @author chandler
+ *
+ */
+public final class Migration {
+	
+	private final long intervalNanos;
+	private final long started = System.nanoTime();
+	private final AtomicLong nextSlot = new AtomicLong(started);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean cancelled = false;
+	private volatile long finished = 0;
+	
+	volatile int total = 0;
+	final AtomicInteger migrated = new AtomicInteger();
+	final AtomicInteger skipped = new AtomicInteger();
+	final AtomicInteger failed = new AtomicInteger();
+	
+	Migration(int maxPerSecond) {
+		this.intervalNanos = maxPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxPerSecond : 0;
+	}
+	
+	/**
+	 * @return Number of stored properties that have a converter; 0 until the directory is scanned
+	 */
+	public int total() {
+		return total;
+	}
+	
+	/**
+	 * @return Number of properties converted and written
+	 */
+	public int migrated() {
+		return migrated.get();
+	}
+	
+	/**
+	 * @return Number of properties left alone because they were loaded, already converted on demand,
+	 * or because their target version was already stored
+	 */
+	public int skipped() {
+		return skipped.get();
+	}
+	
+	/**
+	 * @return Number of properties that could not be converted; each was passed to the error handler
+	 */
+	public int failed() {
+		return failed.get();
+	}
+	
+	/**
+	 * @return Properties migrated per second so far
+	 */
+	public double rate() {
+		long end = isDone() ? finished : System.nanoTime();
+		return migrated.get() * 1e9 / Math.max(1, end - started);
+	}
+	
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+	
+	/**
+	 * Stops the migration after the properties being converted; the rest are converted on demand
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Waits for the migration to end
+	 * @return True if it ended within the timeout
+	 */
+	public boolean await(long timeoutMillis) throws InterruptedException {
+		return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	// Waits for the next conversion slot allowed by the rate limit
+	void throttle() {
+		if (intervalNanos == 0) return;
+		long slot = nextSlot.getAndAdd(intervalNanos);
+		long now = System.nanoTime();
+		if (slot < now) { // Idle for a while; don't burst to catch up
+			nextSlot.compareAndSet(slot + intervalNanos, now + intervalNanos);
+			return;
+		}
+		long remaining;
+		while ((remaining = slot - System.nanoTime()) > 0 && !cancelled) LockSupport.parkNanos(remaining);
+	}
+	
+	void finish() {
+		finished = System.nanoTime();
+		done.countDown();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d/%d migrated, %d skipped, %d failed, %.0f/s", migrated(), total, skipped(), failed(), rate());
+	}
+}
@@ -0,0 +1,60 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The version converters registered for one directory, and the locks that keep a background migration
+ * and an on-demand conversion of the same property from running at once.
+ * @author chandler
+ *
+ */
+final class Migrations {
+	
+	// Keyed by "version/fieldName", or by "version" alone for every property of the directory
+	private final Map<String, VersionConverter<Object, Object>> converters = new ConcurrentHashMap<String, VersionConverter<Object, Object>>();
+	
+	private final Object[] locks = new Object[64];
+	
+	Migrations() {
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+	}
+	
+	@SuppressWarnings("unchecked")
+	void register(String fieldName, long fromVersion, VersionConverter<?, ?> converter) {
+		converters.put(fieldName == null ? Long.toString(fromVersion) : fromVersion + "/" + fieldName, (VersionConverter<Object, Object>) converter);
+	}
+	
+	/**
+	 * @return The converter from a version to the next, or null
+	 */
+	VersionConverter<Object, Object> converter(String fieldName, long fromVersion) {
+		VersionConverter<Object, Object> converter = converters.get(fromVersion + "/" + fieldName);
+		return converter != null ? converter : converters.get(Long.toString(fromVersion));
+	}
+	
+	/**
+	 * @return The newest version a stored version can be converted to; fromVersion if there is no converter
+	 */
+	long target(String fieldName, long fromVersion) {
+		long version = fromVersion;
+		while (converter(fieldName, version) != null) version++;
+		return version;
+	}
+	
+	/**
+	 * @return The newest stored version that can be converted to a version, or -1
+	 */
+	long source(Directory directory, String fieldName, long version) {
+		for (long from = version - 1; converter(fieldName, from) != null; from--) {
+			File location = directory.locate(fieldName, from);
+			if (PropertyDB.storage().exists(location)) return from;
+		}
+		return -1;
+	}
+	
+	Object lock(String fieldName) {
+		return locks[(Directory.shardHash(fieldName) & 0x7FFFFFFF) % locks.length];
+	}
+}
@@ -0,0 +1,86 @@
+package com.quirkygaming.propertydb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs file I/O for many properties on a bounded number of threads.
+ * Failures are collected rather than thrown so the caller can pass them to its ErrorHandler on its own thread.
+ * @author chandler
+ *
+ */
+final class Parallel {
+	
+	// Default thread count for bulk file operations; these are I/O bound, so use more threads than cores
+	static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	
+	interface Task<T> {
+		void run(T item) throws Exception;
+	}
+	
+	private Parallel() {}
+	
+	/**
+	 * Runs a task for every item and waits for all of them to finish
+	 * @param items The items to process
+	 * @param threads Maximum number of threads to use; 1 runs everything on the calling thread
+	 * @param task The task
+	 * @return Failed items in encounter order, mapped to their exception
+	 */
+	static <T> Map<T, Exception> forEach(Collection<? extends T> items, int threads, final Task<T> task) {
+		final List<T> list = new ArrayList<T>(items);
+		final Map<T, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<T, Exception>());
+		final AtomicInteger next = new AtomicInteger();
+		threads = Math.min(threads, list.size());
+		
+		Runnable worker = new Runnable() {
+			public void run() {
+				int i;
+				while ((i = next.getAndIncrement()) < list.size()) {
+					T item = list.get(i);
+					try {
+						task.run(item);
+					} catch (Exception e) {
+						failures.put(item, e);
+					}
+				}
+			}
+		};
+		
+		if (threads <= 1) {
+			worker.run();
+			return failures;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads, PropertyDB.workerThreads("PropertyDB-IO"));
+		for (int t = 0; t < threads; t++) pool.execute(worker);
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES));
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return failures;
+	}
+	
+	static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
@@ -0,0 +1,269 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the properties written by each save pass, unlike PropertyObservers, which fire when a property is changed.
+ * Every pass is delivered as one batch; properties saved outside a pass, such as on unload, form batches of their own.
+ *
+ * Modeled on java.util.concurrent.Flow: subscribers request batches through their Subscription and receive them on
+ * a delivery thread, so a slow subscriber never holds up saving or the other subscribers. Each subscriber buffers a bounded
+ * number of events. When a batch would exceed it, the buffered batches are merged keeping only the latest event of each
+ * property; if that is still too many, the subscription fails with an IllegalStateException.
+ * Subscribers are completed when the database closes.
+ * @author chandler
+ *
+ */
+public final class PersistPublisher {
+	
+	public interface Subscriber {
+		/**
+		 * Called before any other signal; nothing is delivered until batches are requested
+		 */
+		void onSubscribe(Subscription subscription);
+		
+		/**
+		 * Receives the properties written by one save pass, in the order they were written
+		 */
+		void onNext(List<Persisted> batch);
+		
+		/**
+		 * Ends the subscription after an overflow or an invalid request
+		 */
+		void onError(Throwable error);
+		
+		/**
+		 * Ends the subscription once the database has closed and every buffered batch was delivered
+		 */
+		void onComplete();
+	}
+	
+	public interface Subscription {
+		/**
+		 * Requests more batches; Long.MAX_VALUE for unbounded demand
+		 * @param n A positive number of batches
+		 */
+		void request(long n);
+		
+		/**
+		 * Stops delivery and discards the buffer
+		 */
+		void cancel();
+	}
+	
+	private final Set<Buffer> subscriptions = new CopyOnWriteArraySet<Buffer>();
+	private final ExecutorService delivery = Executors.newCachedThreadPool(Parallel.daemonThreads("PropertyDB-Persisted"));
+	private boolean completed = false; // Guarded by this
+	
+	PersistPublisher() {}
+	
+	/**
+	 * Subscribes to the properties written from now on. onSubscribe is called on this thread.
+	 * @param subscriber The subscriber
+	 * @param capacity Maximum number of events buffered for the subscriber; a single larger batch is still accepted
+	 * @param bytes Whether events should carry the serialized property (see Persisted.bytes)
+	 */
+	public void subscribe(Subscriber subscriber, int capacity, boolean bytes) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+		Buffer buffer = new Buffer(subscriber, capacity, bytes);
+		subscriber.onSubscribe(buffer);
+		synchronized (this) {
+			if (!completed) {
+				subscriptions.add(buffer);
+				return;
+			}
+		}
+		buffer.cancelled = true;
+		subscriber.onComplete();
+	}
+	
+	/**
+	 * @return Number of active subscriptions
+	 */
+	public int subscribers() {
+		return subscriptions.size();
+	}
+	
+	boolean active() {
+		return !subscriptions.isEmpty();
+	}
+	
+	boolean wantsBytes() {
+		for (Buffer buffer : subscriptions) {
+			if (buffer.bytes) return true;
+		}
+		return false;
+	}
+	
+	void publish(List<Persisted> batch) {
+		if (batch.isEmpty()) return;
+		List<Persisted> withBytes = Collections.unmodifiableList(batch);
+		List<Persisted> withoutBytes = null; // Only made if someone needs it
+		for (Buffer buffer : subscriptions) {
+			if (!buffer.bytes) {
+				if (withoutBytes == null) withoutBytes = withoutBytes(batch);
+				buffer.offer(withoutBytes);
+			} else {
+				buffer.offer(withBytes);
+			}
+		}
+	}
+	
+	synchronized void complete() {
+		completed = true;
+		for (Buffer buffer : subscriptions) buffer.finish(null);
+	}
+	
+	private static List<Persisted> withoutBytes(List<Persisted> batch) {
+		List<Persisted> stripped = new ArrayList<Persisted>(batch.size());
+		for (Persisted event : batch) {
+			stripped.add(event.bytes() == null ? event : new Persisted(event.directory(), event.fieldName(), event.version(), null));
+		}
+		return Collections.unmodifiableList(stripped);
+	}
+	
+	// Buffer and delivery state of one subscriber; drained by one delivery task at a time
+	private final class Buffer implements Subscription, Runnable {
+		
+		final Subscriber subscriber;
+		final int capacity;
+		final boolean bytes;
+		
+		private final ArrayDeque<List<Persisted>> queue = new ArrayDeque<List<Persisted>>(); // Guarded by this
+		private int buffered = 0; // Events in the queue
+		private long demand = 0;
+		private boolean finished = false; // Nothing more is accepted; the terminal signal follows the queue
+		private Throwable error = null;
+		volatile boolean cancelled = false;
+		
+		private final AtomicInteger work = new AtomicInteger();
+		
+		Buffer(Subscriber subscriber, int capacity, boolean bytes) {
+			this.subscriber = subscriber;
+			this.capacity = capacity;
+			this.bytes = bytes;
+		}
+		
+		void offer(List<Persisted> batch) {
+			synchronized (this) {
+				if (finished || cancelled) return;
+				if (!queue.isEmpty() && buffered + batch.size() > capacity) {
+					queue.add(batch);
+					List<Persisted> merged = coalesce(queue);
+					queue.clear();
+					if (merged.size() > Math.max(capacity, batch.size())) {
+						buffered = 0;
+						finished = true;
+						error = new IllegalStateException("Subscriber fell behind by more than " + capacity + " properties");
+					} else {
+						queue.add(merged);
+						buffered = merged.size();
+					}
+				} else {
+					queue.add(batch);
+					buffered += batch.size();
+				}
+			}
+			schedule();
+		}
+		
+		void finish(Throwable error) {
+			synchronized (this) {
+				if (finished) return;
+				finished = true;
+				if (error != null) {
+					queue.clear();
+					buffered = 0;
+					this.error = error;
+				}
+			}
+			schedule();
+		}
+		
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				finish(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+			synchronized (this) {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n; // Saturates
+			}
+			schedule();
+		}
+		
+		@Override
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+			synchronized (this) {
+				queue.clear();
+				buffered = 0;
+			}
+		}
+		
+		private void schedule() {
+			if (work.getAndIncrement() == 0) delivery.execute(this);
+		}
+		
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				while (!cancelled) {
+					List<Persisted> batch = null;
+					boolean terminate = false;
+					synchronized (this) {
+						if (!queue.isEmpty() && demand > 0) {
+							batch = queue.poll();
+							buffered -= batch.size();
+							if (demand != Long.MAX_VALUE) demand--;
+						} else if (queue.isEmpty() && finished) {
+							terminate = true;
+						} else {
+							break;
+						}
+					}
+					if (terminate) {
+						cancel();
+						try {
+							if (error == null) subscriber.onComplete();
+							else subscriber.onError(error);
+						} catch (Throwable t) {}
+						break;
+					}
+					try {
+						subscriber.onNext(batch);
+					} catch (Throwable t) {
+						cancel(); // A failing subscriber is dropped
+					}
+				}
+				missed = work.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+	
+	// Merges batches, keeping the latest event of each property in the order of the latest writes
+	private static List<Persisted> coalesce(Iterable<List<Persisted>> batches) {
+		Map<String, Persisted> latest = new LinkedHashMap<String, Persisted>();
+		for (List<Persisted> batch : batches) {
+			for (Persisted event : batch) {
+				String key = event.directory().getPath() + File.separator + event.fieldName() + "_" + event.version();
+				latest.remove(key); // Moves it to the end
+				latest.put(key, event);
+			}
+		}
+		return Collections.unmodifiableList(new ArrayList<Persisted>(latest.values()));
+	}
+}
@@ -0,0 +1,53 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+
+/**
+ * A property written to storage by a save pass, as published to subscribers of PropertyDB.persisted
+ * @author chandler
+ *
+ */
+public final class Persisted {
+	
+	private final File directory;
+	private final String fieldName;
+	private final long version;
+	private final byte[] bytes;
+	
+	Persisted(File directory, String fieldName, long version, byte[] bytes) {
+		this.directory = directory;
+		this.fieldName = fieldName;
+		this.version = version;
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * @return The canonical directory of the property
+	 */
+	public File directory() {
+		return directory;
+	}
+	
+	public String fieldName() {
+		return fieldName;
+	}
+	
+	public long version() {
+		return version;
+	}
+	
+	/**
+	 * Returns the serialized property as written, before compression; shared by every subscriber, so it must not be modified.
+	 * Only available to subscribers that asked for it, and never for MapProperties, BufferProperties and ChunkedProperties,
+	 * which are written in formats of their own.
+	 * @return The serialized MutableProperty, readable with an ObjectInputStream, or null
+	 */
+	public byte[] bytes() {
+		return bytes;
+	}
+	
+	@Override
+	public String toString() {
+		return directory + File.separator + fieldName + "_" + version + (bytes == null ? "" : " (" + bytes.length + " bytes)");
+	}
+}
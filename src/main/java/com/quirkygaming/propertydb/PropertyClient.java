@@ -0,0 +1,319 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+
+/**
+ * Connects to a PropertyServer in another process on the same host. Every call is one round trip;
+ * to send many requests at once, queue them in a Batch. Requests are pipelined: the replies to a batch
+ * are read by a background thread as they arrive, while the rest of it is still being sent.
+ * Directories are relative to the server's root. Safe for use by several threads.
+ * @author chandler
+ *
+ */
+public final class PropertyClient<E extends Exception> {
+	
+	/**
+	 * The reply to one request of a batch, available once the batch is sent
+	 */
+	public static final class Reply<T> {
+		private final byte operation;
+		private boolean done = false;
+		private T value;
+		private String failure;
+		
+		Reply(byte operation) {
+			this.operation = operation;
+		}
+		
+		/**
+		 * @return The value, whether an update succeeded, or whether the property was there; null if the request failed
+		 * @throws IllegalStateException if the batch hasn't been sent
+		 */
+		public synchronized T get() {
+			if (!done) throw new IllegalStateException("Batch not sent");
+			return value;
+		}
+		
+		/**
+		 * @return The server's reason if the request failed, otherwise null
+		 */
+		public synchronized String failure() {
+			return failure;
+		}
+		
+		@SuppressWarnings("unchecked")
+		synchronized void complete(Object value, String failure) {
+			this.value = (T) value;
+			this.failure = failure;
+			done = true;
+			notifyAll();
+		}
+		
+		synchronized void await() throws InterruptedException {
+			while (!done) wait();
+		}
+	}
+	
+	/**
+	 * Requests queued to be sent together
+	 */
+	public final class Batch {
+		private final List<Object[]> requests = new ArrayList<Object[]>(); // Operation, directory, field name, version, values
+		private final List<Reply<?>> replies = new ArrayList<Reply<?>>();
+		
+		private Batch() {}
+		
+		/**
+		 * Loads a property on the server, creating it with an initial value if it doesn't exist
+		 */
+		public <T extends Serializable> Reply<T> initiate(String directory, String fieldName, long version, T initialValue) {
+			return add(Wire.INITIATE, directory, fieldName, version, initialValue, null);
+		}
+		
+		/**
+		 * Reads a property, loaded on the server or not; the value is null if it doesn't exist
+		 */
+		public <T extends Serializable> Reply<T> get(String directory, String fieldName, long version) {
+			return add(Wire.GET, directory, fieldName, version, null, null);
+		}
+		
+		/**
+		 * Sets a property, loading or creating it on the server
+		 */
+		public <T extends Serializable> Reply<Void> set(String directory, String fieldName, long version, T value) {
+			return add(Wire.SET, directory, fieldName, version, value, null);
+		}
+		
+		/**
+		 * Sets a property if its value equals the expected one; a null expected value matches a missing property
+		 * @return Whether the property was set
+		 */
+		public <T extends Serializable> Reply<Boolean> update(String directory, String fieldName, long version, T expected, T value) {
+			return add(Wire.UPDATE, directory, fieldName, version, expected, value);
+		}
+		
+		/**
+		 * @return Whether the property existed
+		 */
+		public Reply<Boolean> delete(String directory, String fieldName, long version) {
+			return add(Wire.DELETE, directory, fieldName, version, null, null);
+		}
+		
+		public Reply<Boolean> exists(String directory, String fieldName, long version) {
+			return add(Wire.EXISTS, directory, fieldName, version, null, null);
+		}
+		
+		/**
+		 * Unloads a property loaded on the server by a client
+		 * @return Whether it was loaded
+		 */
+		public Reply<Boolean> unload(String directory, String fieldName, long version) {
+			return add(Wire.UNLOAD, directory, fieldName, version, null, null);
+		}
+		
+		public int size() {
+			return requests.size();
+		}
+		
+		/**
+		 * Sends every queued request and waits for the replies; failed requests are passed to the error handler
+		 * @throws E Will throw a DatabaseException for each failed request, or if the connection failed
+		 */
+		public void send() throws E {
+			sendBatch(this);
+		}
+		
+		private <T> Reply<T> add(byte operation, String directory, String fieldName, long version, Object value, Object update) {
+			Reply<T> reply = new Reply<T>(operation);
+			requests.add(new Object[] {operation, directory, fieldName, version, value, update});
+			replies.add(reply);
+			return reply;
+		}
+	}
+	
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final ErrorHandler<E> handler;
+	private final Queue<Reply<?>> inFlight = new ConcurrentLinkedQueue<Reply<?>>();
+	private volatile IOException broken = null;
+	
+	/**
+	 * Connects to a server on the loopback interface
+	 * @param port The server's port
+	 * @param secret The server's secret
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E Will throw a DatabaseException if the connection or the handshake failed
+	 */
+	public PropertyClient(int port, String secret, ErrorHandler<E> handler) throws E {
+		this.handler = handler;
+		Socket socket = null;
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			out.write(Wire.MAGIC);
+			out.writeInt(Wire.VERSION);
+			out.writeUTF(secret == null ? "" : secret);
+			out.flush();
+			if (in.readByte() != Wire.OK) throw new IOException("Rejected by the server");
+		} catch (IOException e) {
+			if (socket != null) try {socket.close();} catch (IOException e1) {}
+			handler.handle(new DatabaseException("IOException while connecting to port " + port, e));
+			throw new IllegalStateException(e); // If the handler didn't throw
+		}
+		this.socket = socket;
+		Parallel.daemonThreads("PropertyDB-Client").newThread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}).start();
+	}
+	
+	public Batch batch() {
+		return new Batch();
+	}
+	
+	public <T extends Serializable> T initiate(String directory, String fieldName, long version, T initialValue) throws E {
+		Batch batch = batch();
+		Reply<T> reply = batch.initiate(directory, fieldName, version, initialValue);
+		batch.send();
+		return reply.get();
+	}
+	
+	public <T extends Serializable> T get(String directory, String fieldName, long version) throws E {
+		Batch batch = batch();
+		Reply<T> reply = batch.get(directory, fieldName, version);
+		batch.send();
+		return reply.get();
+	}
+	
+	public <T extends Serializable> void set(String directory, String fieldName, long version, T value) throws E {
+		Batch batch = batch();
+		batch.set(directory, fieldName, version, value);
+		batch.send();
+	}
+	
+	public <T extends Serializable> boolean update(String directory, String fieldName, long version, T expected, T value) throws E {
+		Batch batch = batch();
+		Reply<Boolean> reply = batch.update(directory, fieldName, version, expected, value);
+		batch.send();
+		return Boolean.TRUE.equals(reply.get());
+	}
+	
+	public boolean delete(String directory, String fieldName, long version) throws E {
+		Batch batch = batch();
+		Reply<Boolean> reply = batch.delete(directory, fieldName, version);
+		batch.send();
+		return Boolean.TRUE.equals(reply.get());
+	}
+	
+	public boolean exists(String directory, String fieldName, long version) throws E {
+		Batch batch = batch();
+		Reply<Boolean> reply = batch.exists(directory, fieldName, version);
+		batch.send();
+		return Boolean.TRUE.equals(reply.get());
+	}
+	
+	public boolean unload(String directory, String fieldName, long version) throws E {
+		Batch batch = batch();
+		Reply<Boolean> reply = batch.unload(directory, fieldName, version);
+		batch.send();
+		return Boolean.TRUE.equals(reply.get());
+	}
+	
+	public void close() {
+		try {socket.close();} catch (IOException e) {}
+	}
+	
+	private void sendBatch(Batch batch) throws E {
+		if (batch.requests.isEmpty()) return;
+		List<byte[]> values = new ArrayList<byte[]>(2 * batch.requests.size());
+		try { // Before anything is written, so that an unserializable value leaves the connection intact
+			for (Object[] request : batch.requests) {
+				values.add(Wire.serialize(request[4]));
+				values.add(Wire.serialize(request[5]));
+			}
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while serializing a value", e));
+			return;
+		}
+		
+		try {
+			synchronized (out) { // Replies arrive in the order requests are written
+				if (broken != null) throw broken;
+				for (int i = 0; i < batch.requests.size(); i++) {
+					Object[] request = batch.requests.get(i);
+					byte operation = (Byte) request[0];
+					byte[] value = values.get(2 * i);
+					byte[] update = values.get(2 * i + 1);
+					inFlight.add(batch.replies.get(i));
+					out.writeByte(operation);
+					out.writeUTF((String) request[1]);
+					out.writeUTF((String) request[2]);
+					out.writeLong((Long) request[3]);
+					if (operation == Wire.INITIATE || operation == Wire.SET || operation == Wire.UPDATE) Wire.writeValue(out, value);
+					if (operation == Wire.UPDATE) Wire.writeValue(out, update);
+				}
+				out.flush();
+			}
+			batch.replies.get(batch.replies.size() - 1).await();
+		} catch (IOException e) {
+			fail(e);
+			handler.handle(new DatabaseException("IOException while sending requests", e));
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			handler.handle(new DatabaseException("Interrupted while waiting for replies"));
+			return;
+		}
+		for (Reply<?> reply : batch.replies) {
+			String failure = reply.failure();
+			if (failure != null) handler.handle(new DatabaseException(failure));
+		}
+	}
+	
+	// Completes replies in order as they arrive
+	private void receive() {
+		try {
+			while (true) {
+				byte status = in.readByte();
+				Reply<?> reply = inFlight.poll();
+				if (reply == null) throw new IOException("Unexpected reply");
+				if (status != Wire.OK) {
+					reply.complete(null, in.readUTF());
+				} else if (reply.operation == Wire.INITIATE || reply.operation == Wire.GET) {
+					reply.complete(Wire.deserialize(Wire.readValue(in)), null);
+				} else if (reply.operation == Wire.SET) {
+					reply.complete(null, null);
+				} else {
+					reply.complete(in.readBoolean(), null);
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	// Fails every request waiting for a reply once the connection is lost
+	private void fail(IOException e) {
+		if (broken == null) broken = e;
+		close();
+		Reply<?> reply;
+		while ((reply = inFlight.poll()) != null) reply.complete(null, "Connection lost: " + e.getMessage());
+	}
+}
@@ -0,0 +1,30 @@
+package com.quirkygaming.propertydb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression algorithm for property files. The id is written into the header of every file
+ * the codec compresses, so a codec must keep its id and be registered (see PropertyDB.registerCodec)
+ * wherever files it wrote are read.
+ * @author chandler
+ *
+ */
+public interface PropertyCodec {
+	
+	/**
+	 * @return The id recorded in file headers, from 1 to 127; DeflateCodec uses 1
+	 */
+	byte id();
+	
+	/**
+	 * Wraps a stream so that everything written to it is compressed; closing the result closes out
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+	
+	/**
+	 * Wraps a stream written through compress; closing the result closes in
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+}
@@ -1,22 +1,35 @@
 package com.quirkygaming.propertydb;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.BufferProperty;
+import com.quirkygaming.propertylib.ChunkedProperty;
+import com.quirkygaming.propertylib.MapProperty;
 import com.quirkygaming.propertylib.MutableProperty;
 import com.quirkygaming.propertylib.Property;
 import com.quirkygaming.propertylib.PropertyObserver;
@@ -41,24 +54,51 @@ public final class PropertyDB {
 	// Stores current instance;
 	private static PropertyDB INSTANCE;
 	
+	// Stores the files; kept after closing so that files can still be read without a database
+	private static volatile StorageBackend storage = new FileBackend();
+	
+	// Times saves, loads and save passes; null for none
+	private static volatile PropertyMonitor monitor = null;
+	
 	// Stores the current token used to control this instance
 	private InitializationToken token = null;
 	
 	// "Clock" provider and close-handler
 	private CustomScheduler scheduler;
 	
-	// Stores running list of entries as initialized by users
-	private Map<MutableProperty<?>, DBEntry<?,?>> entries = Collections.synchronizedMap(new HashMap<MutableProperty<?>, DBEntry<?,?>>());
+	// Stores running list of entries as initialized by users; keyed by identity since properties compare by value
+	private Map<MutableProperty<?>, DBEntry<?,?>> entries = Collections.synchronizedMap(new IdentityHashMap<MutableProperty<?>, DBEntry<?,?>>());
+	
+	// Stores entries by location (directory, field name and version) to easily check for duplicates
+	private Map<DBEntry<?,?>, DBEntry<?,?>> locations = Collections.synchronizedMap(new HashMap<DBEntry<?,?>, DBEntry<?,?>>());
+	
+	// Interned directories, keyed by both absolute and canonical path
+	private Map<String, Directory> directories = new HashMap<String, Directory>();
 	
-	// Stores file locations to easily check for duplicates
-	private Map<String, DBEntry<?,?>> locations = Collections.synchronizedMap(new TreeMap<String, DBEntry<?,?>>());
+	// Queues changed properties for saving; shared by every registered property
+	private PropertyObserver<Object> observer;
 	
 	// Keeps track of elements waiting to be serialized on next clock pulse
 	private Set<DBEntry<?,?>> waiting = Collections.synchronizedSet(new LinkedHashSet<DBEntry<?,?>>());
 	
+	// Elements taken from 'waiting' by the running save pass but not yet saved
+	private Set<DBEntry<?,?>> saving = Collections.synchronizedSet(new HashSet<DBEntry<?,?>>());
+
 	// Ensures that two saves never run concurrently
 	private Object saveLock = new Object();
 	
+	// Compression of directories without their own setting; null for none
+	private volatile PropertyFormat.Compression compression = null;
+	
+	// Set by a deadline-bounded close to end a running save pass early
+	private volatile boolean closing = false;
+	
+	// Publishes what each save pass wrote
+	private final PersistPublisher published = new PersistPublisher();
+	
+	// Interval of progress reports during a deadline-bounded close
+	private static final long PROGRESS_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	
 	private PropertyDB(){}
 	
 	/**
@@ -75,6 +115,18 @@ public final class PropertyDB {
 		return initializeDB(new DefaultScheduler(period_millis));
 	}
 	
+	/**
+	 * Initializes the database with its files stored by a backend other than the file system
+	 * 
+	 * @param period_millis The time between every asynchronous write
+	 * @param backend Stores the files; see MemoryBackend and LatencyBackend
+	 * @return The token used to control the database
+	 * @throws IllegalInitializationException if the DB is already initialized
+	 */
+	public static InitializationToken initializeDB(int period_millis, StorageBackend backend) throws IllegalInitializationException {
+		return initializeDB(new DefaultScheduler(period_millis), backend);
+	}
+	
 	/**
 	 * This method should be called by some authoritative controller of a program to
 	 * initialize the database before users start registering their properties.
@@ -87,11 +139,42 @@ public final class PropertyDB {
 	 * @throws IllegalInitializationException if the DB is already initialized
 	 */
 	public static InitializationToken initializeDB(CustomScheduler scheduler) throws IllegalInitializationException {
+		return initializeDB(scheduler, new FileBackend());
+	}
+	
+	/**
+	 * Initializes the database with a custom scheduler and its files stored by a backend.
+	 * The backend is kept after the database is closed, for reading files without a database.
+	 * 
+	 * @param scheduler Use to implement a custom scheduler, or ExecutorScheduler to save on an executor
+	 * @param backend Stores the files; see FileBackend, MemoryBackend and LatencyBackend
+	 * @return The token used to control the database
+	 * @throws IllegalInitializationException if the DB is already initialized
+	 */
+	public static InitializationToken initializeDB(CustomScheduler scheduler, StorageBackend backend) throws IllegalInitializationException {
 		if (INSTANCE == null) {
 			assert debug("Initialized DB");
+			storage = backend;
 			INSTANCE = new PropertyDB();
 			INSTANCE.token = new InitializationToken();
 			INSTANCE.scheduler = scheduler;
+			INSTANCE.observer = new PropertyObserver<Object>() {
+				private final InitializationToken token = INSTANCE.token;
+				
+				public void onChange(Property<Object> modifiedProperty, EventType type) {
+					if (tokenIsValid(token)) {
+						DBEntry<?,?> entry = INSTANCE.entries.get(modifiedProperty);
+						if (entry == null) return;
+						PropertyMonitor monitor = PropertyDB.monitor;
+						Object wait = monitor == null ? null : monitor.beginMonitorWait(entry.fieldName);
+						synchronized (INSTANCE.waiting) {
+							if (wait != null) monitor.endMonitorWait(wait);
+							INSTANCE.waiting.add(entry);
+							assert debug("Caught " + type + " for " + entry.fieldName);
+						}
+					}
+				}
+			};
 			scheduler.scheduleRepeatingTask(INSTANCE.token, new Runnable(){
 				final InitializationToken token = INSTANCE.token;
 				
@@ -121,6 +204,7 @@ public final class PropertyDB {
 			INSTANCE.scheduler.onDatabaseClose();
 			assert debug("CLOSING SAVE");
 			INSTANCE.saveProperties();
+			INSTANCE.published.complete();
 			INSTANCE = null;
 			assert debug("CLOSED");
 		} else {
@@ -128,6 +212,110 @@ public final class PropertyDB {
 		}
 	}
 	
+	/**
+	 * Closes the database, saving pending properties on several threads in order of directory priority (see setSavePriority).
+	 * A running save pass is cut short and its remaining properties are included. Properties not being saved when
+	 * the timeout expires are appended to a recovery journal instead, which is much faster than saving them;
+	 * saves in progress are still waited for. Call recoverJournal after the next initialization, before loading properties.
+	 * Mapped BufferProperties are not journaled since their changes are already in the file's pages.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param threads Number of threads saving properties; 0 for the default
+	 * @param timeoutMillis Time to spend saving before the rest is journaled; leave a margin for writing the journal
+	 * @param journal File for the recovery journal; only created if something is journaled
+	 * @param listener Receives progress reports, or null
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The number of properties journaled
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <E extends Exception> int closeDatabase(InitializationToken token, int threads, long timeoutMillis, File journal, ShutdownListener listener, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		PropertyDB instance = INSTANCE;
+		assert debug("Closing DB with a deadline");
+		instance.closing = true;
+		instance.token = null;
+		instance.scheduler.onDatabaseClose();
+		try {
+			return instance.drain(threads > 0 ? threads : Parallel.DEFAULT_THREADS, deadline, journal, listener);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while writing recovery journal " + journal, e));
+			return 0;
+		} finally {
+			instance.published.complete();
+			INSTANCE = null;
+			assert debug("CLOSED");
+		}
+	}
+	
+	/**
+	 * Writes the properties in a recovery journal to their files and deletes it; see closeDatabase.
+	 * Works without an initialized database. The journal is kept if any property could not be written.
+	 * @param journal The recovery journal
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The number of properties recovered
+	 * @throws E
+	 */
+	public static <E extends Exception> int recoverJournal(File journal, ErrorHandler<E> handler) throws E {
+		if (!journal.exists()) return 0;
+		final List<DatabaseException> failures = new ArrayList<DatabaseException>();
+		int records;
+		
+		try {
+			records = Journal.replay(journal, new Journal.Replay() {
+				public void record(File directory, String fieldName, long version, MutableProperty<?> property) {
+					try {
+						Directory dir = directoryOf(directory);
+						PropertyDB instance = INSTANCE;
+						if (instance != null && instance.locations.containsKey(new DBEntry<Object, Exception>(null, dir, fieldName, version, null))) {
+							failures.add(new DatabaseException("Property already loaded: " + fieldName + " version " + version));
+							return;
+						}
+						property.update(); // Marks the whole value for writing
+						recover(dir, fieldName, version, property);
+					} catch (IOException e) {
+						failures.add(new DatabaseException("IOException while recovering property: " + fieldName + " version " + version, e));
+					}
+				}
+			});
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while reading recovery journal " + journal, e));
+			return 0;
+		} catch (ClassNotFoundException e) {
+			handler.handle(new DatabaseException("ClassNotFoundException while reading recovery journal " + journal, e));
+			return 0;
+		}
+		
+		if (failures.isEmpty() && !journal.delete()) {
+			handler.handle(new DatabaseException("Could not delete recovery journal " + journal));
+		}
+		for (DatabaseException failure : failures) handler.handle(failure);
+		return records - failures.size();
+	}
+	
+	// Writes a property that isn't loaded
+	private static <T> void recover(Directory dir, String fieldName, long version, MutableProperty<T> property) throws IOException {
+		new DBEntry<T, RuntimeException>(property, dir, fieldName, version, null).write();
+	}
+	
+	/**
+	 * Sets the order in which a deadline-bounded closeDatabase saves the properties of a directory
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory The directory
+	 * @param priority Higher priorities are saved first; the default is 0
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <E extends Exception> void setSavePriority(InitializationToken token, File directory, int priority, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		try {
+			INSTANCE.directory(directory).priority = priority;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while configuring directory " + directory, e));
+		}
+	}
+	
 	/**
 	 * Forces the database to write to disk
 	 * @param token The token passed to the database manager who initialized the database
@@ -142,6 +330,27 @@ public final class PropertyDB {
 		}
 	}
 	
+	/**
+	 * Returns the publisher of the properties written by save passes, for consumers that should only see
+	 * changes once they are in storage. Its subscribers are completed when the database closes.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @return The publisher of the running database
+	 * @throws IllegalInitializationException if the token is invalid
+	 */
+	public static PersistPublisher persisted(InitializationToken token) throws IllegalInitializationException {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		return INSTANCE.published;
+	}
+	
+	/**
+	 * Sets the monitor that times saves, loads, save passes and waits of property observers for the save queue.
+	 * Like the storage backend, it may be set before initialization and is kept after the database is closed.
+	 * @param monitor The monitor, or null for none
+	 */
+	public static void setMonitor(PropertyMonitor monitor) {
+		PropertyDB.monitor = monitor;
+	}
+	
 	/**
 	 * Check if the database has been initialized
 	 * @return True if initialized
@@ -159,41 +368,28 @@ public final class PropertyDB {
 		return initialized() && token != null && token == INSTANCE.token;
 	}
 	
-	private static class DBEntry<T, E extends Exception> {
-		
-		MutableProperty<T> mutable;
-		File location;
-		transient String canonicalPath = null;
-		ErrorHandler<E> handler;
-		String fieldName; long version;
-		transient PropertyObserver<T> propertyObserver = null;
-		
-		void killObserver() {
-			mutable.removeObserver(propertyObserver);
-		}
-		
-		synchronized void save() {
-			try {
-				if (!location.exists()) {
-					assert debug("Mkdirs for " + fieldName);
-					new File(location.getParent()).mkdirs();
-				}
-				ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(location));
-				synchronized(mutable) {
-					oos.writeObject(mutable);
+	@SuppressWarnings("unchecked")
+	private <T> PropertyObserver<T> observer() {
+		return (PropertyObserver<T>) (PropertyObserver<?>) observer;
+	}
+	
+	/**
+	 * Returns the interned Directory for a path, creating it on first use
+	 */
+	private Directory directory(File directory) throws IOException {
+		String absolute = directory.getAbsolutePath();
+		synchronized (directories) {
+			Directory dir = directories.get(absolute);
+			if (dir == null) {
+				String canonical = directory.getCanonicalPath();
+				dir = directories.get(canonical);
+				if (dir == null) {
+					dir = new Directory(new File(canonical));
+					directories.put(canonical, dir);
 				}
-				oos.close();
-				
-			} catch (FileNotFoundException e) {
-				//TODO Don't really like this
-				try {handler.handle(new DatabaseException("FileNotFoundException while saving property: " + fieldName + " version " + version, e));} catch (Exception e1) {}
-			} catch (IOException e) {
-				try {handler.handle(new DatabaseException("IOException while saving property: " + fieldName + " version " + version, e));} catch (Exception e1) {}
+				directories.put(absolute, dir);
 			}
-		}
-		
-		public int hashCode() {
-			return mutable.hashCode();
+			return dir;
 		}
 	}
 	
@@ -207,205 +403,1267 @@ public final class PropertyDB {
 		synchronized (waiting) { // Transfer all saves to saveQueue
 			if (waiting.size() == 0) return; 
 			saveQueue.addAll(waiting);
+			saving.addAll(waiting);
 			waiting.clear();
 		}
 		synchronized (saveLock) { // Process saveQueue
+			PropertyMonitor monitor = PropertyDB.monitor;
+			Object pass = monitor == null ? null : monitor.beginSavePass();
+			List<Persisted> persisted = published.active() ? new ArrayList<Persisted>(saveQueue.size()) : null;
+			boolean bytes = persisted != null && published.wantsBytes();
+			int saved = 0;
 			for (DBEntry<?,?> entry : saveQueue) {
-				assert debug("Saving " + entry.fieldName);
-				entry.save();
+				if (closing) break; // The rest stays in 'saving' for the closing drain
+				synchronized (entry) {
+					if (!saving.remove(entry)) continue; // Already saved by unloadProperty
+					assert debug("Saving " + entry.fieldName);
+					entry.save(persisted, bytes);
+					saved++;
+				}
 			}
 			saveQueue.clear();
+			if (pass != null) monitor.endSavePass(pass, saved);
+			if (persisted != null) published.publish(persisted);
 		}
 	}
 	
-	private static File getPropertyLocation(String fieldName, long version, File directory) {
-		return new File(directory.getAbsolutePath(), fieldName + "_" + version + ".property");
+	/**
+	 * Saves everything pending in parallel until the deadline, then journals what hasn't been started
+	 * @return The number of properties journaled
+	 */
+	private int drain(int threads, long deadline, File journal, ShutdownListener listener) throws IOException {
+		synchronized (saveLock) {
+			final List<DBEntry<?,?>> queue;
+			synchronized (waiting) {
+				saving.addAll(waiting); // Joins what a cut short pass left
+				waiting.clear();
+				queue = new ArrayList<DBEntry<?,?>>(saving);
+			}
+			Collections.sort(queue, new Comparator<DBEntry<?,?>>() {
+				public int compare(DBEntry<?,?> a, DBEntry<?,?> b) {
+					return Integer.compare(b.directory.priority, a.directory.priority);
+				}
+			});
+			
+			final List<Persisted> persisted = published.active() ? Collections.synchronizedList(new ArrayList<Persisted>(queue.size())) : null;
+			final boolean bytes = persisted != null && published.wantsBytes();
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger saved = new AtomicInteger();
+			Runnable worker = new Runnable() {
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < queue.size()) {
+						DBEntry<?,?> entry = queue.get(i);
+						synchronized (entry) {
+							if (!saving.remove(entry)) continue; // Already saved by unloadProperty
+							entry.save(persisted, bytes);
+						}
+						saved.incrementAndGet();
+					}
+				}
+			};
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, queue.size())), workerThreads("PropertyDB-Close"));
+			for (int t = 0; t < threads && t < queue.size(); t++) pool.execute(worker);
+			pool.shutdown();
+			
+			try {
+				long remaining;
+				while ((remaining = deadline - System.nanoTime()) > 0 && !pool.awaitTermination(Math.min(remaining, PROGRESS_NANOS), TimeUnit.NANOSECONDS)) {
+					if (listener != null) listener.onProgress(saved.get(), queue.size());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt(); // Treated as the deadline
+			}
+			
+			int journaled = 0;
+			int unstarted = Math.min(next.getAndSet(queue.size()), queue.size()); // Workers stop after their current save
+			if (unstarted < queue.size()) {
+				assert debug("Journaling " + (queue.size() - unstarted) + " properties");
+				Journal writer = new Journal(journal);
+				try {
+					for (DBEntry<?,?> entry : queue.subList(unstarted, queue.size())) {
+						synchronized (entry) {
+							if (saving.remove(entry) && writer.append(entry)) journaled++;
+						}
+					}
+				} finally {
+					writer.close();
+				}
+			}
+			
+			try {
+				while (!pool.awaitTermination(1, TimeUnit.MINUTES));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (listener != null) listener.onProgress(saved.get(), queue.size());
+			if (persisted != null) published.publish(new ArrayList<Persisted>(persisted));
+			return journaled;
+		}
 	}
 	
 	/**
-	 * Checks if a property exists before loading it
-	 * @param directory Location in which properties are stored (can be different for different properties)
-	 * @param fieldName Name of the property
-	 * @param version Version, used for checking existence of previous versions
-	 * @return
+	 * Returns the backend all files are read and written through: the one the database was last initialized with,
+	 * which stays in use after it is closed, or a FileBackend before the first initialization
 	 */
-	public static boolean propertyExists(File directory, String fieldName, long version) {
-		// Loaded must be checked in case the save cycle has not gone through yet
-		return getPropertyLocation(fieldName, version, directory).exists() || loaded(fieldName, version);
+	static StorageBackend storage() {
+		return storage;
+	}
+	
+	static PropertyMonitor monitor() {
+		return monitor;
 	}
 	
 	/**
-	 * Checks if a property is loaded
-	 * @param fieldName Name of the property
-	 * @return
+	 * Returns the threads for bulk operations: those of an ExecutorScheduler that supplies them, otherwise daemon threads
 	 */
-	public static boolean loaded(String fieldName) {
-		if (!initialized()) return false;
-		for (DBEntry<?,?> entry : INSTANCE.entries.values()) {
-			if (entry.fieldName.equals(fieldName)) return true;
+	static ThreadFactory workerThreads(String name) {
+		PropertyDB instance = INSTANCE;
+		if (instance != null && instance.scheduler instanceof ExecutorScheduler) {
+			ThreadFactory workers = ((ExecutorScheduler) instance.scheduler).workerThreads();
+			if (workers != null) return workers;
 		}
-		return false;
+		return Parallel.daemonThreads(name);
 	}
 	
 	/**
-	 * Checks if a property is loaded
-	 * @param fieldName Name of the property
-	 * @param version Property version
-	 * @return
+	 * Returns the interned Directory if the database is running, otherwise a temporary one
 	 */
-	public static boolean loaded(String fieldName, long version) {
-		if (!initialized()) return false;
-		for (DBEntry<?,?> entry : INSTANCE.entries.values()) {
-			if (entry.version == version && entry.fieldName.equals(fieldName)) return true;
+	static Directory directoryOf(File directory) throws IOException {
+		PropertyDB instance = INSTANCE;
+		if (instance != null) return instance.directory(directory);
+		return new Directory(directory.getCanonicalFile());
+	}
+	
+	/**
+	 * Returns the interned Directory if it has been used since the database was initialized
+	 */
+	static Directory internedDirectory(File directory) {
+		PropertyDB instance = INSTANCE;
+		if (instance == null) return null;
+		synchronized (instance.directories) {
+			return instance.directories.get(directory.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Checks whether any property is loaded from a directory
+	 */
+	static boolean loadedIn(Directory directory) {
+		PropertyDB instance = INSTANCE;
+		if (instance == null) return false;
+		synchronized (instance.entries) {
+			for (DBEntry<?,?> entry : instance.entries.values()) {
+				if (entry.directory == directory) return true;
+			}
 		}
 		return false;
 	}
 	
 	/**
-	 * Creates or loads the specified property.  
-	 * If an async scheduler is being used, properties must be modified inside a synchronized
-	 *      block that locks the MutableProperty's monitor: i.e.:
-	 * 
-	 * synchronized(mutableProperty) { // Lock the object to prevent inconsistent states from being written
-	 *   // Perform modifications
-	 *   mutableProperty.get().modify()...
-	 * }
-	 * mutableProperty.update(); // Signal PropertyDB to write changes
-	 * 
-	 * @param directory Location in which properties are stored (can be different for different properties)
-	 * @param fieldName Name of the property
-	 * @param version Version, used for checking existence of previous versions
-	 * @param initialValue Initial value if the property doesn't exist
+	 * Builds an in-memory existence index of a directory from a single scan, so that propertyExists
+	 * answers most lookups, and all negative ones, without touching the filesystem.
+	 * The index is kept current by this database's own saves and deletes; call again to rescan
+	 * if other processes write to the directory.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory Location in which properties are stored
 	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
-	 * @return A PropertyLib MutableProperty with the desired type
-	 * @throws E Will throw a DatabaseException if the loading criteria don't match the file
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
 	 */
-	@SuppressWarnings("unchecked")
-	public static <T extends Serializable, E extends Exception> MutableProperty<T> initiateProperty(File directory, final String fieldName, final long version, T initialValue, final ErrorHandler<E> handler) throws E {
-		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
-		
-		final MutableProperty<T> property;
-		final File location = getPropertyLocation(fieldName, version, directory);
-		String canonical = null;
-		
-		boolean created = false;
-		
+	public static <E extends Exception> void indexDirectory(InitializationToken token, File directory, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
 		try {
-			canonical = location.getCanonicalPath();
-			
-			if (INSTANCE.locations.containsKey(canonical)) {
-				handler.handle(new DatabaseException("Property already loaded: " + fieldName + " version " + version));
-				return null;
+			Directory dir = INSTANCE.directory(directory);
+			synchronized (dir) {
+				if (dir.index == null) dir.index = new ExistenceIndex(dir);
+				else dir.index.rebuild();
 			}
-			
-			if (location.exists()) {
-				ObjectInputStream ois = new ObjectInputStream(new FileInputStream(location));
-				Object obj = ois.readObject();
-				ois.close();
-				property = (MutableProperty<T>) obj;
-				assert debug("Loaded " + fieldName);
-			} else {
-				assert debug("Created " + fieldName);
-				property = MutableProperty.newProperty(initialValue);
-				created = true;
-			}
-		} catch (ClassCastException e) {
-			handler.handle(new DatabaseException("ClassCastException while loading property: " + fieldName + " version " + version, e));
-			return null;
-		} catch (ClassNotFoundException e) {
-			handler.handle(new DatabaseException("ClassNotFoundException while loading property: " + fieldName + " version " + version, e));
-			return null;
 		} catch (IOException e) {
-			handler.handle(new DatabaseException("IOException while loading property: " + fieldName + " version " + version, e));
-			return null;
-		}
-		
-		final DBEntry<T, E> entry = new DBEntry<T, E>();
-		entry.fieldName = fieldName;
-		entry.version = version;
-		entry.mutable = property;
-		entry.handler = handler;
-		entry.location = location;
-		entry.canonicalPath = canonical;
-		
-		INSTANCE.entries.put(property, entry);
-		INSTANCE.locations.put(canonical, entry);
-		if (created) {
-			synchronized (INSTANCE.waiting) {
-				INSTANCE.waiting.add(entry); // Initial save
-			}
+			handler.handle(new DatabaseException("IOException while indexing directory " + directory, e));
 		}
-		
-		entry.propertyObserver = new PropertyObserver<T>() {
-			private final InitializationToken token = INSTANCE.token;
-			
-			public void onChange(Property<T> modifiedProperty, EventType type) {
-				if (tokenIsValid(token)) {
-					synchronized (INSTANCE.waiting) {
-						INSTANCE.waiting.add(entry);
-						assert debug("Caught " + type + " for " + entry.fieldName);
-					}
-				}
-			}
-		};
-		
-		property.addObserver(entry.propertyObserver, EventType.SET, EventType.UPDATE);
-		
-		return property;
 	}
 	
 	/**
-	 * Delete a property (loaded or unloaded) using location and version information
+	 * Checks every property file of a directory on several threads without deserializing anything, so that damaged
+	 * files are found at startup rather than when they are loaded. Unless checksums are requested only headers and
+	 * lengths are read; otherwise every file written with a checksum is read once and checked. Files of loaded
+	 * properties are skipped. Works without an initialized database.
 	 * @param directory Location in which properties are stored
-	 * @param fieldName Name of the property
-	 * @param version Version, used for checking existence of previous versions
+	 * @param checksums Whether to check checksums as well as headers
+	 * @param quarantine Whether to move damaged files into the directory's ".quarantine" subdirectory, so that their
+	 * properties are created afresh when next loaded
+	 * @param threads Number of threads reading files; 0 for the default
 	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
-	 * @throws E
+	 * @return The damaged files and counts, or null if the directory couldn't be listed
+	 * @throws E Will throw a DatabaseException for files that couldn't be read or quarantined
 	 */
-	public static <E extends Exception> void deleteProperty(File directory, final String fieldName, final long version, final ErrorHandler<E> handler) throws E {
-		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
-		final File location = getPropertyLocation(fieldName, version, directory);
-		String canonical = null;
-		
+	public static <E extends Exception> Verification verifyDirectory(File directory, final boolean checksums, final boolean quarantine, int threads, ErrorHandler<E> handler) throws E {
+		long start = System.nanoTime();
+		final Directory dir;
+		final List<Object[]> stored = new ArrayList<Object[]>();
 		try {
-			canonical = location.getCanonicalPath();
+			dir = directoryOf(directory);
+			dir.scan(new Directory.Visitor() {
+				public void visit(String fieldName, long version) {
+					stored.add(new Object[] {fieldName, version});
+				}
+			});
 		} catch (IOException e) {
-			handler.handle(new DatabaseException("IOException while deleting property: " + fieldName + " version " + version, e));
-			return;
+			handler.handle(new DatabaseException("IOException while scanning " + directory, e));
+			return null;
 		}
 		
-		if (INSTANCE.locations.containsKey(canonical)) {
-			// Unload then delete
-			deleteProperty(INSTANCE.locations.get(canonical).mutable, handler);
-		} else {
+		final Verification result = new Verification();
+		Map<Object[], Exception> failures = Parallel.forEach(stored, threads > 0 ? threads : Parallel.DEFAULT_THREADS, new Parallel.Task<Object[]>() {
+			public void run(Object[] item) throws IOException {
+				String fieldName = (String) item[0];
+				long version = (Long) item[1];
+				if (loaded(dir, fieldName, version)) {
+					result.skipped.incrementAndGet(); // Saved from memory; the file is about to be replaced anyway
+					return;
+				}
+				File location = dir.locate(fieldName, version);
+				result.bytes.addAndGet(storage.length(location));
+				try {
+					if (PropertyFormat.verify(location, checksums)) result.checked.incrementAndGet();
+					else result.unchecked.incrementAndGet();
+				} catch (CorruptPropertyException e) {
+					result.corrupt(location, e.getReason());
+					if (quarantine) {
+						quarantine(dir, fieldName, version);
+						result.quarantined.incrementAndGet();
+					}
+				}
+			}
+		});
+		for (Map.Entry<Object[], Exception> failure : failures.entrySet()) {
+			Object[] item = failure.getKey();
+			handler.handle(new DatabaseException("IOException while verifying property: " + item[0] + " version " + item[1], failure.getValue()));
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+	
+	// Moves a damaged property file, and its MapProperty change log, into the directory's quarantine
+	private static void quarantine(Directory dir, String fieldName, long version) throws IOException {
+		File location = dir.locate(fieldName, version);
+		File into = new File(dir.file, Directory.QUARANTINE);
+		dir.writes.readLock().lock();
+		try {
+			dir.changed(move(location, into));
+			dir.changed(location);
+			File log = MapLog.of(location);
+			if (storage.exists(log)) dir.changed(move(log, into));
+		} finally {
+			dir.writes.readLock().unlock();
+		}
+		deleted(dir, fieldName, version);
+		assert debug("Quarantined " + fieldName + " version " + version);
+	}
+	
+	// Returns where the file was moved to
+	private static File move(File file, File into) throws IOException {
+		File target = new File(into, file.getName());
+		for (int n = 1; storage.exists(target); n++) target = new File(into, file.getName() + "." + n);
+		InputStream in = storage.read(file);
+		try {
+			OutputStream out = storage.write(target);
 			try {
-				Files.delete(location.toPath());
-			} catch (IOException e) {
-				handler.handle(new DatabaseException("IOException while deleting property: " + fieldName + " version " + version, e));
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+			} finally {
+				out.close();
 			}
+		} finally {
+			in.close();
 		}
+		storage.delete(file);
+		return target;
 	}
 	
 	/**
-	 * Deletes a loaded property
-	 * @param property The loaded property
+	 * Starts an online snapshot of a directory into a new subdirectory of target, named after the current time.
+	 * The files changed since the previous snapshot are hard-linked into a staging area while saving continues, or
+	 * copied if they are modified in place. Save passes and other writes to the directory are then paused only while
+	 * the files changed in the meantime are linked again, so the pause doesn't grow with the number of files.
+	 * The staged files are copied into the snapshot in the background, and files unchanged since the previous snapshot
+	 * in target are hard-linked from it, so every snapshot is complete but takes only the space of what changed.
+	 * Files modified in place that changed in the meantime, such as chunked properties and change logs, are copied
+	 * just after the pause, so they may include changes saved since; each is still captured between two of its saves.
+	 * Mapped properties are excluded from the consistency guarantee: their pages are written without pausing, so they
+	 * are forced and copied as they are, which may be in the middle of a change.
+	 * The first snapshot of a directory after initialization includes every file. Requires a FileBackend.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory Location in which properties are stored
+	 * @param target Directory holding the snapshots, preferably on the same filesystem as the previous ones
 	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
-	 * @throws E
+	 * @return The snapshot being written, or null if it couldn't be started
+	 * @throws E Will throw a DatabaseException if a snapshot of the directory is already being written or the files
+	 * couldn't be captured; failures while writing in the background are passed to the handler as well
 	 */
-	public static <E extends Exception> void deleteProperty(MutableProperty<?> property, final ErrorHandler<E> handler) throws E {
-		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
-		DBEntry<?, ?> entry = INSTANCE.entries.get(property);
-		
-		File result = unloadProperty(property, handler);
-		
-		if (result == null) return; // Doesn't exist, handled already
-		
+	public static <E extends Exception> Snapshot snapshot(InitializationToken token, File directory, File target, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		final Directory dir;
 		try {
-			Files.delete(entry.location.toPath());
+			if (!(storage instanceof FileBackend)) throw new DatabaseException("Snapshots require a FileBackend");
+			dir = INSTANCE.directory(directory);
+			synchronized (dir) {
+				if (dir.snapshotting) throw new DatabaseException("A snapshot of " + directory + " is already being written");
+				dir.snapshotting = true;
+			}
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
 		} catch (IOException e) {
-			handler.handle(new DatabaseException("IOException while deleting property: " + entry.fieldName + " version " + entry.version, e));
+			handler.handle(new DatabaseException("IOException while configuring directory " + directory, e));
+			return null;
 		}
-	}
+		
+		SnapshotWriter writer;
+		try {
+			target = target.getCanonicalFile();
+			SnapshotWriter.delete(SnapshotWriter.staging(dir).toPath()); // Left by an interrupted snapshot
+			File previous = SnapshotWriter.previous(target);
+			File location = SnapshotWriter.newLocation(target, previous);
+			File base;
+			synchronized (dir) {
+				base = dir.lastSnapshot;
+			}
+			Set<File> changes;
+			dir.writes.writeLock().lock(); // Files changed from here on are linked again during the pause
+			try {
+				changes = dir.changes;
+				dir.changes = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+			} finally {
+				dir.writes.writeLock().unlock();
+			}
+			boolean incremental = changes != null && previous != null && previous.equals(base);
+			writer = new SnapshotWriter(dir, location, previous, incremental, handler);
+			writer.stage(incremental ? changes : SnapshotWriter.files(dir, target), INSTANCE.writers(dir));
+			
+			List<File> linked;
+			synchronized (INSTANCE.saveLock) { // Between save passes
+				long start = System.nanoTime();
+				dir.writes.writeLock().lock();
+				try {
+					changes = dir.changes;
+					dir.changes = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+					linked = writer.restage(changes);
+				} finally {
+					dir.writes.writeLock().unlock();
+				}
+				writer.snapshot().pauseNanos = System.nanoTime() - start;
+			}
+			writer.copyInPlace(linked, INSTANCE.writers(dir));
+		} catch (IOException e) {
+			synchronized (dir) {
+				dir.lastSnapshot = null; // The changes may be lost; the next snapshot includes every file
+				dir.snapshotting = false;
+			}
+			handler.handle(new DatabaseException("IOException while capturing snapshot of " + directory, e));
+			return null;
+		}
+		assert debug("Captured " + writer.snapshot().changed() + " files of " + dir + " in " + writer.snapshot().pauseMicros() + " us");
+		Parallel.daemonThreads("PropertyDB-Snapshot").newThread(writer).start();
+		return writer.snapshot();
+	}
+	
+	// Loaded entries of a directory that write their files in place, by file, for snapshots to copy while holding them
+	private Map<File, DBEntry<?,?>> writers(Directory dir) {
+		Map<File, DBEntry<?,?>> writers = new HashMap<File, DBEntry<?,?>>();
+		synchronized (locations) {
+			for (DBEntry<?,?> entry : locations.values()) {
+				if (entry.directory != dir) continue;
+				if (entry.mutable instanceof MapProperty) {
+					writers.put(MapLog.of(entry.location()), entry);
+				} else if (entry.mutable instanceof ChunkedProperty || entry.mutable instanceof BufferProperty) {
+					writers.put(entry.location(), entry);
+				}
+			}
+		}
+		return writers;
+	}
+	
+	/**
+	 * Opens a read-only view of a directory that another process writes, for a near-live view without interfering with
+	 * the writer. Properties obtained from the follower are reloaded when the writer saves them, and their observers
+	 * signaled; nothing else in the directory is read. Works without an initialized database. Requires a FileBackend.
+	 * @param directory Location in which properties are stored
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException.
+	 * Receives failures to reload properties on the follower's thread.
+	 * @return The follower, or null if the directory can't be watched
+	 * @throws E
+	 */
+	public static <E extends Exception> Follower<E> follow(File directory, ErrorHandler<E> handler) throws E {
+		try {
+			if (!(storage instanceof FileBackend)) throw new DatabaseException("Followers require a FileBackend");
+			return Follower.start(new Directory(directory.getCanonicalFile()), handler); // Separate from the interned one, which may migrate on read
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while following " + directory, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Packs every file of a directory, including SubDB indexes, deduplicated values and shards, into a single archive
+	 * that can be moved between hosts much faster than the files themselves. Files are read on several threads.
+	 * The directory shouldn't be written meanwhile; export a closed database or a snapshot. Works without an initialized database.
+	 * @param directory Location in which properties are stored
+	 * @param archive The archive to write; replaced once complete
+	 * @param threads Number of threads reading files; 0 for the default
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The number of files packed
+	 * @throws E Will throw a DatabaseException if the archive couldn't be written, or for files that couldn't be read,
+	 * which are left out
+	 */
+	public static <E extends Exception> int exportDirectory(File directory, File archive, int threads, ErrorHandler<E> handler) throws E {
+		Map<File, Exception> failures = new LinkedHashMap<File, Exception>();
+		int count;
+		try {
+			count = Archive.write(directoryOf(directory).file, archive, threads > 0 ? threads : Parallel.DEFAULT_THREADS, failures);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while exporting " + directory + " to " + archive, e));
+			return 0;
+		}
+		for (Map.Entry<File, Exception> failure : failures.entrySet()) {
+			handler.handle(new DatabaseException("IOException while exporting " + failure.getKey(), failure.getValue()));
+		}
+		return count;
+	}
+	
+	/**
+	 * Restores a directory from an archive written by exportDirectory on several threads, replacing files of the same name.
+	 * To restore lazily instead, so that the database starts before the import has finished, initialize it with an
+	 * ArchiveBackend. Works without an initialized database.
+	 * @param archive The archive
+	 * @param directory Location in which to restore the properties
+	 * @param threads Number of threads writing files; 0 for the default
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The number of files restored
+	 * @throws E Will throw a DatabaseException if the archive is damaged, properties of the directory are loaded,
+	 * or for files that couldn't be restored
+	 */
+	public static <E extends Exception> int importArchive(File archive, File directory, int threads, ErrorHandler<E> handler) throws E {
+		final Archive opened;
+		final Directory dir;
+		try {
+			dir = directoryOf(directory);
+			if (loadedIn(dir)) throw new DatabaseException("Properties of " + directory + " are loaded");
+			opened = Archive.open(archive);
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return 0;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while opening archive " + archive, e));
+			return 0;
+		}
+		
+		final AtomicInteger restored = new AtomicInteger();
+		Map<Archive.Entry, Exception> failures;
+		try {
+			failures = Parallel.forEach(opened.entries(), threads > 0 ? threads : Parallel.DEFAULT_THREADS, new Parallel.Task<Archive.Entry>() {
+				public void run(Archive.Entry entry) throws IOException {
+					OutputStream out = storage.write(entry.in(dir.file));
+					try {
+						out.write(opened.read(entry));
+					} finally {
+						out.close();
+					}
+					restored.incrementAndGet();
+				}
+			});
+		} finally {
+			try {opened.close();} catch (IOException e) {}
+		}
+		
+		try { // Pick up shards, deduplicated values and everything else the import changed
+			dir.shardLevels = Directory.readShardLevels(dir.file);
+			dir.store = !storage.list(new File(dir.file, Dedup.STORE)).isEmpty();
+			dir.changes = null;
+			if (dir.index != null) dir.index.rebuild();
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while rescanning " + directory, e));
+		}
+		for (Map.Entry<Archive.Entry, Exception> failure : failures.entrySet()) {
+			handler.handle(new DatabaseException("IOException while importing " + failure.getKey().path, failure.getValue()));
+		}
+		return restored.get();
+	}
+	
+	/**
+	 * Compresses property files saved from now on if their serialized size reaches a threshold.
+	 * The codec is recorded in each file, and files stay readable whatever compression they were written with.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory Directory to configure, or null to configure every directory without its own setting
+	 * @param codec The codec, e.g. new DeflateCodec(), or null to store files uncompressed
+	 * @param threshold Serialized size in bytes from which files are compressed
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <E extends Exception> void setCompression(InitializationToken token, File directory, PropertyCodec codec, int threshold, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		if (codec != null) registerCodec(codec);
+		PropertyFormat.Compression compression = new PropertyFormat.Compression(codec, threshold);
+		if (directory == null) {
+			INSTANCE.compression = compression;
+			return;
+		}
+		try {
+			INSTANCE.directory(directory).compression = compression;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while configuring directory " + directory, e));
+		}
+	}
+	
+	/**
+	 * Stores the values of a directory's properties saved from now on by content, so properties with identical
+	 * serialized values share one reference-counted file in the directory's ".dedup" store, and saving an unchanged
+	 * value writes nothing. Immutable values such as strings and boxed primitives read from the store are also
+	 * interned, so identical ones share an instance. Files stay readable once deduplication is turned off.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory The directory
+	 * @param enabled Whether to deduplicate
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <E extends Exception> void setDeduplication(InitializationToken token, File directory, boolean enabled, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		try {
+			Directory dir = INSTANCE.directory(directory);
+			if (enabled) dir.store = true;
+			dir.deduplicate = enabled;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while configuring directory " + directory, e));
+		}
+	}
+	
+	/**
+	 * Registers a converter from one version of a directory's properties to the next. Once registered, loading a
+	 * property at a version that isn't stored converts the newest older version that is, through as many converters
+	 * as needed; the converted property is written and the older file deleted. Use migrate to convert every stored
+	 * property in the background instead. Only plain properties, as created by initiateProperty, can be converted.
+	 * Converters are forgotten when the database is closed.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory The directory
+	 * @param fieldName Name of the property to convert, or null to convert every property of the directory
+	 * @param fromVersion The version converted from; the converter produces fromVersion + 1
+	 * @param converter The converter
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <A, B extends Serializable, E extends Exception> void registerConverter(InitializationToken token, File directory, String fieldName, long fromVersion, VersionConverter<A, B> converter, ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		try {
+			Directory dir = INSTANCE.directory(directory);
+			synchronized (dir) {
+				if (dir.migrations == null) dir.migrations = new Migrations();
+			}
+			dir.migrations.register(fieldName, fromVersion, converter);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while configuring directory " + directory, e));
+		}
+	}
+	
+	/**
+	 * Converts every stored property of a directory that has a registered converter to the newest version it can reach,
+	 * on background threads. Properties loaded at either version are skipped, and properties loaded before the migration
+	 * reaches them are converted on demand. Errors are passed to the handler on the migration threads.
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param directory The directory
+	 * @param threads Number of threads converting files; 0 for the default
+	 * @param maxPerSecond Maximum number of properties converted per second; 0 for no limit
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The running migration, or null if the directory could not be opened
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <E extends Exception> Migration migrate(final InitializationToken token, File directory, final int threads, int maxPerSecond, final ErrorHandler<E> handler) throws E {
+		if (!tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		final Directory dir;
+		try {
+			dir = INSTANCE.directory(directory);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while configuring directory " + directory, e));
+			return null;
+		}
+		final Migration migration = new Migration(maxPerSecond);
+		final Migrations migrations = dir.migrations;
+		if (migrations == null) {
+			migration.finish();
+			return migration;
+		}
+		
+		Parallel.daemonThreads("PropertyDB-Migration").newThread(new Runnable() {
+			public void run() {
+				try {
+					final List<Object[]> stored = new ArrayList<Object[]>();
+					dir.scan(new Directory.Visitor() {
+						public void visit(String fieldName, long version) {
+							if (migrations.converter(fieldName, version) != null) stored.add(new Object[] {fieldName, version});
+						}
+					});
+					migration.total = stored.size();
+					assert debug("Migrating " + stored.size() + " properties in " + dir);
+					
+					Parallel.forEach(stored, threads > 0 ? threads : Parallel.DEFAULT_THREADS, new Parallel.Task<Object[]>() {
+						public void run(Object[] item) {
+							if (migration.isCancelled() || !tokenIsValid(token)) return;
+							migration.throttle();
+							String fieldName = (String) item[0];
+							long from = (Long) item[1];
+							try {
+								if (migrate(dir, migrations, fieldName, from)) migration.migrated.incrementAndGet();
+								else migration.skipped.incrementAndGet();
+							} catch (DatabaseException e) {
+								migration.failed.incrementAndGet();
+								try {handler.handle(e);} catch (Exception e1) {}
+							} catch (IOException e) {
+								migration.failed.incrementAndGet();
+								try {handler.handle(new DatabaseException("IOException while migrating property: " + fieldName + " version " + from, e));} catch (Exception e1) {}
+							}
+						}
+					});
+				} catch (IOException e) {
+					try {handler.handle(new DatabaseException("IOException while scanning " + dir, e));} catch (Exception e1) {}
+				} finally {
+					migration.finish();
+				}
+			}
+		}).start();
+		return migration;
+	}
+	
+	// Converts a stored property for a background migration; false if it was skipped
+	private static boolean migrate(Directory dir, Migrations migrations, String fieldName, long from) throws DatabaseException, IOException {
+		long to = migrations.target(fieldName, from);
+		synchronized (migrations.lock(fieldName)) {
+			if (!storage.exists(dir.locate(fieldName, from))) return false; // Converted on demand
+			if (loaded(dir, fieldName, from) || loaded(dir, fieldName, to)) return false;
+			if (storage.exists(dir.locate(fieldName, to))) return false;
+			return convert(dir, migrations, fieldName, from, to) != null;
+		}
+	}
+	
+	// Converts a stored property to a version that isn't stored when it is loaded
+	private static <T> MutableProperty<T> migrateOnDemand(Directory dir, Migrations migrations, String fieldName, long version) throws DatabaseException, IOException {
+		synchronized (migrations.lock(fieldName)) {
+			if (storage.exists(dir.locate(fieldName, version))) return read(dir, fieldName, version); // Migrated meanwhile
+			long from = migrations.source(dir, fieldName, version);
+			if (from < 0) return null;
+			if (loaded(dir, fieldName, from)) {
+				throw new DatabaseException("Can't convert property while version " + from + " is loaded: " + fieldName + " version " + version);
+			}
+			assert debug("Converting " + fieldName + " from version " + from + " to " + version);
+			return convert(dir, migrations, fieldName, from, version);
+		}
+	}
+	
+	/**
+	 * Converts a stored property through the registered converters, writes it and deletes the older file.
+	 * The property's migration lock must be held.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> MutableProperty<T> convert(Directory dir, Migrations migrations, String fieldName, long from, long to) throws DatabaseException, IOException {
+		MutableProperty<?> stored = read(dir, fieldName, from);
+		if (stored == null) return null;
+		if (stored.getClass() != MutableProperty.class) {
+			throw new DatabaseException("Only plain properties can be converted: " + fieldName + " version " + from);
+		}
+		Object value = stored.get();
+		for (long version = from; version < to; version++) {
+			try {
+				value = migrations.converter(fieldName, version).convert(fieldName, value);
+			} catch (RuntimeException e) {
+				throw new DatabaseException("Converter failed for property: " + fieldName + " version " + version, e);
+			}
+		}
+		MutableProperty<T> property = MutableProperty.newProperty((T) value);
+		recover(dir, fieldName, to, property);
+		deleteFile(dir, dir.locate(fieldName, from), false);
+		deleted(dir, fieldName, from);
+		return property;
+	}
+	
+	private static boolean loaded(Directory dir, String fieldName, long version) {
+		PropertyDB instance = INSTANCE;
+		return instance != null && instance.locations.containsKey(new DBEntry<Object, Exception>(null, dir, fieldName, version, null));
+	}
+	
+	/**
+	 * Makes a codec available for reading files it compressed; needed only where files are read but setCompression is not called.
+	 * DeflateCodec is always registered.
+	 * @throws IllegalArgumentException if another codec uses the same id
+	 */
+	public static void registerCodec(PropertyCodec codec) {
+		PropertyFormat.register(codec);
+	}
+	
+	/**
+	 * Returns the compression of a directory
+	 */
+	static PropertyFormat.Compression compressionOf(Directory directory) {
+		if (directory.compression != null) return directory.compression;
+		PropertyDB instance = INSTANCE;
+		return instance == null ? null : instance.compression;
+	}
+	
+	/**
+	 * Checks if a property exists before loading it
+	 * @param directory Location in which properties are stored (can be different for different properties)
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @return
+	 */
+	public static boolean propertyExists(File directory, String fieldName, long version) {
+		Directory dir;
+		try {
+			dir = directoryOf(directory);
+		} catch (IOException e) {
+			return storage.exists(new File(directory, fieldName + "_" + version + Directory.EXTENSION));
+		}
+		// Loaded must be checked in case the save cycle has not gone through yet
+		PropertyDB instance = INSTANCE;
+		if (instance != null && instance.locations.containsKey(new DBEntry<Object, Exception>(null, dir, fieldName, version, null))) return true;
+		
+		ExistenceIndex index = dir.index;
+		if (index != null) return index.exists(fieldName, version);
+		return storage.exists(dir.locate(fieldName, version));
+	}
+
+	/**
+	 * Gets the size of a stored property file, as last saved
+	 * @param directory Location in which properties are stored
+	 * @param fieldName Name of the property
+	 * @param version Property version
+	 * @return The size in bytes, or 0 if the property is not stored
+	 */
+	public static long storedSize(File directory, String fieldName, long version) {
+		try {
+			return storage.length(directoryOf(directory).locate(fieldName, version));
+		} catch (IOException e) {
+			return storage.length(new File(directory, fieldName + "_" + version + Directory.EXTENSION));
+		}
+	}
+	
+	/**
+	 * Checks if a property is loaded
+	 * @param fieldName Name of the property
+	 * @return
+	 */
+	public static boolean loaded(String fieldName) {
+		if (!initialized()) return false;
+		for (DBEntry<?,?> entry : INSTANCE.entries.values()) {
+			if (entry.fieldName.equals(fieldName)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks if a property is loaded
+	 * @param fieldName Name of the property
+	 * @param version Property version
+	 * @return
+	 */
+	public static boolean loaded(String fieldName, long version) {
+		if (!initialized()) return false;
+		for (DBEntry<?,?> entry : INSTANCE.entries.values()) {
+			if (entry.version == version && entry.fieldName.equals(fieldName)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Creates or loads the specified property.  
+	 * If an async scheduler is being used, properties must be modified inside a synchronized
+	 *      block that locks the MutableProperty's monitor: i.e.:
+	 * 
+	 * synchronized(mutableProperty) { // Lock the object to prevent inconsistent states from being written
+	 *   // Perform modifications
+	 *   mutableProperty.get().modify()...
+	 * }
+	 * mutableProperty.update(); // Signal PropertyDB to write changes
+	 * 
+	 * @param directory Location in which properties are stored (can be different for different properties)
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @param initialValue Initial value if the property doesn't exist
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return A PropertyLib MutableProperty with the desired type
+	 * @throws E Will throw a DatabaseException if the loading criteria don't match the file
+	 */
+	public static <T extends Serializable, E extends Exception> MutableProperty<T> initiateProperty(File directory, final String fieldName, final long version, T initialValue, final ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		
+		try {
+			Directory dir = INSTANCE.directory(directory);
+			checkNotLoaded(dir, fieldName, version);
+			MutableProperty<T> property = read(dir, fieldName, version);
+			return register(dir, fieldName, version, property, initialValue, handler);
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while loading property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates or loads several properties of one directory and version at once. Files are read in parallel;
+	 * errors are passed to the handler afterwards, on the calling thread, and the failed properties are left out.
+	 * See initiateProperty for the locking rules that apply to the returned properties.
+	 * 
+	 * @param directory Location in which properties are stored
+	 * @param fieldNames Names of the properties
+	 * @param version Version, used for checking existence of previous versions
+	 * @param initialValue Initial value of each property that doesn't exist; shared, so it should be immutable
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The loaded properties by field name, in the order of fieldNames
+	 * @throws E Will throw a DatabaseException if the loading criteria don't match a file
+	 */
+	public static <T extends Serializable, E extends Exception> Map<String, MutableProperty<T>> initiateProperties(File directory, Collection<String> fieldNames, final long version, T initialValue, final ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		Map<String, MutableProperty<T>> result = new LinkedHashMap<String, MutableProperty<T>>();
+		
+		final Directory dir;
+		try {
+			dir = INSTANCE.directory(directory);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while loading properties from " + directory, e));
+			return result;
+		}
+		
+		final Map<String, MutableProperty<T>> read = new ConcurrentHashMap<String, MutableProperty<T>>();
+		Map<String, Exception> failures = Parallel.forEach(fieldNames, Parallel.DEFAULT_THREADS, new Parallel.Task<String>() {
+			public void run(String fieldName) throws Exception {
+				checkNotLoaded(dir, fieldName, version);
+				MutableProperty<T> property = read(dir, fieldName, version);
+				if (property != null) read.put(fieldName, property);
+			}
+		});
+		
+		RuntimeException unchecked = null;
+		for (String fieldName : fieldNames) {
+			Exception failure = failures.get(fieldName);
+			if (failure instanceof DatabaseException) {
+				handler.handle((DatabaseException) failure);
+			} else if (failure instanceof IOException) {
+				handler.handle(new DatabaseException("IOException while loading property: " + fieldName + " version " + version, failure));
+			} else if (failure instanceof ClassNotFoundException) {
+				handler.handle(new DatabaseException("ClassNotFoundException while loading property: " + fieldName + " version " + version, failure));
+			} else if (failure != null) {
+				// Not a loading error; thrown once the other properties are registered, as initiateProperty would
+				if (unchecked == null) unchecked = failure instanceof RuntimeException ? (RuntimeException) failure : new RuntimeException(failure);
+			} else {
+				try {
+					result.put(fieldName, register(dir, fieldName, version, read.get(fieldName), initialValue, handler));
+				} catch (DatabaseException e) {
+					handler.handle(e);
+				}
+			}
+		}
+		if (unchecked != null) throw unchecked;
+		return result;
+	}
+	
+	/**
+	 * Reads a snapshot of a stored property without loading it. The value is freshly deserialized,
+	 * so changes to it are never saved. If the property is loaded, its pending changes are written first.
+	 * Works without an initialized database.
+	 * 
+	 * @param directory Location in which properties are stored
+	 * @param fieldName Name of the property
+	 * @param version Property version
+	 * @param defaultValue Value returned if the property doesn't exist
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The stored value, or defaultValue
+	 * @throws E Will throw a DatabaseException if the file cannot be read
+	 */
+	public static <T extends Serializable, E extends Exception> T readProperty(File directory, String fieldName, long version, T defaultValue, ErrorHandler<E> handler) throws E {
+		try {
+			Directory dir = directoryOf(directory);
+			PropertyDB instance = INSTANCE;
+			DBEntry<?,?> entry = instance == null ? null : instance.locations.get(new DBEntry<Object, E>(null, dir, fieldName, version, null));
+			MutableProperty<T> property;
+			if (entry == null) {
+				property = read(dir, fieldName, version);
+			} else {
+				synchronized (entry) { // Keeps save passes from writing while the file is read
+					flush(entry);
+					property = read(dir, fieldName, version);
+				}
+			}
+			return property == null ? defaultValue : property.get();
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while reading property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates or loads a MapProperty, which saves a put or remove by appending it to a change log
+	 * instead of rewriting the whole map. The log is folded into the property file once it outgrows it.
+	 * A property stored as a plain MutableProperty holding a HashMap is converted.
+	 * See initiateProperty for the locking rules.
+	 * 
+	 * @param directory Location in which properties are stored (can be different for different properties)
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The MapProperty
+	 * @throws E Will throw a DatabaseException if the loading criteria don't match the file
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V, E extends Exception> MapProperty<K, V> initiateMapProperty(File directory, String fieldName, long version, ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		
+		try {
+			Directory dir = INSTANCE.directory(directory);
+			checkNotLoaded(dir, fieldName, version);
+			MutableProperty<?> stored = read(dir, fieldName, version);
+			MapProperty<K, V> property;
+			if (stored instanceof MapProperty) {
+				property = (MapProperty<K, V>) stored;
+			} else if (stored == null) {
+				property = MapProperty.newMapProperty();
+			} else if (stored.get() instanceof HashMap) {
+				property = MapProperty.newMapProperty((HashMap<K, V>) stored.get()); // Written as a whole on the next pass
+			} else {
+				throw new DatabaseException("Property does not hold a HashMap: " + fieldName + " version " + version);
+			}
+			registerEntry(dir, fieldName, version, property, stored != property, handler); // Saved on the next pass if new or converted
+			return property;
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while loading property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates or loads a ChunkedProperty, a large byte array of which only the chunks changed through
+	 * ChunkedProperty.write are rewritten when saved. A property stored as a plain MutableProperty holding a byte[] is converted.
+	 * See initiateProperty for the locking rules.
+	 * 
+	 * @param directory Location in which properties are stored (can be different for different properties)
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @param initialValue Initial value if the property doesn't exist; owned by the property afterwards
+	 * @param chunkSize Chunk size in bytes if the property doesn't exist, e.g. ChunkedProperty.DEFAULT_CHUNK_SIZE
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The ChunkedProperty
+	 * @throws E Will throw a DatabaseException if the loading criteria don't match the file
+	 */
+	public static <E extends Exception> ChunkedProperty initiateChunkedProperty(File directory, String fieldName, long version, byte[] initialValue, int chunkSize, ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		
+		try {
+			Directory dir = INSTANCE.directory(directory);
+			checkNotLoaded(dir, fieldName, version);
+			MutableProperty<?> stored = read(dir, fieldName, version);
+			ChunkedProperty property;
+			if (stored instanceof ChunkedProperty) {
+				property = (ChunkedProperty) stored;
+			} else if (stored == null) {
+				property = ChunkedProperty.newChunkedProperty(initialValue, chunkSize);
+			} else if (stored.get() instanceof byte[]) {
+				property = ChunkedProperty.newChunkedProperty((byte[]) stored.get(), chunkSize); // Written as a whole on the next pass
+			} else {
+				throw new DatabaseException("Property does not hold a byte[]: " + fieldName + " version " + version);
+			}
+			registerEntry(dir, fieldName, version, property, stored != property, handler); // Saved on the next pass if new or converted
+			return property;
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while loading property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads part of a stored ChunkedProperty without loading it. If the property is loaded, its pending changes are written first.
+	 * Works without an initialized database.
+	 * 
+	 * @param directory Location in which properties are stored
+	 * @param fieldName Name of the property
+	 * @param version Property version
+	 * @param offset Offset of the range in the value
+	 * @param length Length of the range
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The bytes, or null if they could not be read
+	 * @throws E
+	 */
+	public static <E extends Exception> byte[] readRange(File directory, String fieldName, long version, long offset, int length, ErrorHandler<E> handler) throws E {
+		try {
+			Directory dir = directoryOf(directory);
+			PropertyDB instance = INSTANCE;
+			DBEntry<?,?> entry = instance == null ? null : instance.locations.get(new DBEntry<Object, E>(null, dir, fieldName, version, null));
+			if (entry == null) return ChunkedFile.readRange(dir.locate(fieldName, version), offset, length);
+			synchronized (entry) { // Keeps save passes from writing while the file is read
+				flush(entry);
+				return ChunkedFile.readRange(dir.locate(fieldName, version), offset, length);
+			}
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while reading range of property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates or loads a BufferProperty, which keeps its value in a direct ByteBuffer off the heap.
+	 * A property stored as a plain MutableProperty holding a byte[] is converted. See initiateProperty for the locking rules.
+	 * 
+	 * @param directory Location in which properties are stored (can be different for different properties)
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @param initialValue Initial buffer if the property doesn't exist; owned by the property afterwards
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The BufferProperty
+	 * @throws E Will throw a DatabaseException if the loading criteria don't match the file
+	 */
+	public static <E extends Exception> BufferProperty initiateBufferProperty(File directory, String fieldName, long version, ByteBuffer initialValue, ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		
+		try {
+			Directory dir = INSTANCE.directory(directory);
+			checkNotLoaded(dir, fieldName, version);
+			MutableProperty<?> stored = read(dir, fieldName, version);
+			BufferProperty property;
+			if (stored instanceof BufferProperty) {
+				property = (BufferProperty) stored;
+			} else if (stored == null) {
+				property = BufferProperty.newBufferProperty(initialValue);
+			} else if (stored.get() instanceof byte[]) {
+				byte[] value = (byte[]) stored.get();
+				property = BufferProperty.allocateDirect(value.length);
+				property.get().put(value).clear();
+			} else {
+				throw new DatabaseException("Property does not hold a byte[]: " + fieldName + " version " + version);
+			}
+			registerEntry(dir, fieldName, version, property, stored != property, handler); // Saved on the next pass if new or converted
+			return property;
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while loading property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates or loads a BufferProperty whose buffer maps the property file, so the value stays in the page cache
+	 * and saving only forces the changed pages. Its size is fixed when the file is created.
+	 * A property stored as a plain MutableProperty holding a byte[] is converted. See initiateProperty for the locking rules.
+	 * 
+	 * @param directory Location in which properties are stored (can be different for different properties)
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @param capacity Size of the zeroed value in bytes if the property doesn't exist
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @return The mapped BufferProperty
+	 * @throws E Will throw a DatabaseException if the loading criteria don't match the file
+	 */
+	public static <E extends Exception> BufferProperty initiateMappedProperty(File directory, String fieldName, long version, int capacity, ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		
+		try {
+			if (!(storage instanceof FileBackend)) throw new DatabaseException("Mapped properties require a FileBackend");
+			Directory dir = INSTANCE.directory(directory);
+			checkNotLoaded(dir, fieldName, version);
+			File location = dir.locate(fieldName, version);
+			boolean created = !location.exists();
+			BufferProperty property;
+			dir.writes.readLock().lock();
+			try {
+				if (created) {
+					assert debug("Mkdirs for " + fieldName);
+					location.getParentFile().mkdirs();
+				} else if (!BufferFile.isBufferFile(location)) {
+					MutableProperty<?> stored = read(dir, fieldName, version);
+					if (!(stored.get() instanceof byte[])) throw new DatabaseException("Property does not hold a byte[]: " + fieldName + " version " + version);
+					BufferFile.save(location, BufferProperty.newBufferProperty(ByteBuffer.wrap((byte[]) stored.get()))); // Converted in place
+				}
+				property = BufferFile.map(location, capacity);
+				dir.changed(location);
+			} finally {
+				dir.writes.readLock().unlock();
+			}
+			ExistenceIndex index = dir.index;
+			if (created && index != null) index.created(fieldName, version);
+			registerEntry(dir, fieldName, version, property, false, handler);
+			return property;
+		} catch (DatabaseException e) {
+			handler.handle(e);
+			return null;
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while mapping property: " + fieldName + " version " + version, e));
+			return null;
+		}
+	}
+	
+	private static void checkNotLoaded(Directory dir, String fieldName, long version) throws DatabaseException {
+		if (INSTANCE.locations.containsKey(new DBEntry<Object, Exception>(null, dir, fieldName, version, null))) {
+			throw new DatabaseException("Property already loaded: " + fieldName + " version " + version);
+		}
+	}
+	
+	/**
+	 * Reads a stored property
+	 * @return The property, or null if it doesn't exist
+	 */
+	private static <T> MutableProperty<T> read(Directory dir, String fieldName, long version) throws DatabaseException, IOException {
+		File location = dir.locate(fieldName, version);
+		if (!storage.exists(location)) {
+			Migrations migrations = dir.migrations;
+			return migrations == null ? null : PropertyDB.<T>migrateOnDemand(dir, migrations, fieldName, version);
+		}
+		PropertyMonitor monitor = PropertyDB.monitor;
+		Object load = monitor == null ? null : monitor.beginLoad(dir.file, fieldName, version);
+		long bytes = -1;
+		try {
+			MutableProperty<T> property = read(location, fieldName, version, true);
+			if (load != null) bytes = storage.length(location);
+			return property;
+		} finally {
+			if (load != null) monitor.endLoad(load, bytes);
+		}
+	}
+	
+	/**
+	 * Reads a property without changing any file, for a follower of a directory another process writes
+	 * @return The property, or null if it doesn't exist
+	 */
+	static <T> MutableProperty<T> peek(Directory dir, String fieldName, long version) throws DatabaseException, IOException {
+		File location = dir.locate(fieldName, version);
+		try {
+			return read(location, fieldName, version, false);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> MutableProperty<T> read(File location, String fieldName, long version, boolean repair) throws DatabaseException, IOException {
+		try {
+			MutableProperty<T> property = (MutableProperty<T>) PropertyFormat.read(location);
+			if (property instanceof MapProperty) MapLog.replay(location, (MapProperty<?, ?>) property, repair);
+			assert debug("Loaded " + fieldName);
+			return property;
+		} catch (ClassCastException e) {
+			throw new DatabaseException("ClassCastException while loading property: " + fieldName + " version " + version, e);
+		} catch (ClassNotFoundException e) {
+			throw new DatabaseException("ClassNotFoundException while loading property: " + fieldName + " version " + version, e);
+		}
+	}
+	
+	/**
+	 * Registers a property that was read, or creates it from its initial value if it didn't exist
+	 */
+	private static <T, E extends Exception> MutableProperty<T> register(Directory dir, String fieldName, long version, MutableProperty<T> property, T initialValue, ErrorHandler<E> handler) throws DatabaseException {
+		boolean created = false;
+		if (property == null) {
+			assert debug("Created " + fieldName);
+			property = MutableProperty.newProperty(initialValue);
+			created = true;
+		}
+		return registerEntry(dir, fieldName, version, property, created, handler);
+	}
+	
+	/**
+	 * Registers a property, queueing an initial save if it is not stored yet
+	 */
+	private static <T, E extends Exception> MutableProperty<T> registerEntry(Directory dir, String fieldName, long version, MutableProperty<T> property, boolean created, ErrorHandler<E> handler) throws DatabaseException {
+		final DBEntry<T, E> entry = new DBEntry<T, E>(property, dir, fieldName, version, handler);
+		
+		synchronized (INSTANCE.locations) { // Check again; another thread may have loaded it while this one was reading
+			if (INSTANCE.locations.containsKey(entry)) {
+				throw new DatabaseException("Property already loaded: " + fieldName + " version " + version);
+			}
+			INSTANCE.locations.put(entry, entry);
+		}
+		INSTANCE.entries.put(property, entry);
+		if (created) {
+			synchronized (INSTANCE.waiting) {
+				INSTANCE.waiting.add(entry); // Initial save
+			}
+		}
+		
+		property.addObserver(INSTANCE.<T>observer(), EventType.SET, EventType.UPDATE);
+		
+		return property;
+	}
+	
+	/**
+	 * Delete a property (loaded or unloaded) using location and version information
+	 * @param directory Location in which properties are stored
+	 * @param fieldName Name of the property
+	 * @param version Version, used for checking existence of previous versions
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E
+	 */
+	public static <E extends Exception> void deleteProperty(File directory, final String fieldName, final long version, final ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		final Directory dir;
+		
+		try {
+			dir = INSTANCE.directory(directory);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while deleting property: " + fieldName + " version " + version, e));
+			return;
+		}
+		
+		final File location = dir.locate(fieldName, version);
+		DBEntry<?,?> loaded = INSTANCE.locations.get(new DBEntry<Object, E>(null, dir, fieldName, version, null));
+		
+		if (loaded != null) {
+			// Unload then delete
+			deleteProperty(loaded.mutable, handler);
+		} else {
+			try {
+				deleteFile(dir, location, true);
+				deleted(dir, fieldName, version);
+			} catch (IOException e) {
+				handler.handle(new DatabaseException("IOException while deleting property: " + fieldName + " version " + version, e));
+			}
+		}
+	}
+	
+	/**
+	 * Deletes a loaded property
+	 * @param property The loaded property
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E
+	 */
+	public static <E extends Exception> void deleteProperty(MutableProperty<?> property, final ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		DBEntry<?, ?> entry = INSTANCE.entries.get(property);
+		
+		File result = unloadProperty(property, handler);
+		
+		if (result == null) return; // Doesn't exist, handled already
+		
+		try {
+			deleteFile(entry.directory, entry.location(), true);
+			deleted(entry.directory, entry.fieldName, entry.version);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while deleting property: " + entry.fieldName + " version " + entry.version, e));
+		}
+	}
 	
 	/**
 	 * Unloads a loaded property. The associated MutableProperty will continue to store its data but will
@@ -419,17 +1677,152 @@ public final class PropertyDB {
 		
 		if (INSTANCE.entries.containsKey(property)) {
 			DBEntry<?, ?> entry = INSTANCE.entries.get(property);
-			entry.killObserver(); // Remove observer so it no longer responds to updates
-			if (INSTANCE.waiting.contains(entry)) INSTANCE.saveProperties();
-			INSTANCE.locations.remove(entry.canonicalPath);
+			killObserver(entry); // Remove observer so it no longer responds to updates
+			flush(entry);
+			INSTANCE.locations.remove(entry);
 			INSTANCE.entries.remove(entry.mutable);
-			return entry.location;
+			return entry.location();
 		} else {
 			handler.handle(new DatabaseException("Attempted to unload a property that was not loaded"));
 			return null;
 		}
 	}
 	
+	/**
+	 * Unloads several loaded properties at once. Pending saves are written in parallel.
+	 * Errors are passed to the handler after all other properties have been unloaded.
+	 * @param properties The loaded properties
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E
+	 */
+	public static <E extends Exception> void unloadProperties(Collection<? extends MutableProperty<?>> properties, final ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		List<DBEntry<?,?>> unloading = new ArrayList<DBEntry<?,?>>();
+		int notLoaded = 0;
+		
+		for (MutableProperty<?> property : properties) {
+			DBEntry<?, ?> entry = INSTANCE.entries.get(property);
+			if (entry == null) {
+				notLoaded++;
+				continue;
+			}
+			killObserver(entry); // Remove observer so it no longer responds to updates
+			unloading.add(entry);
+		}
+		Parallel.forEach(unloading, Parallel.DEFAULT_THREADS, new Parallel.Task<DBEntry<?,?>>() {
+			public void run(DBEntry<?,?> entry) {
+				flush(entry);
+			}
+		});
+		for (DBEntry<?,?> entry : unloading) {
+			INSTANCE.locations.remove(entry);
+			INSTANCE.entries.remove(entry.mutable);
+		}
+		
+		if (notLoaded > 0) {
+			handler.handle(new DatabaseException("Attempted to unload " + notLoaded + " properties that were not loaded"));
+		}
+	}
+	
+	/**
+	 * Deletes several properties (loaded or unloaded) of one directory at once. Loaded properties are
+	 * unloaded without saving their pending changes, and the files are deleted in parallel.
+	 * Errors are passed to the handler after all other properties have been deleted.
+	 * @param directory Location in which properties are stored
+	 * @param fieldVersions Names of the properties mapped to their versions
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E
+	 */
+	public static <E extends Exception> void deleteProperties(File directory, Map<String, Long> fieldVersions, final ErrorHandler<E> handler) throws E {
+		if (!initialized()) throw new IllegalInitializationException("Database not initialized!");
+		final Directory dir;
+		
+		try {
+			dir = INSTANCE.directory(directory);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while deleting properties from " + directory, e));
+			return;
+		}
+		
+		List<DBEntry<?,?>> deleting = new ArrayList<DBEntry<?,?>>(fieldVersions.size());
+		for (Map.Entry<String, Long> field : fieldVersions.entrySet()) {
+			DBEntry<?,?> location = new DBEntry<Object, E>(null, dir, field.getKey(), field.getValue(), null);
+			DBEntry<?,?> loaded = INSTANCE.locations.get(location);
+			if (loaded != null) {
+				killObserver(loaded);
+				synchronized (loaded) { // Drop pending saves; waits for a save in progress
+					INSTANCE.waiting.remove(loaded);
+					INSTANCE.saving.remove(loaded);
+				}
+				INSTANCE.locations.remove(loaded);
+				INSTANCE.entries.remove(loaded.mutable);
+				deleting.add(loaded);
+			} else {
+				deleting.add(location);
+			}
+		}
+		
+		Map<DBEntry<?,?>, Exception> failures = Parallel.forEach(deleting, Parallel.DEFAULT_THREADS, new Parallel.Task<DBEntry<?,?>>() {
+			public void run(DBEntry<?,?> entry) throws IOException {
+				deleteFile(entry.directory, entry.location(), entry.mutable == null); // A loaded property may never have been saved
+				deleted(entry.directory, entry.fieldName, entry.version);
+			}
+		});
+		
+		for (Map.Entry<DBEntry<?,?>, Exception> failure : failures.entrySet()) {
+			DBEntry<?,?> entry = failure.getKey();
+			handler.handle(new DatabaseException("IOException while deleting property: " + entry.fieldName + " version " + entry.version, failure.getValue()));
+		}
+	}
+	
+	/**
+	 * Saves an entry if it is waiting or queued in the running pass, and makes sure the pass won't write it afterwards.
+	 * Only this entry is saved, so unloads don't serialize on the save pass.
+	 */
+	private static void flush(DBEntry<?,?> entry) {
+		PersistPublisher published = INSTANCE.published;
+		List<Persisted> persisted = null;
+		synchronized (entry) {
+			boolean pending = INSTANCE.waiting.remove(entry);
+			pending |= INSTANCE.saving.remove(entry);
+			if (!pending) return;
+			if (published.active()) persisted = new ArrayList<Persisted>(1);
+			entry.save(persisted, persisted != null && published.wantsBytes());
+		}
+		if (persisted != null) published.publish(persisted);
+	}
+	
+	// Deletes a property file, then releases the stored value it referenced
+	private static void deleteFile(Directory directory, File location, boolean mustExist) throws IOException {
+		directory.writes.readLock().lock();
+		try {
+			String reference = directory.store ? Dedup.referenceOf(location) : null;
+			if (!storage.delete(location) && mustExist) throw new FileNotFoundException(location.getPath());
+			directory.changed(location);
+			if (reference != null) Dedup.release(directory, reference);
+		} finally {
+			directory.writes.readLock().unlock();
+		}
+	}
+	
+	// Cleans up after a property file was deleted
+	private static void deleted(Directory directory, String fieldName, long version) throws IOException {
+		File log = MapLog.of(directory.locate(fieldName, version)); // MapProperty change log
+		directory.writes.readLock().lock();
+		try {
+			storage.delete(log);
+			directory.changed(log);
+		} finally {
+			directory.writes.readLock().unlock();
+		}
+		ExistenceIndex index = directory.index;
+		if (index != null) index.deleted(fieldName, version);
+	}
+	
+	private static <T> void killObserver(DBEntry<T, ?> entry) {
+		entry.mutable.removeObserver(INSTANCE.<T>observer());
+	}
+	
 	// Assertion debugging methods
 	static boolean debug(String msg) {System.out.println(msg); return true;}
 	static boolean debug_sleep(int millis) {
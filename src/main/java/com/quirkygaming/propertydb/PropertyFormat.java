@@ -0,0 +1,275 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Checksum;
+
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Reads and writes property files. Serialized properties are written behind a checksummed header:
+ *
+ * "QGPF" magic, format version (1 byte), codec id (1 byte, 0 for none), payload length (8 bytes), CRC-32C of the payload (4 bytes), payload
+ *
+ * The payload is the serialization stream, compressed by the codec if any. Files written by earlier versions,
+ * plain Java serialization streams, are still read; they start with 0xACED, so the formats are told apart by their first bytes.
+ * ChunkedProperty and BufferProperty files have their own formats (see ChunkedFile and BufferFile),
+ * and files of deduplicated directories may reference a shared value instead (see Dedup).
+ * All files are accessed through the database's StorageBackend.
+ * @author chandler
+ *
+ */
+final class PropertyFormat {
+	
+	static final byte[] MAGIC = {'Q', 'G', 'P', 'F'};
+	static final byte FORMAT_VERSION = 1;
+	static final int HEADER = 18;
+	
+	private static final int REFERENCE_LENGTH = Dedup.MAGIC.length + Dedup.HASH_LENGTH;
+	
+	private static final Map<Byte, PropertyCodec> codecs = new ConcurrentHashMap<Byte, PropertyCodec>();
+	static {
+		register(new DeflateCodec());
+	}
+	
+	/**
+	 * A codec, or null for none, and the serialized size from which it is used
+	 */
+	static final class Compression {
+		final PropertyCodec codec;
+		final int threshold;
+		
+		Compression(PropertyCodec codec, int threshold) {
+			this.codec = codec; this.threshold = threshold;
+		}
+	}
+	
+	/**
+	 * A serialized property, readable without copying
+	 */
+	static final class Bytes extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+	
+	private PropertyFormat() {}
+	
+	static void register(PropertyCodec codec) {
+		if (codec.id() < 1) throw new IllegalArgumentException("Codec ids must be between 1 and 127");
+		PropertyCodec existing = codecs.putIfAbsent(codec.id(), codec);
+		if (existing != null && existing.getClass() != codec.getClass()) {
+			throw new IllegalArgumentException("Codec id " + codec.id() + " is already used by " + existing.getClass().getName());
+		}
+	}
+	
+	/**
+	 * Writes a property, compressed if its serialized size reaches the threshold.
+	 * The property's monitor is held only while it is serialized.
+	 * @param compression The compression to apply, or null
+	 * @return The serialized property
+	 */
+	static Bytes write(File file, MutableProperty<?> property, Compression compression) throws IOException {
+		Bytes bytes = serialize(property);
+		write(file, bytes, compression);
+		return bytes;
+	}
+	
+	/**
+	 * Serializes a property while holding its monitor
+	 */
+	static Bytes serialize(MutableProperty<?> property) throws IOException {
+		Bytes bytes = new Bytes();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		synchronized(property) {
+			oos.writeObject(property);
+		}
+		oos.close();
+		return bytes;
+	}
+	
+	/**
+	 * Writes a serialized property behind a checksummed header, compressed if its size reaches the threshold
+	 * @param compression The compression to apply, or null
+	 */
+	static void write(File file, Bytes bytes, Compression compression) throws IOException {
+		byte codec = 0;
+		Bytes payload = bytes;
+		if (compression != null && compression.codec != null && bytes.size() >= compression.threshold) {
+			codec = compression.codec.id();
+			payload = new Bytes();
+			OutputStream compressed = compression.codec.compress(payload);
+			bytes.writeTo(compressed);
+			compressed.close();
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.put(MAGIC).put(FORMAT_VERSION).put(codec).putLong(payload.size()).putInt(Crc32c.of(payload.array(), 0, payload.size()));
+		OutputStream out = PropertyDB.storage().write(file);
+		try {
+			out.write(header.array());
+			out.write(payload.array(), 0, payload.size());
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a property file in any format
+	 */
+	static Object read(File file) throws IOException, ClassNotFoundException {
+		InputStream in = new BufferedInputStream(PropertyDB.storage().read(file));
+		try {
+			in.mark(MAGIC.length);
+			byte[] head = new byte[MAGIC.length];
+			int n = 0, r;
+			while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) n += r;
+			
+			if (n == head.length && Arrays.equals(head, ChunkedFile.MAGIC)) {
+				in.close();
+				return ChunkedFile.read(file);
+			} else if (n == head.length && Arrays.equals(head, BufferFile.MAGIC)) {
+				in.close();
+				return BufferFile.read(file);
+			} else if (n == head.length && Arrays.equals(head, Dedup.MAGIC)) {
+				byte[] hash = new byte[Dedup.HASH_LENGTH];
+				n = 0;
+				while (n < hash.length && (r = in.read(hash, n, hash.length - n)) > 0) n += r;
+				if (n < hash.length) throw new IOException("Truncated reference: " + file);
+				in.close();
+				return Dedup.load(file, Dedup.hex(hash));
+			} else if (n == head.length && Arrays.equals(head, MAGIC)) {
+				InputStream payload = payload(in, file);
+				in.close();
+				in = payload;
+			} else {
+				in.reset(); // Plain serialization stream
+			}
+			return new ObjectInputStream(in).readObject();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads the rest of a checksummed file's header and its payload, checking both
+	 * @return The payload, decompressed
+	 */
+	private static InputStream payload(InputStream in, File file) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte version, id;
+		long length;
+		int crc;
+		try {
+			version = data.readByte();
+			id = data.readByte();
+			length = data.readLong();
+			crc = data.readInt();
+		} catch (EOFException e) {
+			throw new CorruptPropertyException(file, "Truncated header");
+		}
+		if (version != FORMAT_VERSION) throw new IOException("Unsupported format version " + version + " in " + file);
+		if (length < 0 || length > Integer.MAX_VALUE - 8) throw new CorruptPropertyException(file, "Invalid payload length " + length);
+		
+		byte[] payload = new byte[(int) length];
+		try {
+			data.readFully(payload);
+		} catch (EOFException e) {
+			throw new CorruptPropertyException(file, "Truncated payload");
+		}
+		if (data.read() >= 0) throw new CorruptPropertyException(file, "Data after payload");
+		if (Crc32c.of(payload, 0, payload.length) != crc) throw new CorruptPropertyException(file, "Checksum mismatch");
+		InputStream result = new ByteArrayInputStream(payload);
+		return id == 0 ? result : codec(id, file).decompress(result);
+	}
+	
+	private static PropertyCodec codec(int id, File file) throws IOException {
+		PropertyCodec codec = id < 0 ? null : codecs.get((byte) id);
+		if (codec == null) throw new IOException("Unknown codec " + id + " in " + file);
+		return codec;
+	}
+	
+	/**
+	 * Checks a property file without deserializing it: the header and length of every format, the stored value
+	 * of a reference, and the checksum of checksummed files if requested
+	 * @param checksums Whether to read payloads and check their checksums; otherwise only headers are read
+	 * @return True if a checksum was checked; false if only the header was, or the format has no checksum
+	 * @throws CorruptPropertyException if the file is damaged
+	 */
+	static boolean verify(File file, boolean checksums) throws IOException {
+		StorageBackend storage = PropertyDB.storage();
+		long size = storage.length(file);
+		ByteBuffer head = ByteBuffer.allocate(Math.max(HEADER, REFERENCE_LENGTH));
+		while (head.hasRemaining()) {
+			if (storage.readAt(file, head.position(), head) < 0) break;
+		}
+		int n = head.position();
+		if (n < MAGIC.length) throw new CorruptPropertyException(file, "Truncated header");
+		byte[] magic = Arrays.copyOf(head.array(), MAGIC.length);
+		
+		if (Arrays.equals(magic, MAGIC)) {
+			if (n < HEADER) throw new CorruptPropertyException(file, "Truncated header");
+			if (head.get(4) != FORMAT_VERSION) throw new CorruptPropertyException(file, "Unsupported format version " + head.get(4));
+			byte id = head.get(5);
+			if (id != 0 && !codecs.containsKey(id)) throw new CorruptPropertyException(file, "Unknown codec " + id);
+			long length = head.getLong(6);
+			if (size != HEADER + length) throw new CorruptPropertyException(file, "Length " + size + " doesn't match header");
+			if (!checksums) return false;
+			
+			Checksum checksum = Crc32c.create();
+			InputStream in = storage.read(file);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				long skipped = 0;
+				while (skipped < HEADER) {
+					long k = in.skip(HEADER - skipped);
+					if (k <= 0) throw new CorruptPropertyException(file, "Truncated header");
+					skipped += k;
+				}
+				int r;
+				while ((r = in.read(buffer)) > 0) checksum.update(buffer, 0, r);
+			} finally {
+				in.close();
+			}
+			if ((int) checksum.getValue() != head.getInt(14)) throw new CorruptPropertyException(file, "Checksum mismatch");
+			return true;
+		} else if (Arrays.equals(magic, ChunkedFile.MAGIC) || Arrays.equals(magic, BufferFile.MAGIC)) {
+			if (n < ChunkedFile.HEADER) throw new CorruptPropertyException(file, "Truncated header");
+			if (size != ChunkedFile.HEADER + head.getLong(8)) throw new CorruptPropertyException(file, "Length " + size + " doesn't match header");
+			return false;
+		} else if (Arrays.equals(magic, Dedup.MAGIC)) {
+			if (size != REFERENCE_LENGTH) throw new CorruptPropertyException(file, "Invalid reference");
+			String key = Dedup.hex(Arrays.copyOfRange(head.array(), MAGIC.length, REFERENCE_LENGTH));
+			File blob = Dedup.blobOf(file, key);
+			if (blob == null) throw new CorruptPropertyException(file, "Stored value " + key + " missing");
+			return verify(blob, checksums);
+		} else if (magic[0] == (byte) 0xAC && magic[1] == (byte) 0xED) {
+			return false; // Written by an earlier version
+		}
+		throw new CorruptPropertyException(file, "Unknown format");
+	}
+	
+	/**
+	 * Fills the remaining space of a buffer from a file, starting at a position
+	 */
+	static void readFully(File file, long position, ByteBuffer into) throws IOException {
+		while (into.hasRemaining()) {
+			int n = PropertyDB.storage().readAt(file, position, into);
+			if (n < 0) throw new EOFException("Truncated: " + file);
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+
+/**
+ * Receives timing of the database's work, for profilers and event recorders; see PropertyDB.setMonitor.
+ * Each operation is reported as a begin and end pair on the thread doing it. A begin method returns the
+ * object passed to the matching end method, or null to skip the end, so that a monitor that is
+ * switched off costs a method call. Methods must be fast and must not throw.
+ * @author chandler
+ *
+ */
+public interface PropertyMonitor {
+	
+	/**
+	 * A property is about to be written
+	 */
+	public Object beginSave(File directory, String fieldName, long version);
+	
+	/**
+	 * @param bytes Length of the property's file after writing, or -1 if writing failed
+	 */
+	public void endSave(Object save, long bytes);
+	
+	/**
+	 * A stored property is about to be read, usually to be loaded
+	 */
+	public Object beginLoad(File directory, String fieldName, long version);
+	
+	/**
+	 * @param bytes Length of the property's file, or -1 if reading failed
+	 */
+	public void endLoad(Object load, long bytes);
+	
+	/**
+	 * A save pass is starting; its saves are reported on the same thread before it ends
+	 */
+	public Object beginSavePass();
+	
+	/**
+	 * @param properties Number of properties the pass wrote
+	 */
+	public void endSavePass(Object pass, int properties);
+	
+	/**
+	 * A property was changed and its observer is about to wait for the save queue's monitor,
+	 * which the save pass holds while taking the queue
+	 */
+	public Object beginMonitorWait(String fieldName);
+	
+	/**
+	 * The monitor was acquired
+	 */
+	public void endMonitorWait(Object wait);
+}
@@ -0,0 +1,289 @@
+package com.quirkygaming.propertydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Shares this process's database with other processes on the same host through PropertyClient. The server
+ * listens on the loopback interface only and serves the directories below its root. Properties initiated or set by
+ * clients stay loaded, and saved like any other, until a client unloads or deletes them or the server is closed.
+ *
+ * Values are sent as serialized objects and deserialized by the server, so clients must be trusted; they
+ * authenticate with a shared secret, which is required. Field names may not contain path separators or "..".
+ * See Wire for the protocol.
+ * @author chandler
+ *
+ */
+public final class PropertyServer {
+	
+	// Time a client has to complete the handshake
+	static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+	
+	private final File root;
+	private final byte[] secret;
+	private final ServerSocket socket;
+	private final ErrorHandler<?> handler;
+	private final ThreadFactory threads = Parallel.daemonThreads("PropertyDB-Server");
+	
+	// Properties loaded on behalf of clients, by directory, field name and version
+	private final Map<String, MutableProperty<Serializable>> loaded = new ConcurrentHashMap<String, MutableProperty<Serializable>>();
+	private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private volatile boolean closed = false;
+	
+	private PropertyServer(File root, String secret, ServerSocket socket, ErrorHandler<?> handler) {
+		this.root = root;
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+		this.socket = socket;
+		this.handler = handler;
+	}
+	
+	/**
+	 * Starts a server on the loopback interface
+	 * @param token The token passed to the database manager who initialized the database
+	 * @param root Directory below which clients may store properties
+	 * @param port Port to listen on, or 0 for any free port
+	 * @param secret Secret clients must present; the server isn't started without one
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException.
+	 * Receives connection failures; failed requests are reported to the client.
+	 * @return The server, or null if it couldn't be started
+	 * @throws IllegalInitializationException if the token is invalid
+	 * @throws E
+	 */
+	public static <E extends Exception> PropertyServer start(InitializationToken token, File root, int port, String secret, ErrorHandler<E> handler) throws E {
+		if (!PropertyDB.tokenIsValid(token)) throw new IllegalInitializationException("Invalid initialization token!");
+		if (secret == null || secret.isEmpty()) {
+			handler.handle(new DatabaseException("A server can't be started without a secret"));
+			return null;
+		}
+		final PropertyServer server;
+		try {
+			server = new PropertyServer(root.getCanonicalFile(), secret, new ServerSocket(port, 50, InetAddress.getLoopbackAddress()), handler);
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while starting server on port " + port, e));
+			return null;
+		}
+		server.threads.newThread(new Runnable() {
+			public void run() {
+				server.accept();
+			}
+		}).start();
+		return server;
+	}
+	
+	/**
+	 * @return The port the server listens on
+	 */
+	public int port() {
+		return socket.getLocalPort();
+	}
+	
+	/**
+	 * Stops the server, disconnects every client and unloads the properties loaded on their behalf
+	 */
+	public void close() {
+		closed = true;
+		try {socket.close();} catch (IOException e) {}
+		for (Socket connection : connections) {
+			try {connection.close();} catch (IOException e) {}
+		}
+		for (MutableProperty<Serializable> property : loaded.values()) {
+			try {PropertyDB.unloadProperty(property, ErrorHandler.throwAll());} catch (RuntimeException e) {} // Already unloaded or closed
+		}
+		loaded.clear();
+	}
+	
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket connection = socket.accept();
+				connection.setTcpNoDelay(true);
+				connections.add(connection);
+				threads.newThread(new Runnable() {
+					public void run() {
+						serve(connection);
+					}
+				}).start();
+			} catch (IOException e) {
+				if (!closed) report(new DatabaseException("IOException while accepting connections", e));
+			}
+		}
+	}
+	
+	private void serve(Socket connection) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 1 << 16));
+			connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS); // A client that doesn't authenticate can't hold the thread
+			byte[] magic = new byte[Wire.MAGIC.length];
+			in.readFully(magic);
+			boolean accepted = Arrays.equals(magic, Wire.MAGIC) && in.readInt() == Wire.VERSION
+					&& MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8), secret);
+			out.writeByte(accepted ? Wire.OK : Wire.FAILED);
+			out.flush();
+			if (!accepted) return;
+			connection.setSoTimeout(0);
+			
+			while (!closed) {
+				byte operation;
+				try {
+					operation = in.readByte();
+				} catch (EOFException e) {
+					return; // Disconnected
+				}
+				handle(operation, in, out);
+				if (in.available() == 0) out.flush(); // Caught up; replies to pipelined requests go out together
+			}
+		} catch (SocketException e) {
+			// Closed by either side
+		} catch (SocketTimeoutException e) {
+			// Handshake not completed in time
+		} catch (IOException e) {
+			report(new DatabaseException("IOException while serving " + connection.getRemoteSocketAddress(), e));
+		} finally {
+			connections.remove(connection);
+			try {connection.close();} catch (IOException e) {}
+		}
+	}
+	
+	// Reads one request and writes its reply
+	private void handle(byte operation, DataInputStream in, DataOutputStream out) throws IOException {
+		String directory = in.readUTF();
+		String fieldName = in.readUTF();
+		long version = in.readLong();
+		byte[] value = operation == Wire.INITIATE || operation == Wire.SET || operation == Wire.UPDATE ? Wire.readValue(in) : null;
+		byte[] update = operation == Wire.UPDATE ? Wire.readValue(in) : null;
+		if (operation < Wire.INITIATE || operation > Wire.UNLOAD) throw new IOException("Unknown operation " + operation);
+		
+		byte[] reply;
+		boolean flag = false;
+		try {
+			checkFieldName(fieldName);
+			File dir = resolve(directory);
+			String key = dir.getPath() + File.separator + fieldName + "_" + version;
+			MutableProperty<Serializable> property = loaded.get(key);
+			switch (operation) {
+			case Wire.INITIATE:
+				reply = Wire.serialize(load(key, dir, fieldName, version, value).get());
+				break;
+			case Wire.GET:
+				reply = Wire.serialize(property != null ? property.get() : PropertyDB.readProperty(dir, fieldName, version, null, ErrorHandler.throwAll()));
+				break;
+			case Wire.SET:
+				property = load(key, dir, fieldName, version, value);
+				Serializable deserialized = (Serializable) Wire.deserialize(value);
+				synchronized (property) { // Never lands inside another client's UPDATE
+					property.set(deserialized);
+				}
+				reply = null;
+				break;
+			case Wire.UPDATE:
+				Object expected = Wire.deserialize(value);
+				if (property == null && !PropertyDB.propertyExists(dir, fieldName, version)) {
+					flag = expected == null && create(key, dir, fieldName, version, update);
+				} else {
+					if (property == null) property = load(key, dir, fieldName, version, value);
+					synchronized (property) { // Atomic with respect to other clients
+						flag = Objects.equals(property.get(), expected);
+						if (flag) property.set((Serializable) Wire.deserialize(update));
+					}
+				}
+				reply = null;
+				break;
+			case Wire.DELETE:
+				if (property != null && loaded.remove(key, property)) {
+					PropertyDB.deleteProperty(property, ErrorHandler.throwAll());
+					flag = true;
+				} else {
+					flag = PropertyDB.propertyExists(dir, fieldName, version);
+					if (flag) PropertyDB.deleteProperty(dir, fieldName, version, ErrorHandler.throwAll());
+				}
+				reply = null;
+				break;
+			case Wire.EXISTS:
+				flag = property != null || PropertyDB.propertyExists(dir, fieldName, version);
+				reply = null;
+				break;
+			default: // UNLOAD
+				flag = property != null && loaded.remove(key, property);
+				if (flag) PropertyDB.unloadProperty(property, ErrorHandler.throwAll());
+				reply = null;
+			}
+		} catch (DatabaseException | IOException | RuntimeException e) {
+			Throwable cause = e instanceof RuntimeException && e.getCause() != null ? e.getCause() : e; // Unwrapped from ErrorHandler.throwAll
+			out.writeByte(Wire.FAILED);
+			out.writeUTF(String.valueOf(cause.getMessage()));
+			return;
+		}
+		
+		out.writeByte(Wire.OK);
+		if (operation == Wire.INITIATE || operation == Wire.GET) {
+			Wire.writeValue(out, reply);
+		} else if (operation != Wire.SET) {
+			out.writeBoolean(flag);
+		}
+	}
+	
+	// Loads a property for clients, unless already loaded
+	private MutableProperty<Serializable> load(String key, File dir, String fieldName, long version, byte[] initialValue) throws IOException {
+		MutableProperty<Serializable> property = loaded.get(key);
+		if (property != null) return property;
+		synchronized (loaded) { // Rare; serialized so that two clients don't initiate the same property
+			property = loaded.get(key);
+			if (property == null) {
+				property = PropertyDB.initiateProperty(dir, fieldName, version, (Serializable) Wire.deserialize(initialValue), ErrorHandler.throwAll());
+				loaded.put(key, property);
+			}
+			return property;
+		}
+	}
+	
+	// Creates a property for clients; false if another client created it first
+	private boolean create(String key, File dir, String fieldName, long version, byte[] initialValue) throws IOException {
+		synchronized (loaded) {
+			if (loaded.containsKey(key) || PropertyDB.propertyExists(dir, fieldName, version)) return false;
+			load(key, dir, fieldName, version, initialValue);
+			return true;
+		}
+	}
+	
+	// Keeps a client's property inside its directory
+	private static void checkFieldName(String fieldName) throws DatabaseException {
+		if (fieldName.indexOf('/') >= 0 || fieldName.indexOf('\\') >= 0 || fieldName.indexOf(File.separatorChar) >= 0 || fieldName.contains("..")) {
+			throw new DatabaseException("Invalid field name: " + fieldName);
+		}
+	}
+	
+	// Resolves a client's directory below the root
+	private File resolve(String directory) throws DatabaseException, IOException {
+		File dir = new File(root, directory).getCanonicalFile(); // Not cached: clients choose the strings
+		if (!dir.toPath().startsWith(root.toPath())) throw new DatabaseException("Directory outside of the server root: " + directory);
+		return dir;
+	}
+	
+	private void report(DatabaseException e) {
+		try {handler.handle(e);} catch (Exception e1) {}
+	}
+}
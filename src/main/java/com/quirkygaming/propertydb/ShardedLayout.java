@@ -0,0 +1,128 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+
+/**
+ * Optional on-disk layout that spreads property files over hashed subdirectories of the property directory,
+ * so that no single directory grows to hundreds of thousands of files.
+ * Each level adds 256 subdirectories named by two hex digits; all versions of a field share a subdirectory.
+ *
+ * The layout is recorded in a marker file in the property directory and picked up automatically,
+ * so no code using the directory needs to change. SubDB files are sharded like any other property.
+ * @author chandler
+ *
+ */
+public final class ShardedLayout {
+	
+	public static final int MAX_LEVELS = 3;
+	
+	private ShardedLayout() {}
+	
+	/**
+	 * Gets the number of shard levels of a directory
+	 * @param directory Location in which properties are stored
+	 * @return The number of levels, or 0 if the directory is flat
+	 * @throws IOException if the marker is unreadable
+	 */
+	public static int levels(File directory) throws IOException {
+		return Directory.readShardLevels(directory);
+	}
+	
+	/**
+	 * Enables the sharded layout for a new or empty directory. Use migrate for directories that already contain properties.
+	 * @param directory Location in which properties are stored
+	 * @param levels Number of subdirectory levels, 1 to MAX_LEVELS
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E
+	 */
+	public static <E extends Exception> void enable(File directory, int levels, ErrorHandler<E> handler) throws E {
+		checkLevels(levels);
+		if (!flatFiles(directory).isEmpty()) {
+			handler.handle(new DatabaseException("Directory already contains flat property files; migrate it instead: " + directory));
+			return;
+		}
+		migrate(directory, levels, 1, handler);
+	}
+	
+	/**
+	 * Converts a flat directory to the sharded layout, moving files in parallel.
+	 * No properties of the directory may be loaded while it is migrated.
+	 * If the migration is interrupted, running it again moves the remaining files.
+	 * A MapProperty's change log is moved before its property, so the two end up together.
+	 * @param directory Location in which properties are stored
+	 * @param levels Number of subdirectory levels, 1 to MAX_LEVELS
+	 * @param threads Number of threads moving files
+	 * @param handler An error handler; use the presets in ErrorLib or make your own to handle DatabaseException
+	 * @throws E
+	 */
+	public static <E extends Exception> void migrate(final File directory, final int levels, int threads, ErrorHandler<E> handler) throws E {
+		checkLevels(levels);
+		try {
+			int current = Directory.readShardLevels(directory);
+			if (current != 0 && current != levels) {
+				handler.handle(new DatabaseException("Directory is already sharded with " + current + " levels: " + directory));
+				return;
+			}
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while reading layout of " + directory, e));
+			return;
+		}
+		
+		Directory interned = PropertyDB.internedDirectory(directory);
+		if (interned != null && PropertyDB.loadedIn(interned)) {
+			handler.handle(new DatabaseException("Cannot migrate a directory with loaded properties: " + directory));
+			return;
+		}
+		
+		Map<File, Exception> failures = Parallel.forEach(flatFiles(directory), threads, new Parallel.Task<File>() {
+			public void run(File file) throws IOException {
+				File shard = Directory.shardFor(directory, Directory.fieldNameOf(file.getName()), levels);
+				shard.mkdirs();
+				File log = MapLog.of(file);
+				if (log.isFile()) Files.move(log.toPath(), new File(shard, log.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				Files.move(file.toPath(), new File(shard, file.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+		});
+		for (Map.Entry<File, Exception> failure : failures.entrySet()) {
+			handler.handle(new DatabaseException("Exception while moving " + failure.getKey() + " into its shard", failure.getValue()));
+		}
+		if (!failures.isEmpty()) return; // Leave the directory flat so the remaining files stay reachable
+		
+		try {
+			directory.mkdirs();
+			Files.write(new File(directory, Directory.SHARD_MARKER).toPath(), Integer.toString(levels).getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			handler.handle(new DatabaseException("IOException while writing shard marker in " + directory, e));
+			return;
+		}
+		if (interned != null) {
+			interned.shardLevels = levels;
+			interned.changes = null; // Every file moved; the next snapshot includes them all
+			if (interned.index != null) interned.index.rebuild();
+		}
+	}
+	
+	private static void checkLevels(int levels) {
+		if (levels < 1 || levels > MAX_LEVELS) throw new IllegalArgumentException("Shard levels must be between 1 and " + MAX_LEVELS);
+	}
+	
+	// Property files directly inside the directory; temporary files and change logs are not property files
+	private static List<File> flatFiles(File directory) {
+		List<File> result = new ArrayList<File>();
+		File[] files = directory.listFiles();
+		if (files == null) return result;
+		for (File file : files) {
+			if (file.isFile() && Directory.isPropertyFile(file.getName())) result.add(file);
+		}
+		return result;
+	}
+}
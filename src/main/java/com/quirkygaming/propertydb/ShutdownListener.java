@@ -0,0 +1,15 @@
+package com.quirkygaming.propertydb;
+
+/**
+ * Receives the progress of a deadline-bounded shutdown; see PropertyDB.closeDatabase.
+ * @author chandler
+ *
+ */
+public interface ShutdownListener {
+	/**
+	 * Called periodically on the closing thread while pending properties are saved, and once when saving has ended
+	 * @param saved Number of properties saved so far
+	 * @param total Number of properties that were waiting to be saved
+	 */
+	public void onProgress(int saved, int total);
+}
@@ -0,0 +1,109 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress and result of a snapshot started by PropertyDB.snapshot. The changed files were captured
+ * before it was returned; they are copied into the snapshot in the background.
+ * @author chandler
+ *
+ */
+public final class Snapshot {
+	
+	private final File location;
+	private final boolean incremental;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean succeeded = false;
+	
+	long pauseNanos;
+	int changed;
+	int deleted;
+	volatile int linked;
+	volatile int copied;
+	
+	Snapshot(File location, boolean incremental) {
+		this.location = location;
+		this.incremental = incremental;
+	}
+	
+	/**
+	 * @return The directory holding the snapshot once complete; until then it is written next to it with a ".partial" suffix
+	 */
+	public File location() {
+		return location;
+	}
+	
+	/**
+	 * @return Whether the snapshot was based on the previous one, or included every file
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+	
+	/**
+	 * @return Time for which writes to the directory were paused, in microseconds
+	 */
+	public long pauseMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(pauseNanos);
+	}
+	
+	/**
+	 * @return Number of files captured; every file unless the snapshot is incremental
+	 */
+	public int changed() {
+		return changed;
+	}
+	
+	/**
+	 * @return Number of files deleted since the previous snapshot
+	 */
+	public int deleted() {
+		return deleted;
+	}
+	
+	/**
+	 * @return Number of unchanged files hard-linked from the previous snapshot
+	 */
+	public int linked() {
+		return linked;
+	}
+	
+	/**
+	 * @return Number of files copied
+	 */
+	public int copied() {
+		return copied;
+	}
+	
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+	
+	/**
+	 * @return Whether the snapshot was completed; false while it is written or if it failed
+	 */
+	public boolean succeeded() {
+		return succeeded;
+	}
+	
+	/**
+	 * Waits for the snapshot to be written
+	 * @return True if it ended within the timeout
+	 */
+	public boolean await(long timeoutMillis) throws InterruptedException {
+		return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	void finish(boolean succeeded) {
+		this.succeeded = succeeded;
+		done.countDown();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s %s: %d changed, %d deleted, %d linked, %d copied, paused %d us",
+				incremental ? "Incremental" : "Full", location.getName(), changed, deleted, linked, copied, pauseMicros());
+	}
+}
@@ -0,0 +1,330 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.BufferProperty;
+
+/**
+ * Writes a snapshot of a directory in three steps. While writes continue, stage hard-links the files into the
+ * directory's staging area; since files are replaced rather than rewritten, the links keep the content they had
+ * at that point. Files modified in place (change logs, chunked and mapped properties) are copied instead, while
+ * holding the entry that writes them. While writes are paused, restage links again only the files changed since
+ * stage began; copyInPlace then copies those of them that are modified in place once writes resume.
+ * Run then copies the staged files into the snapshot in the background, hard-links unchanged files from the
+ * previous snapshot, and renames the snapshot into place once complete.
+ * @author chandler
+ *
+ */
+final class SnapshotWriter implements Runnable {
+	
+	static final String PARTIAL = ".partial";
+	private static final DateTimeFormatter NAMES = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+	private static final Pattern NAME = Pattern.compile("\\d{8}-\\d{6}-\\d{3}(-\\d+)?");
+	
+	private final Directory directory;
+	private final Path root;
+	private final Path staging;
+	private final File previous;
+	private final Snapshot snapshot;
+	private final ErrorHandler<?> handler;
+	
+	// Relative to the directory
+	private final Set<Path> staged = new HashSet<Path>();
+	private final Set<Path> deleted = new HashSet<Path>();
+	private final Set<Path> parents = new HashSet<Path>(); // Of the staged files, once created
+	
+	/**
+	 * @param previous The latest snapshot in the target, or null
+	 * @param incremental Whether the staged files are the changes since previous, rather than every file
+	 */
+	SnapshotWriter(Directory directory, File location, File previous, boolean incremental, ErrorHandler<?> handler) {
+		this.directory = directory;
+		this.root = directory.file.toPath();
+		this.staging = staging(directory).toPath();
+		this.previous = previous;
+		this.snapshot = new Snapshot(location, incremental);
+		this.handler = handler;
+	}
+	
+	Snapshot snapshot() {
+		return snapshot;
+	}
+	
+	static File staging(Directory directory) {
+		return new File(directory.file, Directory.SNAPSHOT_STAGING);
+	}
+	
+	/**
+	 * Returns the latest complete snapshot in a target directory, or null
+	 */
+	static File previous(File target) {
+		String latest = null;
+		String[] names = target.list();
+		if (names == null) return null;
+		for (String name : names) {
+			if (NAME.matcher(name).matches() && (latest == null || name.compareTo(latest) > 0)) latest = name;
+		}
+		return latest == null ? null : new File(target, latest);
+	}
+	
+	/**
+	 * Names a new snapshot after the current time, sorting after every snapshot in the target
+	 */
+	static File newLocation(File target, File previous) {
+		String name = NAMES.format(LocalDateTime.now());
+		if (previous != null && name.compareTo(previous.getName()) <= 0) name = previous.getName(); // Clock went back
+		String unique = name;
+		for (int n = 1; new File(target, unique).exists() || new File(target, unique + PARTIAL).exists(); n++) unique = name + "-" + n;
+		return new File(target, unique);
+	}
+	
+	/**
+	 * Lists every file of a directory except the staging area, temporary files and the excluded subtree
+	 */
+	static List<File> files(Directory directory, File exclude) throws IOException {
+		final Path skipStaging = staging(directory).toPath();
+		final Path skipExcluded = exclude.toPath();
+		final List<File> files = new ArrayList<File>();
+		if (!directory.file.isDirectory()) return files;
+		Files.walkFileTree(directory.file.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				return dir.equals(skipStaging) || dir.equals(skipExcluded) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(FileBackend.TEMP_EXTENSION)) files.add(file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+	
+	/**
+	 * Captures files into the staging area while writes continue; changes made meanwhile must be recorded
+	 * in the directory's changes, to be captured again by restage
+	 * @param writers Loaded entries writing files in place, by file
+	 */
+	void stage(Collection<File> files, Map<File, DBEntry<?,?>> writers) throws IOException {
+		for (File file : files) {
+			if (modifiedInPlace(file)) copy(file, writers.get(file));
+			else link(file);
+		}
+		count();
+	}
+	
+	/**
+	 * Captures again the files changed since stage began; writes to the directory must be paused. Only links,
+	 * so files modified in place must be passed to copyInPlace once writes resume.
+	 * @return The files linked
+	 */
+	List<File> restage(Collection<File> files) throws IOException {
+		List<File> linked = new ArrayList<File>(files.size());
+		for (File file : files) {
+			if (link(file)) linked.add(file);
+		}
+		count();
+		return linked;
+	}
+	
+	/**
+	 * Replaces the links restage made to files modified in place with copies, as they are once writes resumed
+	 * @param writers Loaded entries writing files in place, by file
+	 */
+	void copyInPlace(Collection<File> files, Map<File, DBEntry<?,?>> writers) throws IOException {
+		for (File file : files) {
+			if (modifiedInPlace(file)) copy(file, writers.get(file));
+		}
+		count();
+	}
+	
+	private void count() {
+		snapshot.changed = staged.size();
+		snapshot.deleted = deleted.size();
+	}
+	
+	// Links a file into the staging area, replacing what was staged for it; false if it no longer exists
+	private boolean link(File file) throws IOException {
+		Path relative = root.relativize(file.toPath());
+		Path into = unstage(relative);
+		try {
+			link(file.toPath(), into);
+		} catch (NoSuchFileException e) {
+			deleted.add(relative);
+			return false;
+		}
+		staged.add(relative);
+		return true;
+	}
+	
+	// Copies a file into the staging area while its writer, if loaded, can't save it
+	private void copy(File file, DBEntry<?,?> writer) throws IOException {
+		Path relative = root.relativize(file.toPath());
+		Path into = unstage(relative);
+		try {
+			if (writer == null) {
+				Files.copy(file.toPath(), into, StandardCopyOption.COPY_ATTRIBUTES);
+			} else {
+				synchronized (writer) {
+					if (writer.mutable instanceof BufferProperty && ((BufferProperty) writer.mutable).isMapped()) {
+						((MappedByteBuffer) writer.mutable.get()).force(); // Best effort; its pages are written without the entry
+					}
+					Files.copy(file.toPath(), into, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			deleted.add(relative);
+			return;
+		}
+		staged.add(relative);
+	}
+	
+	// Drops what was staged for a file, returning where it is staged
+	private Path unstage(Path relative) throws IOException {
+		Path into = staging.resolve(relative);
+		if (parents.add(into.getParent())) Files.createDirectories(into.getParent());
+		if (staged.remove(relative)) Files.deleteIfExists(into);
+		deleted.remove(relative);
+		return into;
+	}
+	
+	/**
+	 * Writes the snapshot from the staging area and the previous snapshot
+	 */
+	@Override
+	public void run() {
+		Path partial = new File(snapshot.location().getPath() + PARTIAL).toPath();
+		boolean succeeded = false;
+		try {
+			Files.createDirectories(partial);
+			if (snapshot.isIncremental()) linkUnchanged(partial);
+			for (Path relative : staged) {
+				Path source = staging.resolve(relative);
+				Path copy = partial.resolve(relative);
+				Files.createDirectories(copy.getParent());
+				Path base = previous == null ? null : previous.toPath().resolve(relative);
+				if (base != null && !snapshot.isIncremental() && same(source, base) && link(base, copy)) {
+					snapshot.linked++;
+				} else {
+					Files.copy(source, copy, StandardCopyOption.COPY_ATTRIBUTES);
+					snapshot.copied++;
+				}
+			}
+			Files.move(partial, snapshot.location().toPath(), StandardCopyOption.ATOMIC_MOVE);
+			succeeded = true;
+			assert PropertyDB.debug("Wrote snapshot " + snapshot);
+		} catch (IOException e) {
+			try {handler.handle(new DatabaseException("IOException while writing snapshot " + snapshot.location(), e));} catch (Exception e1) {}
+		} finally {
+			try {
+				delete(staging);
+				if (!succeeded) delete(partial);
+			} catch (IOException e) {
+				try {handler.handle(new DatabaseException("IOException while cleaning up snapshot " + snapshot.location(), e));} catch (Exception e1) {}
+			}
+			synchronized (directory) {
+				directory.lastSnapshot = succeeded ? snapshot.location() : null; // A failed snapshot lost the changes; the next one includes every file
+				directory.snapshotting = false;
+			}
+			snapshot.finish(succeeded);
+		}
+	}
+	
+	// Links the files of the previous snapshot that haven't changed since
+	private void linkUnchanged(final Path into) throws IOException {
+		final Path base = previous.toPath();
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path relative = base.relativize(file);
+				if (staged.contains(relative) || deleted.contains(relative)) return FileVisitResult.CONTINUE;
+				Path link = into.resolve(relative);
+				Files.createDirectories(link.getParent());
+				if (link(file, link)) snapshot.linked++;
+				else snapshot.copied++;
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	/**
+	 * Deletes a staging area or partial snapshot left behind
+	 */
+	static void delete(Path path) throws IOException {
+		if (!Files.exists(path)) return;
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null) throw e;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	// Hard-links a file, or copies it where links aren't supported; true if linked
+	private static boolean link(Path existing, Path link) throws IOException {
+		try {
+			Files.createLink(link, existing);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(existing, link, StandardCopyOption.COPY_ATTRIBUTES);
+			return false;
+		}
+	}
+	
+	private static boolean same(Path a, Path b) throws IOException {
+		if (!Files.isRegularFile(b)) return false;
+		return Files.size(a) == Files.size(b) && Files.getLastModifiedTime(a).equals(Files.getLastModifiedTime(b));
+	}
+	
+	// Files written without being replaced, which a link wouldn't hold still
+	private static boolean modifiedInPlace(File file) throws IOException {
+		if (file.getName().endsWith(MapLog.EXTENSION)) return true; // Appended to
+		byte[] magic = new byte[4];
+		InputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			return false; // Deleted; staged as such
+		}
+		try {
+			for (int n = 0, read; n < magic.length; n += read) {
+				if ((read = in.read(magic, n, magic.length - n)) < 0) return false;
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(magic, ChunkedFile.MAGIC) || Arrays.equals(magic, BufferFile.MAGIC);
+	}
+}
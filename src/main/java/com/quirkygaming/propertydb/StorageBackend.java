@@ -0,0 +1,76 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Stores the files PropertyDB reads and writes, addressed by their File locations. Select one with
+ * PropertyDB.initializeDB; FileBackend is the default, MemoryBackend keeps everything in memory,
+ * LatencyBackend wraps another to inject and measure storage latency, and ArchiveBackend restores
+ * an exported directory into another as it is accessed.
+ *
+ * Implementations must be thread-safe. PropertyDB never writes one location from two threads at once.
+ * @author chandler
+ *
+ */
+public interface StorageBackend {
+	/**
+	 * Opens a file for reading
+	 * @throws FileNotFoundException if it doesn't exist
+	 */
+	public InputStream read(File location) throws IOException;
+	
+	/**
+	 * Opens a file for writing, creating any missing directories. Its previous content, if any,
+	 * is replaced when the stream is closed, unless writing to it failed.
+	 */
+	public OutputStream write(File location) throws IOException;
+	
+	/**
+	 * Opens a file for appending, creating it if it doesn't exist
+	 */
+	public OutputStream append(File location) throws IOException;
+	
+	/**
+	 * Writes the remaining bytes of a buffer into an existing file at a position, extending it if necessary
+	 * @throws FileNotFoundException if it doesn't exist
+	 */
+	public void writeAt(File location, long position, ByteBuffer data) throws IOException;
+	
+	/**
+	 * Reads bytes at a position into the remaining space of a buffer
+	 * @return The number of bytes read, or -1 if the position is at or past the end
+	 * @throws FileNotFoundException if it doesn't exist
+	 */
+	public int readAt(File location, long position, ByteBuffer into) throws IOException;
+	
+	/**
+	 * Shortens a file; does nothing if it is already shorter
+	 */
+	public void truncate(File location, long length) throws IOException;
+	
+	/**
+	 * @return True if the file existed
+	 */
+	public boolean delete(File location) throws IOException;
+	
+	/**
+	 * @return Whether a file or directory exists
+	 */
+	public boolean exists(File location);
+	
+	/**
+	 * @return The length of a file, or 0 if it doesn't exist
+	 */
+	public long length(File location);
+	
+	/**
+	 * @return The names of the files and directories directly inside a directory; empty if it doesn't exist
+	 */
+	public List<String> list(File directory) throws IOException;
+}
@@ -0,0 +1,85 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The result of PropertyDB.verifyDirectory.
+ * @author chandler
+ *
+ */
+public final class Verification {
+	
+	final AtomicInteger checked = new AtomicInteger();
+	final AtomicInteger unchecked = new AtomicInteger();
+	final AtomicInteger skipped = new AtomicInteger();
+	final AtomicInteger quarantined = new AtomicInteger();
+	final AtomicLong bytes = new AtomicLong();
+	private final Map<File, String> corrupt = Collections.synchronizedMap(new LinkedHashMap<File, String>());
+	volatile long nanos;
+	
+	Verification() {}
+	
+	/**
+	 * @return Number of files whose checksum matched
+	 */
+	public int checked() {
+		return checked.get();
+	}
+	
+	/**
+	 * @return Number of files whose header was valid but whose checksum wasn't checked: checksums weren't requested,
+	 * or the file was written by an earlier version or is a chunked or buffer property, which have none
+	 */
+	public int unchecked() {
+		return unchecked.get();
+	}
+	
+	/**
+	 * @return Number of files left alone because their property is loaded
+	 */
+	public int skipped() {
+		return skipped.get();
+	}
+	
+	/**
+	 * @return Damaged files and the reason each failed; quarantined files are listed by their original location
+	 */
+	public Map<File, String> corrupt() {
+		synchronized (corrupt) {
+			return new LinkedHashMap<File, String>(corrupt);
+		}
+	}
+	
+	/**
+	 * @return Number of damaged files moved to the quarantine
+	 */
+	public int quarantined() {
+		return quarantined.get();
+	}
+	
+	/**
+	 * @return Total size of the files checked
+	 */
+	public long bytes() {
+		return bytes.get();
+	}
+	
+	public long millis() {
+		return nanos / 1000000;
+	}
+	
+	void corrupt(File file, String reason) {
+		corrupt.put(file, reason);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d checked, %d unchecked, %d skipped, %d corrupt (%d quarantined); %,d bytes in %d ms",
+				checked(), unchecked(), skipped(), corrupt.size(), quarantined(), bytes(), millis());
+	}
+}
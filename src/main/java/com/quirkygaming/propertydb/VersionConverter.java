@@ -0,0 +1,16 @@
+package com.quirkygaming.propertydb;
+
+/**
+ * Converts the value of a property from one version to the next; see PropertyDB.registerConverter.
+ * Called on migration threads and on threads loading properties, so it must be thread-safe.
+ * @author chandler
+ *
+ */
+public interface VersionConverter<A, B> {
+	/**
+	 * @param fieldName Name of the property being converted
+	 * @param value Its value at the older version
+	 * @return Its value at the next version
+	 */
+	public B convert(String fieldName, A value);
+}
@@ -0,0 +1,83 @@
+package com.quirkygaming.propertydb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The protocol between PropertyServer and PropertyClient. After a handshake ("QGIP" magic, protocol version
+ * (4 bytes), secret (UTF), answered by one status byte), the client sends requests back to back without waiting
+ * for replies, and the server answers each in order, flushing whenever it has caught up with what was received:
+ *
+ * Request: operation (1 byte), directory relative to the server root (UTF), field name (UTF), version (8 bytes),
+ * then the initial value for INITIATE, the value for SET, or the expected and the new value for UPDATE.
+ *
+ * Reply: OK, then the value for INITIATE and GET, whether it succeeded for UPDATE, or whether the property
+ * was there for DELETE, EXISTS and UNLOAD (1 byte each); or FAILED and a message (UTF).
+ *
+ * Values are serialized objects behind their length (4 bytes); -1 stands for null.
+ * @author chandler
+ *
+ */
+final class Wire {
+	
+	static final byte[] MAGIC = {'Q', 'G', 'I', 'P'};
+	static final int VERSION = 1;
+	static final int MAX_VALUE = 64 << 20;
+	
+	static final byte INITIATE = 1;
+	static final byte GET = 2;
+	static final byte SET = 3;
+	static final byte UPDATE = 4;
+	static final byte DELETE = 5;
+	static final byte EXISTS = 6;
+	static final byte UNLOAD = 7;
+	
+	static final byte OK = 0;
+	static final byte FAILED = 1;
+	
+	private Wire() {}
+	
+	static byte[] serialize(Object value) throws IOException {
+		if (value == null) return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	static Object deserialize(byte[] bytes) throws IOException {
+		if (bytes == null) return null;
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown class in value", e);
+		} finally {
+			in.close();
+		}
+	}
+	
+	static void writeValue(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	static byte[] readValue(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) return null;
+		if (length < 0 || length > MAX_VALUE) throw new IOException("Bad value length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,321 @@
+package com.quirkygaming.propertydb.sublayer;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.DatabaseException;
+import com.quirkygaming.propertydb.PropertyDB;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * A thread-safe SubDB. The index and cache maps are concurrent, and operations on a key hold
+ * one of a fixed set of striped locks, so calls for different keys proceed in parallel while calls
+ * for the same key are serialized. Stored data is compatible with SubDB; the two can open each other's
+ * subdatabases, though not at the same time.
+ *
+ * getPropertyList and iteration over the index are weakly consistent while other threads make changes.
+ * @author chandler
+ *
+ */
+public final class ConcurrentSubDB<E extends Exception> {
+	
+	private static final int STRIPES = 64 * Runtime.getRuntime().availableProcessors();
+	
+	volatile boolean closed = false;
+	final ConcurrentNavigableMap<String, MutableProperty<?>> fieldMap = new ConcurrentSkipListMap<>();
+	final ConcurrentMap<MutableProperty<?>, String> fieldMapReverse = new ConcurrentHashMap<>();
+	
+	final String name;
+	final File directory;
+	final ErrorHandler<E> handler;
+	
+	final MutableProperty<NavigableMap<String, SubEntryData>> index;
+	private final Object[] locks = new Object[Integer.highestOneBit(STRIPES - 1) << 1];
+	
+	// Values read by getAndCloseProperty; null when disabled
+	volatile ReadCache readCache = null;
+	
+	public ConcurrentSubDB(String name, File directory, ErrorHandler<E> handler) throws E {
+		this.name = name; this.directory = directory; this.handler = handler;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		
+		index = SubDB.openIndex(directory, name, new ConcurrentSkipListMap<String, SubEntryData>(), handler);
+		if (index != null && !(index.get() instanceof ConcurrentSkipListMap)) {
+			// Written by SubDB; convert once, saved on the next pass
+			index.set(new ConcurrentSkipListMap<String, SubEntryData>(index.get()));
+		}
+	}
+	
+	public String getName() {return name;}
+	
+	private Object lock(String fieldName) {
+		int h = fieldName.hashCode();
+		return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+	}
+	
+	private boolean closed() throws E {
+		if (closed) {
+			handler.handle(new DatabaseException("SubDB has been destroyed!"));
+			return true;
+		}
+		return false;
+	}
+	
+	public void destroySubDB() throws E {
+		synchronized (this) {
+			if (closed()) return;
+			closed = true;
+		}
+		// Delete loaded and unloaded properties in one batch
+		Map<String, Long> versions = new HashMap<String, Long>();
+		for (Map.Entry<String, SubEntryData> entry : index.get().entrySet()) {
+			versions.put(wrapName(entry.getKey()), entry.getValue().version);
+		}
+		fieldMap.clear();
+		fieldMapReverse.clear();
+		ReadCache cache = readCache;
+		if (cache != null) cache.clear();
+		PropertyDB.deleteProperties(directory, versions, handler);
+		PropertyDB.deleteProperty(directory, "SubDB_" + name, SubDB.ROOT_VERSION, handler);
+	}
+	
+	public boolean propertyExists(String fieldName) throws E {
+		if (closed) return false;
+		return index.get().containsKey(fieldName);
+	}
+	
+	public boolean propertyExists(String fieldName, long version) throws E {
+		if (closed) return false;
+		return PropertyDB.propertyExists(directory, wrapName(fieldName), version);
+	}
+	
+	public long propertyVersion(String fieldName) throws E {
+		if (closed()) return -1;
+		SubEntryData data = index.get().get(fieldName);
+		if (data == null) {
+			handler.handle(new DatabaseException("Subdatabase property " + fieldName + " does not exist!"));
+			return -1L;
+		} else {
+			return data.version;
+		}
+	}
+	
+	public <T extends Serializable> MutableProperty<T> initiateProperty(String fieldName, long version, T initialValue) throws E {
+		if (closed()) return null;
+		synchronized (lock(fieldName)) {
+			invalidate(fieldName);
+			MutableProperty<T> mutable = PropertyDB.initiateProperty(directory, wrapName(fieldName), version, initialValue,
+					handler);
+			if (mutable == null) return null; // Handled already
+			
+			SubEntryData data = index.get().get(fieldName);
+			if (data == null || data.version != version) { // Only rewrite the index if it changes
+				index.get().put(fieldName, new SubEntryData(version));
+				index.update();
+			}
+			
+			fieldMap.put(fieldName, mutable);
+			fieldMapReverse.put(mutable, fieldName); // Insert into cache maps
+			
+			return mutable;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public <T extends Serializable> MutableProperty<T> getLoadedProperty(String fieldName) throws E {
+		if (closed()) return null;
+		MutableProperty<?> property = fieldMap.get(fieldName);
+		if (property == null) {
+			handler.handle(new DatabaseException("Subdatabase property " + fieldName + " is not loaded!"));
+			return null;
+		} else {
+			try {
+				return (MutableProperty<T>) property;
+			} catch (ClassCastException e) {
+				handler.handle(new DatabaseException("ClassCastException while retrieving Property: " + fieldName, e));
+				return null;
+			}
+		}
+	}
+	
+	public <T extends Serializable> MutableProperty<T> getOrInitiateProperty(String fieldName, long version, T initialValue) throws E {
+		synchronized (lock(fieldName)) {
+			if (isLoaded(fieldName)) return getLoadedProperty(fieldName);
+			else return initiateProperty(fieldName, version, initialValue);
+		}
+	}
+	
+	/**
+	 * Returns the value of a property, creating it if it doesn't exist; a loaded property is unloaded.
+	 * A stored property is read without loading it or changing the index, through the read cache if enabled.
+	 */
+	public <T extends Serializable> T getAndCloseProperty(String fieldName, long version, T initialValue) throws E {
+		if (closed()) return null;
+		synchronized (lock(fieldName)) {
+			if (!isLoaded(fieldName)) {
+				T stored = readStored(fieldName, version);
+				if (stored != null) return stored;
+			}
+			MutableProperty<T> property = getOrInitiateProperty(fieldName, version, initialValue);
+			if (property == null) return null;
+			unloadProperty(fieldName);
+			return property.get();
+		}
+	}
+	
+	/**
+	 * Keeps the values most recently returned by getAndCloseProperty, so repeated reads of unloaded
+	 * properties don't touch the disk. Cached values are returned to every caller, so they must not be modified.
+	 * @param capacity Number of values to keep, or 0 to disable the cache
+	 */
+	public void setReadCache(int capacity) {
+		readCache = capacity > 0 ? new ReadCache(capacity) : null;
+	}
+	
+	// Reads an unloaded property listed in the index at this version, or returns null; called holding the key's lock
+	private <T extends Serializable> T readStored(String fieldName, long version) throws E {
+		SubEntryData data = index.get().get(fieldName);
+		if (data == null || data.version != version) return null;
+		ReadCache cache = readCache;
+		T value = cache == null ? null : cache.<T>get(fieldName, version);
+		if (value == null) {
+			value = PropertyDB.readProperty(directory, wrapName(fieldName), version, null, handler);
+			if (value != null && cache != null) cache.put(fieldName, version, value);
+		}
+		return value;
+	}
+	
+	private void invalidate(String fieldName) {
+		ReadCache cache = readCache;
+		if (cache != null) cache.invalidate(fieldName);
+	}
+	
+	public boolean isLoaded(String fieldName) {
+		if (closed) return false;
+		return fieldMap.containsKey(fieldName);
+	}
+	
+	public void deleteProperty(String fieldName) throws E {
+		if (closed()) return;
+		synchronized (lock(fieldName)) {
+			SubEntryData data = index.get().get(fieldName);
+			if (data == null) {
+				handler.handle(new DatabaseException("Subdatabase property " + fieldName + " does not exist!"));
+				return;
+			}
+			
+			invalidate(fieldName);
+			PropertyDB.deleteProperty(directory, wrapName(fieldName), data.version, handler);
+			
+			index.get().remove(fieldName); // Remove from index
+			index.update();
+			MutableProperty<?> property = fieldMap.remove(fieldName);
+			if (property != null) fieldMapReverse.remove(property); // Remove from both cache maps
+		}
+	}
+	
+	public void deleteProperty(MutableProperty<?> property) throws E {
+		if (closed()) return;
+		String fieldName = fieldMapReverse.get(property);
+		if (fieldName == null) {
+			handler.handle(new DatabaseException("Requested property does not exist in this subdatabase!"));
+			return;
+		}
+		synchronized (lock(fieldName)) {
+			if (fieldMap.get(fieldName) != property) {
+				handler.handle(new DatabaseException("Requested property does not exist in this subdatabase!"));
+				return;
+			}
+			invalidate(fieldName);
+			PropertyDB.deleteProperty(property, handler);
+			index.get().remove(fieldName); // Remove from index
+			index.update();
+			fieldMap.remove(fieldName);
+			fieldMapReverse.remove(property); // Remove from both cache maps
+		}
+	}
+	
+	public void unloadProperty(String fieldName) throws E {
+		if (closed()) return;
+		synchronized (lock(fieldName)) {
+			MutableProperty<?> property = fieldMap.get(fieldName);
+			if (property == null) {
+				handler.handle(new DatabaseException("Subdatabase property " + fieldName + " is not loaded!"));
+				return;
+			}
+			
+			PropertyDB.unloadProperty(property, handler);
+			
+			fieldMap.remove(fieldName);
+			fieldMapReverse.remove(property); // Remove from both cache maps
+		}
+	}
+	
+	public void unloadProperty(MutableProperty<?> property) throws E {
+		if (closed()) return;
+		String fieldName = fieldMapReverse.get(property);
+		if (fieldName == null) {
+			handler.handle(new DatabaseException("Requested property does not exist in this subdatabase!"));
+			return;
+		}
+		synchronized (lock(fieldName)) {
+			if (fieldMap.get(fieldName) != property) {
+				handler.handle(new DatabaseException("Requested property does not exist in this subdatabase!"));
+				return;
+			}
+			PropertyDB.unloadProperty(property, handler);
+			fieldMap.remove(fieldName);
+			fieldMapReverse.remove(property); // Remove from both cache maps
+		}
+	}
+	
+	/**
+	 * Opens a read-only, weakly consistent cursor over all keys; see SubDBCursor
+	 */
+	public SubDBCursor<E> cursor() throws E {
+		if (closed()) return null;
+		return new SubDBCursor<E>(index.get().entrySet().iterator(), directory, wrapName(""), handler);
+	}
+	
+	/**
+	 * Opens a read-only cursor over the keys from fromKey (inclusive) to toKey (exclusive)
+	 */
+	public SubDBCursor<E> cursor(String fromKey, String toKey) throws E {
+		if (closed()) return null;
+		return new SubDBCursor<E>(index.get().subMap(fromKey, toKey).entrySet().iterator(), directory, wrapName(""), handler);
+	}
+	
+	/**
+	 * Opens a read-only cursor over the keys starting with a prefix
+	 */
+	public SubDBCursor<E> cursorByPrefix(String prefix) throws E {
+		if (closed()) return null;
+		return new SubDBCursor<E>(SubDB.withPrefix(index.get(), prefix).entrySet().iterator(), directory, wrapName(""), handler);
+	}
+	
+	/**
+	 * Prepares a parallel, read-only scan over the stored values; see SubDBScan
+	 * @param handler Handles errors while reading values, which happens on the scanning threads
+	 */
+	public <T extends Serializable> SubDBScan<T> scan(ErrorHandler<RuntimeException> handler) throws E {
+		if (closed()) return null;
+		return new SubDBScan<T>(index.get(), directory, wrapName(""), handler);
+	}
+	
+	public List<String> getPropertyList() throws E {
+		if (closed()) return null;
+		return new ArrayList<String>(index.get().keySet());
+	}
+	
+	private String wrapName(String fieldName) {return "SubDB_" + name + "_" + fieldName;}
+}
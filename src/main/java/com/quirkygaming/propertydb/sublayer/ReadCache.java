@@ -0,0 +1,56 @@
+package com.quirkygaming.propertydb.sublayer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values recently read through getAndCloseProperty, by key, evicting the least recently used
+ * once full. Entries are dropped whenever their property is loaded or deleted, so a hit is always the stored value.
+ * @author chandler
+ *
+ */
+final class ReadCache {
+	
+	private static final class Value {
+		final long version;
+		final Object value;
+		
+		Value(long version, Object value) {
+			this.version = version; this.value = value;
+		}
+	}
+	
+	private final LinkedHashMap<String, Value> values;
+	
+	ReadCache(final int capacity) {
+		values = new LinkedHashMap<String, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Value> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * @return The cached value of a key at a version, or null
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized <T> T get(String fieldName, long version) {
+		Value cached = values.get(fieldName);
+		return cached != null && cached.version == version ? (T) cached.value : null;
+	}
+	
+	synchronized void put(String fieldName, long version, Object value) {
+		values.put(fieldName, new Value(version, value));
+	}
+	
+	synchronized void invalidate(String fieldName) {
+		values.remove(fieldName);
+	}
+	
+	synchronized void clear() {
+		values.clear();
+	}
+}
@@ -0,0 +1,201 @@
+package com.quirkygaming.propertydb.sublayer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * A secondary index over the values of a SubDB, mapping a key extracted from each value to the field names having it.
+ * The index is kept current from the SET and UPDATE events of loaded properties and persisted as its own property
+ * next to the SubDB index, so lookups never load values. Values whose extracted key is null are not indexed.
+ *
+ * Properties must be modified through set or signaled with update, as with any other PropertyDB property,
+ * for the index to see the change. Observers are signaled before set stores the value, so a set only marks the field
+ * pending; its key is computed once, on the next lookup, update or unload, and the stored index is only rewritten if
+ * the key changed. Pending fields are stored too, so that fields still pending when the database closes are read again
+ * when the index is reopened. Properties set from other threads must be set while holding their monitor, so that
+ * a lookup never reads a value that set hasn't stored yet.
+ * The index may be changed from any thread; lookups return copies.
+ * @author chandler
+ *
+ */
+public final class SecondaryIndex<K extends Comparable<? super K> & Serializable> {
+	
+	final String name;
+	
+	// Field name -> key, null if not indexed; this is what's stored, the reverse map is rebuilt on load
+	final MutableProperty<TreeMap<String, K>> keys;
+	private final TreeMap<K, TreeSet<String>> fields = new TreeMap<>();
+	private final Function<Object, ? extends K> extractor;
+	// Fields set since they were last indexed, with the number of sets, and where to find their loaded property
+	private final Map<String, Integer> pending = new HashMap<>();
+	private final Function<String, MutableProperty<?>> loaded;
+	// The pending fields as stored; only rewritten when a field becomes pending or is indexed
+	final MutableProperty<TreeSet<String>> unindexed;
+	
+	SecondaryIndex(String name, MutableProperty<TreeMap<String, K>> keys, MutableProperty<TreeSet<String>> unindexed, Function<Object, ? extends K> extractor, Function<String, MutableProperty<?>> loaded) {
+		this.name = name; this.keys = keys; this.unindexed = unindexed; this.extractor = extractor; this.loaded = loaded;
+		for (Map.Entry<String, K> entry : keys.get().entrySet()) {
+			if (entry.getValue() != null) link(entry.getValue(), entry.getKey());
+		}
+	}
+	
+	public String getName() {return name;}
+	
+	/**
+	 * @return Field names whose value has the key, in order
+	 */
+	public List<String> get(K key) {
+		refresh();
+		synchronized (this) {
+			TreeSet<String> names = fields.get(key);
+			if (names == null) return Collections.emptyList();
+			return new ArrayList<String>(names);
+		}
+	}
+	
+	/**
+	 * @return Field names whose key is from fromKey (inclusive) to toKey (exclusive), ordered by key
+	 */
+	public List<String> range(K fromKey, K toKey) {
+		refresh();
+		synchronized (this) {
+			return collect(fields.subMap(fromKey, true, toKey, false));
+		}
+	}
+	
+	/**
+	 * @return Field names whose key is at least fromKey, ordered by key
+	 */
+	public List<String> from(K fromKey) {
+		refresh();
+		synchronized (this) {
+			return collect(fields.tailMap(fromKey, true));
+		}
+	}
+	
+	/**
+	 * @return Field names whose key is less than toKey, ordered by key
+	 */
+	public List<String> to(K toKey) {
+		refresh();
+		synchronized (this) {
+			return collect(fields.headMap(toKey, false));
+		}
+	}
+	
+	/**
+	 * @return The indexed key of a field, or null if it is not indexed
+	 */
+	public K keyOf(String fieldName) {
+		refresh();
+		synchronized (this) {
+			return keys.get().get(fieldName);
+		}
+	}
+	
+	/**
+	 * @return The number of distinct keys
+	 */
+	public int size() {
+		refresh();
+		synchronized (this) {
+			return fields.size();
+		}
+	}
+	
+	// Whether the field's value has been seen, even if its key is null, and wasn't pending when last stored
+	synchronized boolean covers(String fieldName) {
+		return keys.get().containsKey(fieldName) && !unindexed.get().contains(fieldName);
+	}
+	
+	private static List<String> collect(NavigableMap<?, TreeSet<String>> range) {
+		List<String> result = new ArrayList<String>();
+		for (TreeSet<String> names : range.values()) result.addAll(names);
+		return result;
+	}
+	
+	// Indexes a field's current value; only rewrites the stored index if the key changed
+	synchronized void put(String fieldName, Object value) {
+		settle(fieldName);
+		K key = value == null ? null : extractor.apply(value);
+		K old = keys.get().get(fieldName);
+		if (keys.get().containsKey(fieldName) && (key == null ? old == null : key.equals(old))) return;
+		
+		synchronized (keys) {keys.get().put(fieldName, key);}
+		keys.update();
+		if (old != null) unlink(old, fieldName);
+		if (key != null) link(key, fieldName);
+	}
+	
+	synchronized void remove(String fieldName) {
+		settle(fieldName);
+		if (!keys.get().containsKey(fieldName)) return;
+		K old;
+		synchronized (keys) {old = keys.get().remove(fieldName);}
+		keys.update();
+		if (old != null) unlink(old, fieldName);
+	}
+	
+	// Marks a field that is being set; its stored key is left in place until the new one is known
+	synchronized void invalidate(String fieldName) {
+		Integer sets = pending.get(fieldName);
+		pending.put(fieldName, sets == null ? 1 : sets + 1);
+		if (sets != null) return;
+		boolean added;
+		synchronized (unindexed) {added = unindexed.get().add(fieldName);}
+		if (added) unindexed.update();
+	}
+	
+	private void settle(String fieldName) {
+		pending.remove(fieldName);
+		boolean removed;
+		synchronized (unindexed) {removed = unindexed.get().remove(fieldName);}
+		if (removed) unindexed.update();
+	}
+	
+	// Indexes the pending fields from their loaded properties. Values are read under the property's monitor, without
+	// holding this one, as set signals while holding it; a field set again meanwhile stays pending
+	private void refresh() {
+		Map<String, Integer> drained;
+		synchronized (this) {
+			if (pending.isEmpty()) return;
+			drained = new HashMap<String, Integer>(pending);
+		}
+		for (Map.Entry<String, Integer> entry : drained.entrySet()) {
+			String fieldName = entry.getKey();
+			MutableProperty<?> property = loaded.apply(fieldName);
+			Object value = null;
+			if (property != null) {
+				synchronized (property) {value = property.get();}
+			}
+			synchronized (this) {
+				if (!entry.getValue().equals(pending.get(fieldName))) continue;
+				if (property == null) pending.remove(fieldName); // Unloaded, and indexed then
+				else put(fieldName, value);
+			}
+		}
+	}
+	
+	private void link(K key, String fieldName) {
+		TreeSet<String> names = fields.get(key);
+		if (names == null) fields.put(key, names = new TreeSet<String>());
+		names.add(fieldName);
+	}
+	
+	private void unlink(K key, String fieldName) {
+		TreeSet<String> names = fields.get(key);
+		if (names == null) return;
+		names.remove(fieldName);
+		if (names.isEmpty()) fields.remove(key);
+	}
+}
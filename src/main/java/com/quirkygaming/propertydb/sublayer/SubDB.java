@@ -3,15 +3,23 @@ package com.quirkygaming.propertydb.sublayer;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
 
 import com.quirkygaming.errorlib.ErrorHandler;
 import com.quirkygaming.propertydb.DatabaseException;
 import com.quirkygaming.propertydb.PropertyDB;
 import com.quirkygaming.propertylib.MutableProperty;
+import com.quirkygaming.propertylib.Property;
+import com.quirkygaming.propertylib.PropertyObserver;
+import com.quirkygaming.propertylib.PropertyObserver.EventType;
 
 public final class SubDB<E extends Exception> {
 	
@@ -23,14 +31,28 @@ public final class SubDB<E extends Exception> {
 	File directory;
 	ErrorHandler<E> handler;
 	
-	MutableProperty<TreeMap<String, SubEntryData>> index;
-	private static long ROOT_VERSION = 1L;
+	// Stored as a TreeMap by SubDB and as a ConcurrentSkipListMap by ConcurrentSubDB; either can open the other's index
+	MutableProperty<NavigableMap<String, SubEntryData>> index;
+	static long ROOT_VERSION = 1L;
+	
+	final Map<String, SecondaryIndex<?>> secondaryIndexes = new LinkedHashMap<>();
+	// Feeds the secondary indexes from every loaded property; created with the first secondary index
+	private PropertyObserver<Object> indexObserver = null;
+	
+	// Values read by getAndCloseProperty; null when disabled
+	ReadCache readCache = null;
 	
 	public SubDB(String name, File directory, ErrorHandler<E> handler) throws E {
 		this.name = name; this.directory = directory; this.handler = handler;
 		
-		index = PropertyDB.initiateProperty(
-				directory, "SubDB_" + name, ROOT_VERSION, new TreeMap<String, SubEntryData>(), handler);
+		index = openIndex(directory, name, new TreeMap<String, SubEntryData>(), handler);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static <E extends Exception> MutableProperty<NavigableMap<String, SubEntryData>> openIndex(
+			File directory, String name, NavigableMap<String, SubEntryData> initialValue, ErrorHandler<E> handler) throws E {
+		return (MutableProperty) PropertyDB.initiateProperty(
+				directory, "SubDB_" + name, ROOT_VERSION, (Serializable) initialValue, handler);
 	}
 	
 	public String getName() {return name;}
@@ -45,17 +67,14 @@ public final class SubDB<E extends Exception> {
 	
 	public void destroySubDB() throws E {
 		if (closed()) return;
-		// Delete loaded properties
-		Object[] copy = fieldMapReverse.keySet().toArray();
-		for (Object o : copy) {
-			deleteProperty((MutableProperty<?>) o);
-		}
-		// Delete unloaded properties
-		copy = index.get().keySet().toArray();
-		for (Object o : copy) {
-			deleteProperty((String) o);
-		}
+		deleteAll(new ArrayList<String>(index.get().keySet())); // Loaded and unloaded properties
 		closed = true;
+		for (SecondaryIndex<?> secondary : secondaryIndexes.values()) {
+			PropertyDB.deleteProperty(secondary.keys, handler);
+			PropertyDB.deleteProperty(secondary.unindexed, handler);
+		}
+		secondaryIndexes.clear();
+		indexObserver = null;
 		PropertyDB.deleteProperty(directory, "SubDB_" + name, ROOT_VERSION, handler);
 
 	}
@@ -82,16 +101,19 @@ public final class SubDB<E extends Exception> {
 	
 	public <T extends Serializable> MutableProperty<T> initiateProperty(String fieldName, long version, T initialValue) throws E {
 		if (closed()) return null;
-		SubEntryData data = new SubEntryData(version);
-
-		index.get().put(fieldName, data);
-		index.update();
+		invalidate(fieldName);
+		SubEntryData data = index.get().get(fieldName);
+		if (data == null || data.version != version) { // Only rewrite the index if it changes
+			synchronized (index) {index.get().put(fieldName, new SubEntryData(version));}
+			index.update();
+		}
 
 		MutableProperty<T> mutable = PropertyDB.initiateProperty(directory, wrapName(fieldName), version, initialValue,
 				handler);
 
 		fieldMap.put(fieldName, mutable);
 		fieldMapReverse.put(mutable, fieldName); // Insert into cache maps
+		attach(fieldName, mutable);
 
 		return mutable;
 	}
@@ -117,14 +139,48 @@ public final class SubDB<E extends Exception> {
 		else return initiateProperty(fieldName, version, initialValue);
 	}
 	
-	// This loads and unloads a property, returning its value
+	/**
+	 * Returns the value of a property, creating it if it doesn't exist; a loaded property is unloaded.
+	 * A stored property is read without loading it or changing the index, through the read cache if enabled.
+	 */
 	public <T extends Serializable> T getAndCloseProperty(String fieldName, long version, T initialValue) throws E {
 		if (closed()) return null;
+		if (!isLoaded(fieldName)) {
+			T stored = readStored(fieldName, version);
+			if (stored != null) return stored;
+		}
 		MutableProperty<T> property = getOrInitiateProperty(fieldName, version, initialValue);
 		unloadProperty(property);
 		return property.get();
 	}
 	
+	/**
+	 * Keeps the values most recently returned by getAndCloseProperty, so repeated reads of unloaded
+	 * properties don't touch the disk. Cached values are returned to every caller, so they must not be modified.
+	 * @param capacity Number of values to keep, or 0 to disable the cache
+	 */
+	public void setReadCache(int capacity) {
+		readCache = capacity > 0 ? new ReadCache(capacity) : null;
+	}
+	
+	// Reads an unloaded property listed in the index at this version, or returns null
+	private <T extends Serializable> T readStored(String fieldName, long version) throws E {
+		SubEntryData data = index.get().get(fieldName);
+		if (data == null || data.version != version) return null;
+		ReadCache cache = readCache;
+		T value = cache == null ? null : cache.<T>get(fieldName, version);
+		if (value == null) {
+			value = PropertyDB.readProperty(directory, wrapName(fieldName), version, null, handler);
+			if (value != null && cache != null) cache.put(fieldName, version, value);
+		}
+		return value;
+	}
+	
+	private void invalidate(String fieldName) {
+		ReadCache cache = readCache;
+		if (cache != null) cache.invalidate(fieldName);
+	}
+	
 	public boolean isLoaded(String fieldName) {
 		if (closed) return false;
 		return fieldMap.containsKey(fieldName);
@@ -139,10 +195,13 @@ public final class SubDB<E extends Exception> {
 		
 		long version = propertyVersion(fieldName);
 		
+		detach(fieldMap.get(fieldName));
+		invalidate(fieldName);
 		PropertyDB.deleteProperty(directory, wrapName(fieldName), version, handler);
 
-		index.get().remove(fieldName); // Remove from index
+		synchronized (index) {index.get().remove(fieldName);} // Remove from index
 		index.update();
+		unindex(fieldName);
 		fieldMapReverse.remove(fieldMap.remove(fieldName)); // Remove from both cache maps
 	}
 	
@@ -151,9 +210,12 @@ public final class SubDB<E extends Exception> {
 		if (!fieldMapReverse.containsKey(property)) {
 			handler.handle(new DatabaseException("Requested property does not exist in this subdatabase!"));
 		} else {
+			detach(property);
+			invalidate(fieldMapReverse.get(property));
 			PropertyDB.deleteProperty(property, handler);
-			index.get().remove(fieldMapReverse.get(property)); // Remove from index
+			synchronized (index) {index.get().remove(fieldMapReverse.get(property));} // Remove from index
 			index.update();
+			unindex(fieldMapReverse.get(property));
 			fieldMap.remove(fieldMapReverse.remove(property)); // Remove from both cache maps
 		}
 	}
@@ -165,6 +227,7 @@ public final class SubDB<E extends Exception> {
 			return;
 		}
 		
+		release(fieldName, fieldMap.get(fieldName));
 		PropertyDB.unloadProperty(fieldMap.get(fieldName), handler);
 
 		fieldMapReverse.remove(fieldMap.remove(fieldName)); // Remove from both cache maps
@@ -175,11 +238,251 @@ public final class SubDB<E extends Exception> {
 		if (!fieldMapReverse.containsKey(property)) {
 			handler.handle(new DatabaseException("Requested property does not exist in this subdatabase!"));
 		} else {
+			release(fieldMapReverse.get(property), property);
 			PropertyDB.unloadProperty(property, handler);
 			fieldMap.remove(fieldMapReverse.remove(property)); // Remove from both cache maps
 		}
 	}
 	
+	/**
+	 * Loads or creates several properties at once, reading them in parallel.
+	 * The index is updated once for the whole batch.
+	 * @return The loaded properties by field name, in the order given
+	 */
+	public <T extends Serializable> Map<String, MutableProperty<T>> initiateAll(Collection<String> fieldNames, long version, T initialValue) throws E {
+		if (closed()) return null;
+		Map<String, String> wrapped = new LinkedHashMap<>();
+		for (String fieldName : fieldNames) {
+			wrapped.put(wrapName(fieldName), fieldName);
+			invalidate(fieldName);
+		}
+		
+		Map<String, MutableProperty<T>> loaded = PropertyDB.initiateProperties(directory, wrapped.keySet(), version, initialValue, handler);
+		
+		Map<String, MutableProperty<T>> result = new LinkedHashMap<>();
+		for (Map.Entry<String, MutableProperty<T>> entry : loaded.entrySet()) {
+			String fieldName = wrapped.get(entry.getKey());
+			MutableProperty<T> mutable = entry.getValue();
+			synchronized (index) {index.get().put(fieldName, new SubEntryData(version));}
+			fieldMap.put(fieldName, mutable);
+			fieldMapReverse.put(mutable, fieldName); // Insert into cache maps
+			attach(fieldName, mutable);
+			result.put(fieldName, mutable);
+		}
+		if (!result.isEmpty()) index.update();
+		return result;
+	}
+	
+	/**
+	 * Unloads several loaded properties at once, saving pending changes in parallel.
+	 */
+	public void unloadAll(Collection<String> fieldNames) throws E {
+		if (closed()) return;
+		List<MutableProperty<?>> properties = new ArrayList<>();
+		int notLoaded = 0;
+		for (String fieldName : fieldNames) {
+			MutableProperty<?> property = fieldMap.remove(fieldName);
+			if (property == null) {
+				notLoaded++;
+			} else {
+				fieldMapReverse.remove(property); // Remove from both cache maps
+				release(fieldName, property);
+				properties.add(property);
+			}
+		}
+		PropertyDB.unloadProperties(properties, handler);
+		if (notLoaded > 0) {
+			handler.handle(new DatabaseException(notLoaded + " subdatabase properties are not loaded!"));
+		}
+	}
+	
+	/**
+	 * Deletes several properties (loaded or unloaded) at once, deleting the files in parallel.
+	 * The index is updated once for the whole batch.
+	 */
+	public void deleteAll(Collection<String> fieldNames) throws E {
+		if (closed()) return;
+		Map<String, Long> versions = new HashMap<>();
+		int missing = 0;
+		synchronized (index) { // Keeps a save pass from writing the index halfway through
+			for (String fieldName : fieldNames) {
+				SubEntryData data = index.get().remove(fieldName); // Remove from index
+				if (data == null) {
+					missing++;
+				} else {
+					versions.put(wrapName(fieldName), data.version);
+					unindex(fieldName);
+					invalidate(fieldName);
+					MutableProperty<?> property = fieldMap.remove(fieldName);
+					detach(property);
+					fieldMapReverse.remove(property); // Remove from both cache maps
+				}
+			}
+		}
+		if (!versions.isEmpty()) index.update();
+		
+		PropertyDB.deleteProperties(directory, versions, handler);
+		if (missing > 0) {
+			handler.handle(new DatabaseException(missing + " subdatabase properties do not exist!"));
+		}
+	}
+	
+	/**
+	 * Deletes all properties whose field names start with a prefix
+	 * @return The number of properties deleted
+	 */
+	public int deleteByPrefix(String prefix) throws E {
+		if (closed()) return 0;
+		List<String> matching = new ArrayList<>(withPrefix(index.get(), prefix).keySet());
+		deleteAll(matching);
+		return matching.size();
+	}
+	
+	/**
+	 * Opens a read-only cursor over all keys; see SubDBCursor
+	 */
+	public SubDBCursor<E> cursor() throws E {
+		if (closed()) return null;
+		return new SubDBCursor<E>(index.get().entrySet().iterator(), directory, wrapName(""), handler);
+	}
+	
+	/**
+	 * Opens a read-only cursor over the keys from fromKey (inclusive) to toKey (exclusive)
+	 */
+	public SubDBCursor<E> cursor(String fromKey, String toKey) throws E {
+		if (closed()) return null;
+		return new SubDBCursor<E>(index.get().subMap(fromKey, toKey).entrySet().iterator(), directory, wrapName(""), handler);
+	}
+	
+	/**
+	 * Opens a read-only cursor over the keys starting with a prefix
+	 */
+	public SubDBCursor<E> cursorByPrefix(String prefix) throws E {
+		if (closed()) return null;
+		return new SubDBCursor<E>(withPrefix(index.get(), prefix).entrySet().iterator(), directory, wrapName(""), handler);
+	}
+	
+	static NavigableMap<String, SubEntryData> withPrefix(NavigableMap<String, SubEntryData> index, String prefix) {
+		return index.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+	}
+	
+	/**
+	 * Prepares a parallel, read-only scan over the stored values; see SubDBScan
+	 * @param handler Handles errors while reading values, which happens on the scanning threads
+	 */
+	public <T extends Serializable> SubDBScan<T> scan(ErrorHandler<RuntimeException> handler) throws E {
+		if (closed()) return null;
+		return new SubDBScan<T>(index.get(), directory, wrapName(""), handler);
+	}
+	
+	/**
+	 * Adds a secondary index over the values of this SubDB, or reopens it if it was stored before.
+	 * Values not yet covered by a stored index, or set and not yet indexed when it was last stored, are read once to index them.
+	 * @param indexName Name of the index
+	 * @param keyExtractor Extracts the key from a value; values with a null key are not indexed
+	 * @return The index
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public <T, K extends Comparable<? super K> & Serializable> SecondaryIndex<K> addIndex(String indexName, Function<? super T, ? extends K> keyExtractor) throws E {
+		if (closed()) return null;
+		if (secondaryIndexes.containsKey(indexName)) {
+			handler.handle(new DatabaseException("Secondary index " + indexName + " already exists!"));
+			return null;
+		}
+		MutableProperty<TreeMap<String, K>> keys = PropertyDB.initiateProperty(directory, "SubDBIndex_" + name + "_" + indexName, ROOT_VERSION, new TreeMap<String, K>(), handler);
+		if (keys == null) return null; // Handled already
+		MutableProperty<TreeSet<String>> unindexed = PropertyDB.initiateProperty(directory, "SubDBPending_" + name + "_" + indexName, ROOT_VERSION, new TreeSet<String>(), handler);
+		if (unindexed == null) {
+			PropertyDB.unloadProperty(keys, handler);
+			return null;
+		}
+		SecondaryIndex<K> secondary = new SecondaryIndex<K>(indexName, keys, unindexed, (Function) keyExtractor, new Function<String, MutableProperty<?>>() {
+			public MutableProperty<?> apply(String fieldName) {
+				return fieldMap.get(fieldName);
+			}
+		});
+		
+		List<String> stored = new ArrayList<String>(keys.get().keySet());
+		stored.addAll(unindexed.get());
+		for (String fieldName : stored) {
+			if (!index.get().containsKey(fieldName)) secondary.remove(fieldName); // Deleted while the index was not open
+		}
+		for (Map.Entry<String, SubEntryData> entry : index.get().entrySet()) {
+			String fieldName = entry.getKey();
+			MutableProperty<?> loaded = fieldMap.get(fieldName);
+			if (loaded != null) {
+				secondary.put(fieldName, loaded.get());
+			} else if (!secondary.covers(fieldName)) {
+				secondary.put(fieldName, PropertyDB.readProperty(directory, wrapName(fieldName), entry.getValue().version, null, handler));
+			}
+		}
+		
+		if (indexObserver == null) {
+			indexObserver = new PropertyObserver<Object>() {
+				public void onChange(Property<Object> modifiedProperty, EventType type) {
+					String fieldName = fieldMapReverse.get(modifiedProperty);
+					if (fieldName == null) return;
+					for (SecondaryIndex<?> secondary : secondaryIndexes.values()) {
+						if (type == EventType.SET) secondary.invalidate(fieldName); // Not stored yet
+						else secondary.put(fieldName, modifiedProperty.get());
+					}
+				}
+			};
+			for (MutableProperty<?> loaded : fieldMap.values()) observable(loaded).addObserver(indexObserver, EventType.SET, EventType.UPDATE);
+		}
+		secondaryIndexes.put(indexName, secondary);
+		return secondary;
+	}
+	
+	/**
+	 * @return An open secondary index, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <K extends Comparable<? super K> & Serializable> SecondaryIndex<K> getIndex(String indexName) {
+		return (SecondaryIndex<K>) secondaryIndexes.get(indexName);
+	}
+	
+	/**
+	 * Closes and deletes a secondary index
+	 */
+	public void dropIndex(String indexName) throws E {
+		if (closed()) return;
+		SecondaryIndex<?> secondary = secondaryIndexes.remove(indexName);
+		if (secondary == null) {
+			handler.handle(new DatabaseException("Secondary index " + indexName + " does not exist!"));
+			return;
+		}
+		PropertyDB.deleteProperty(secondary.keys, handler);
+		PropertyDB.deleteProperty(secondary.unindexed, handler);
+	}
+	
+	// Indexes a newly loaded property and keeps it indexed while it is loaded
+	private void attach(String fieldName, MutableProperty<?> mutable) {
+		if (indexObserver == null || mutable == null) return;
+		for (SecondaryIndex<?> secondary : secondaryIndexes.values()) secondary.put(fieldName, mutable.get());
+		observable(mutable).addObserver(indexObserver, EventType.SET, EventType.UPDATE);
+	}
+	
+	private void detach(MutableProperty<?> mutable) {
+		if (indexObserver != null && mutable != null) observable(mutable).removeObserver(indexObserver);
+	}
+	
+	// Stops following a property that is being unloaded, indexing the value it is saved with
+	private void release(String fieldName, MutableProperty<?> mutable) {
+		detach(mutable);
+		if (mutable == null) return;
+		for (SecondaryIndex<?> secondary : secondaryIndexes.values()) secondary.put(fieldName, mutable.get());
+	}
+	
+	private void unindex(String fieldName) {
+		for (SecondaryIndex<?> secondary : secondaryIndexes.values()) secondary.remove(fieldName);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static MutableProperty<Object> observable(MutableProperty<?> mutable) {
+		return (MutableProperty<Object>) mutable;
+	}
+	
 	public List<String> getPropertyList() throws E {
 		if (closed()) return null;
 		return new ArrayList<String>(index.get().keySet());
@@ -187,10 +490,3 @@ public final class SubDB<E extends Exception> {
 	
 	private String wrapName(String fieldName) {return "SubDB_" + name + "_" + fieldName;}
 }
-
-class SubEntryData implements Serializable {
-	private static final long serialVersionUID = -4473280399672895854L;
-	long version;
-	
-	SubEntryData(long version) {this.version = version;}
-}
\ No newline at end of file
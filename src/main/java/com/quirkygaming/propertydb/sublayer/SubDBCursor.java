@@ -0,0 +1,77 @@
+package com.quirkygaming.propertydb.sublayer;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.PropertyDB;
+
+/**
+ * A read-only cursor over the keys of a SubDB, in key order. The cursor walks the index directly
+ * instead of copying it, and values are deserialized only when asked for, without being loaded into PropertyDB,
+ * so a scan uses constant memory and never rewrites anything.
+ *
+ * A SubDB must not be modified while one of its cursors is in use; a ConcurrentSubDB cursor is weakly consistent.
+ * @author chandler
+ *
+ */
+public final class SubDBCursor<E extends Exception> implements Iterator<String> {
+	
+	private final Iterator<Map.Entry<String, SubEntryData>> entries;
+	private final File directory;
+	private final String prefix;
+	private final ErrorHandler<E> handler;
+	
+	private Map.Entry<String, SubEntryData> current;
+	
+	SubDBCursor(Iterator<Map.Entry<String, SubEntryData>> entries, File directory, String prefix, ErrorHandler<E> handler) {
+		this.entries = entries; this.directory = directory; this.prefix = prefix; this.handler = handler;
+	}
+	
+	public boolean hasNext() {
+		return entries.hasNext();
+	}
+	
+	/**
+	 * Advances to the next key
+	 */
+	public String next() {
+		current = entries.next();
+		return current.getKey();
+	}
+	
+	/**
+	 * @return The current key
+	 */
+	public String key() {
+		return current().getKey();
+	}
+	
+	/**
+	 * @return The stored version of the current key
+	 */
+	public long version() {
+		return current().getValue().version;
+	}
+	
+	/**
+	 * Reads a snapshot of the current value. Changes to it are never saved.
+	 * @return The value, or null if it is not stored
+	 */
+	public <T extends Serializable> T value() throws E {
+		Map.Entry<String, SubEntryData> entry = current();
+		return PropertyDB.readProperty(directory, prefix + entry.getKey(), entry.getValue().version, null, handler);
+	}
+	
+	public void remove() {
+		throw new UnsupportedOperationException("SubDB cursors are read-only");
+	}
+	
+	private Map.Entry<String, SubEntryData> current() {
+		if (current == null) throw new NoSuchElementException("next() has not been called");
+		return current;
+	}
+}
@@ -0,0 +1,156 @@
+package com.quirkygaming.propertydb.sublayer;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.PropertyDB;
+
+/**
+ * A parallel scan over the stored values of a SubDB. Values are read-only snapshots deserialized straight
+ * from their files; they are never registered in PropertyDB, so changes to them are not saved.
+ *
+ * The number of bytes being read and processed at once is bounded by a memory budget, measured by file size.
+ * The budget covers each value until the stream has finished with it, so values kept by the
+ * stream (e.g. collected into a list) are not counted.
+ *
+ * Use run to execute a stream pipeline with the configured parallelism; streams used directly run in the common pool.
+ * @author chandler
+ *
+ */
+public final class SubDBScan<T extends Serializable> {
+	
+	private final NavigableMap<String, SubEntryData> index;
+	private final File directory;
+	private final String prefix;
+	private final ErrorHandler<RuntimeException> handler;
+	
+	// Reads are I/O bound, so use more threads than cores
+	private int parallelism = Runtime.getRuntime().availableProcessors() * 2;
+	private long memoryBudget = 64L << 20;
+	
+	SubDBScan(NavigableMap<String, SubEntryData> index, File directory, String prefix, ErrorHandler<RuntimeException> handler) {
+		this.index = index; this.directory = directory; this.prefix = prefix; this.handler = handler;
+	}
+	
+	/**
+	 * Sets the number of threads used by run
+	 */
+	public SubDBScan<T> parallelism(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.parallelism = threads;
+		return this;
+	}
+	
+	/**
+	 * Sets the maximum number of bytes read and processed at once; a single larger value is still read alone
+	 */
+	public SubDBScan<T> memoryBudget(long bytes) {
+		if (bytes < 1) throw new IllegalArgumentException("Memory budget must be positive");
+		this.memoryBudget = bytes;
+		return this;
+	}
+	
+	/**
+	 * Splits the keys indexed at the time of the call. Values of keys that are no longer stored are null.
+	 */
+	public Spliterator<Map.Entry<String, T>> spliterator() {
+		int size = index.size();
+		String[] keys = new String[size];
+		long[] versions = new long[size];
+		int i = 0;
+		for (Map.Entry<String, SubEntryData> entry : index.entrySet()) {
+			if (i == size) break; // Grown by another thread (ConcurrentSubDB)
+			keys[i] = entry.getKey();
+			versions[i++] = entry.getValue().version;
+		}
+		int permits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget >> 10));
+		return new Split(keys, versions, 0, i, new Semaphore(permits), permits);
+	}
+	
+	/**
+	 * @return A parallel stream of key-value snapshots in key order
+	 */
+	public Stream<Map.Entry<String, T>> stream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+	
+	/**
+	 * Runs a stream pipeline on a pool of the configured parallelism and waits for its result, e.g.
+	 *
+	 * long rich = scan.run(s -> s.filter(e -> e.getValue().balance > 1000).count());
+	 *
+	 * Exceptions thrown by the pipeline are rethrown.
+	 */
+	public <R> R run(final Function<? super Stream<Map.Entry<String, T>>, R> job) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return pool.submit(new Callable<R>() {
+				public R call() {
+					return job.apply(stream()); // Parallel streams started in a pool run in that pool
+				}
+			}).join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private final class Split implements Spliterator<Map.Entry<String, T>> {
+		
+		private final String[] keys;
+		private final long[] versions;
+		private int next;
+		private final int end;
+		private final Semaphore budget;
+		private final int permits;
+		
+		Split(String[] keys, long[] versions, int next, int end, Semaphore budget, int permits) {
+			this.keys = keys; this.versions = versions; this.next = next; this.end = end; this.budget = budget; this.permits = permits;
+		}
+		
+		public boolean tryAdvance(Consumer<? super Map.Entry<String, T>> action) {
+			if (next >= end) return false;
+			String key = keys[next];
+			long version = versions[next++];
+			String fieldName = prefix + key;
+			
+			// Permits are KiB of file; never more than the whole budget
+			int weight = (int) Math.min(permits, (PropertyDB.storedSize(directory, fieldName, version) >> 10) + 1);
+			budget.acquireUninterruptibly(weight);
+			try {
+				T value = PropertyDB.readProperty(directory, fieldName, version, null, handler);
+				action.accept(new AbstractMap.SimpleImmutableEntry<String, T>(key, value));
+			} finally {
+				budget.release(weight);
+			}
+			return true;
+		}
+		
+		public Spliterator<Map.Entry<String, T>> trySplit() {
+			int mid = (next + end) >>> 1;
+			if (mid <= next) return null;
+			Split first = new Split(keys, versions, next, mid, budget, permits);
+			next = mid;
+			return first;
+		}
+		
+		public long estimateSize() {
+			return end - next;
+		}
+		
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+		}
+	}
+}
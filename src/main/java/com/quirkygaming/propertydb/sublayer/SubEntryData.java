@@ -0,0 +1,15 @@
+package com.quirkygaming.propertydb.sublayer;
+
+import java.io.Serializable;
+
+/**
+ * The index record kept by a SubDB for each of its entries.
+ * @author chandler
+ *
+ */
+class SubEntryData implements Serializable {
+	private static final long serialVersionUID = -4473280399672895854L;
+	long version;
+	
+	SubEntryData(long version) {this.version = version;}
+}
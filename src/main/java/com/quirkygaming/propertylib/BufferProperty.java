@@ -0,0 +1,73 @@
+package com.quirkygaming.propertylib;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * A MutableProperty holding a ByteBuffer, normally a direct or memory-mapped one, so that large
+ * binary values stay off the Java heap. The value is the buffer's content from 0 to its limit; position is ignored.
+ * <p>
+ * As with any MutableProperty, modify the buffer while holding this property's monitor and call update() afterwards.
+ * A store such as PropertyDB writes the buffer straight to its file, or only forces it if the buffer maps that file.
+ *
+ * @author  Chandler Griscom
+ * @version 1.0
+ */
+public class BufferProperty extends MutableProperty<ByteBuffer> {
+	
+	private static final long serialVersionUID = 4411867022417632155L;
+	
+	// Set while the value maps the store's own file
+	private transient boolean mapped = false;
+	
+	/**
+	 * Constructs a new BufferProperty
+	 *
+	 * @param initialValue The buffer, which will be owned by the BufferProperty
+	 * @return The newly constructed BufferProperty
+	 */
+	public static BufferProperty newBufferProperty(ByteBuffer initialValue) {
+		return new BufferProperty(new PropertyImpl<ByteBuffer>(initialValue));
+	}
+	
+	/**
+	 * Constructs a new BufferProperty holding a zeroed direct buffer
+	 *
+	 * @param capacity Size of the buffer in bytes
+	 * @return The newly constructed BufferProperty
+	 */
+	public static BufferProperty allocateDirect(int capacity) {
+		return newBufferProperty(ByteBuffer.allocateDirect(capacity));
+	}
+	
+	/**
+	 * Constructs a BufferProperty holding a buffer mapped from its store's own file; used by stores.
+	 *
+	 * @param buffer The mapped buffer
+	 * @return The newly constructed BufferProperty
+	 */
+	public static BufferProperty newMappedProperty(MappedByteBuffer buffer) {
+		BufferProperty property = newBufferProperty(buffer);
+		property.mapped = true;
+		return property;
+	}
+	
+	BufferProperty(Property<ByteBuffer> property) {
+		super(property);
+	}
+	
+	/**
+	 * @return Whether the current value maps the store's file, so saving only needs to force it
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+	
+	@Override
+	public void set(ByteBuffer v) {
+		synchronized (this) {
+			mapped = false; // The store writes the new buffer to its file instead
+		}
+		super.set(v);
+	}
+}
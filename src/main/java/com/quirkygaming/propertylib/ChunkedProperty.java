@@ -0,0 +1,131 @@
+package com.quirkygaming.propertylib;
+
+import java.util.BitSet;
+
+import com.quirkygaming.propertylib.PropertyObserver.EventType;
+
+/**
+ * A MutableProperty holding a large byte array divided into fixed-size chunks. Writes made through
+ * write() record which chunks they touched, so that a store such as PropertyDB can rewrite only those chunks.
+ * <p>
+ * read and write lock this property's monitor themselves and signal UPDATE. Modifying the array in any other way
+ * must be followed by update(), as with any MutableProperty; that, and set(), marks every chunk as changed.
+ *
+ * @author  Chandler Griscom
+ * @version 1.0
+ */
+public class ChunkedProperty extends MutableProperty<byte[]> {
+	
+	private static final long serialVersionUID = -5180460627010948611L;
+	
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	
+	private final int chunkSize;
+	
+	// Chunks written since the last takeDirtyChunks; not kept once rewrite is set
+	private transient BitSet dirty = null;
+	private transient boolean rewrite;
+	
+	/**
+	 * Constructs a new ChunkedProperty
+	 *
+	 * @param initialValue The array, which will be owned by the ChunkedProperty
+	 * @param chunkSize Size of the chunks in bytes
+	 * @return The newly constructed ChunkedProperty
+	 */
+	public static ChunkedProperty newChunkedProperty(byte[] initialValue, int chunkSize) {
+		return new ChunkedProperty(new PropertyImpl<byte[]>(initialValue), chunkSize);
+	}
+	
+	ChunkedProperty(Property<byte[]> property, int chunkSize) {
+		super(property);
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be positive");
+		this.chunkSize = chunkSize;
+		rewrite = true; // Never written
+	}
+	
+	public int chunkSize() {
+		return chunkSize;
+	}
+	
+	public int length() {
+		synchronized (this) {
+			return getInternal().length;
+		}
+	}
+	
+	/**
+	 * Copies bytes out of the value
+	 */
+	public void read(int offset, byte[] dst, int dstOffset, int length) {
+		synchronized (this) {
+			System.arraycopy(getInternal(), offset, dst, dstOffset, length);
+		}
+	}
+	
+	/**
+	 * Copies bytes into the value and records the chunks they fall in
+	 */
+	public void write(int offset, byte[] src, int srcOffset, int length) {
+		synchronized (this) {
+			System.arraycopy(src, srcOffset, getInternal(), offset, length);
+			if (!rewrite && length > 0) {
+				if (dirty == null) dirty = new BitSet();
+				dirty.set(offset / chunkSize, (offset + length - 1) / chunkSize + 1);
+			}
+		}
+		signal(EventType.UPDATE);
+	}
+	
+	@Override
+	public void set(byte[] v) {
+		synchronized (this) {
+			markRewrite();
+		}
+		super.set(v);
+	}
+	
+	@Override
+	public void update() {
+		synchronized (this) {
+			markRewrite();
+		}
+		super.update();
+	}
+	
+	private void markRewrite() {
+		rewrite = true;
+		dirty = null;
+	}
+	
+	/**
+	 * Returns chunks taken by takeDirtyChunks that a store failed to write, so that the next save writes them again.
+	 * Callers must hold this property's monitor.
+	 *
+	 * @param taken What takeDirtyChunks returned; null marks the whole value as changed
+	 */
+	public void restoreDirtyChunks(BitSet taken) {
+		if (taken == null) {
+			markRewrite();
+		} else if (!rewrite) {
+			if (dirty == null) dirty = new BitSet();
+			dirty.or(taken);
+		}
+	}
+	
+	/**
+	 * Takes the chunks written since the last call; used by stores that write them.
+	 * Callers must hold this property's monitor while they copy the chunks.
+	 *
+	 * @return The indexes of the written chunks, or null if the whole value must be written
+	 */
+	public BitSet takeDirtyChunks() {
+		BitSet taken;
+		if (rewrite) taken = null;
+		else if (dirty == null) taken = new BitSet();
+		else taken = dirty;
+		dirty = null;
+		rewrite = false;
+		return taken;
+	}
+}
@@ -0,0 +1,191 @@
+package com.quirkygaming.propertylib;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.quirkygaming.propertylib.PropertyObserver.EventType;
+
+/**
+ * A MutableProperty holding a HashMap that records the keys put and removed through it, so that
+ * a store such as PropertyDB can persist just those changes instead of the whole map.
+ * <p>
+ * put and remove lock this property's monitor themselves and signal UPDATE. Modifying the map in any other way
+ * must be followed by update(), as with any MutableProperty; that, and set(), marks the whole map as changed.
+ *
+ * @author  Chandler Griscom
+ * @version 1.0
+ */
+public class MapProperty<K, V> extends MutableProperty<HashMap<K, V>> {
+	
+	private static final long serialVersionUID = 2231938264591075286L;
+	
+	/**
+	 * A put or remove of one key
+	 */
+	public static final class Change<K, V> implements Serializable {
+		private static final long serialVersionUID = -3311786045734946183L;
+		
+		final boolean remove;
+		final K key;
+		final V value;
+		
+		Change(boolean remove, K key, V value) {
+			this.remove = remove; this.key = key; this.value = value;
+		}
+	}
+	
+	// Number of times the whole map was written; ties a store's change log to the map it applies to
+	private long checkpoint = 0;
+	
+	// Changes since the last takeChanges; not kept once rewrite is set
+	private transient List<Change<K, V>> changes = null;
+	private transient boolean rewrite;
+	
+	/**
+	 * Constructs a new MapProperty holding a map
+	 *
+	 * @param initialValue The map, which will be owned by the MapProperty
+	 * @return The newly constructed MapProperty
+	 */
+	public static <K, V> MapProperty<K, V> newMapProperty(HashMap<K, V> initialValue) {
+		return new MapProperty<K, V>(new PropertyImpl<HashMap<K, V>>(initialValue));
+	}
+	
+	/**
+	 * Constructs a new MapProperty holding an empty map
+	 */
+	public static <K, V> MapProperty<K, V> newMapProperty() {
+		return newMapProperty(new HashMap<K, V>());
+	}
+	
+	MapProperty(Property<HashMap<K, V>> property) {
+		super(property);
+		rewrite = true; // Never written
+	}
+	
+	public V get(K key) {
+		synchronized (this) {
+			return getInternal().get(key);
+		}
+	}
+	
+	public boolean containsKey(K key) {
+		synchronized (this) {
+			return getInternal().containsKey(key);
+		}
+	}
+	
+	public int size() {
+		synchronized (this) {
+			return getInternal().size();
+		}
+	}
+	
+	/**
+	 * Puts a value and records the change
+	 * @return The previous value
+	 */
+	public V put(K key, V value) {
+		V previous;
+		synchronized (this) {
+			previous = getInternal().put(key, value);
+			record(new Change<K, V>(false, key, value));
+		}
+		signal(EventType.UPDATE);
+		return previous;
+	}
+	
+	/**
+	 * Removes a key and records the change
+	 * @return The previous value
+	 */
+	public V remove(K key) {
+		V previous;
+		synchronized (this) {
+			if (!getInternal().containsKey(key)) return null;
+			previous = getInternal().remove(key);
+			record(new Change<K, V>(true, key, null));
+		}
+		signal(EventType.UPDATE);
+		return previous;
+	}
+	
+	@Override
+	public void set(HashMap<K, V> v) {
+		synchronized (this) {
+			markRewrite();
+		}
+		super.set(v);
+	}
+	
+	@Override
+	public void update() {
+		synchronized (this) {
+			markRewrite();
+		}
+		super.update();
+	}
+	
+	private void record(Change<K, V> change) {
+		if (rewrite) return;
+		if (changes == null) changes = new ArrayList<Change<K, V>>();
+		changes.add(change);
+		if (changes.size() > getInternal().size() + 16) markRewrite(); // Cheaper to write the map
+	}
+	
+	/**
+	 * Marks the whole map as changed; used by stores that failed to persist changes already taken.
+	 * Callers must hold this property's monitor.
+	 */
+	public void markRewrite() {
+		rewrite = true;
+		changes = null;
+	}
+	
+	/**
+	 * Takes the changes recorded since the last call; used by stores that persist them.
+	 * Callers must hold this property's monitor until they have also written the map, if they do.
+	 *
+	 * @return The changes in order, or null if the whole map must be written
+	 */
+	public List<Change<K, V>> takeChanges() {
+		List<Change<K, V>> taken;
+		if (rewrite) taken = null;
+		else if (changes == null) taken = Collections.emptyList();
+		else taken = changes;
+		changes = null;
+		rewrite = false;
+		return taken;
+	}
+	
+	/**
+	 * @return The number of times the whole map was written
+	 */
+	public long checkpoint() {
+		return checkpoint;
+	}
+	
+	/**
+	 * Starts a new checkpoint; called by stores just before writing the whole map
+	 * @return The new checkpoint number
+	 */
+	public long newCheckpoint() {
+		return ++checkpoint;
+	}
+	
+	/**
+	 * Applies changes read back by a store, without recording or signaling them
+	 */
+	public void replay(List<Change<K, V>> changes) {
+		synchronized (this) {
+			HashMap<K, V> map = getInternal();
+			for (Change<K, V> change : changes) {
+				if (change.remove) map.remove(change.key);
+				else map.put(change.key, change.value);
+			}
+		}
+	}
+}
@@ -3,7 +3,7 @@ package com.quirkygaming.propertylib;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Vector;
+import java.util.Arrays;
 
 import com.quirkygaming.propertylib.PropertyObserver.EventType;
 
@@ -153,39 +153,11 @@ public abstract class Property<T> implements Serializable {
 	 * Removes a PropertyObserver
 	 */
 	public void removeObserver(PropertyObserver<T> observer) {
-		if (observers == null) observers = new Observer<T>();
+		if (observers == null) return;
 		observers.removeHandler(observer);
 	}
 }
 
-class PropertyImpl<T> extends Property<T> implements Serializable {
-	
-	private static final long serialVersionUID = 4567929961845330373L;
-
-	PropertyImpl(T initialValue) {
-		property = initialValue;
-	}
-
-	T property;
-	
-	void setInternal(T v) {
-		property = v;
-	}
-	T getInternal() {
-		return property;
-	}
-	
-	public T get() {
-		signal(EventType.GET);
-		return getInternal();
-	}
-	
-	@Override
-	public String toString() {
-		return property.toString();
-	}
-}
-
 class CloningProperty<T extends Cloneable> extends PropertyImpl<T> implements Serializable {
 	
 	private static final long serialVersionUID = -2402718642797054031L;
@@ -291,32 +263,61 @@ class BoundProperty<T> extends Property<T> implements Serializable {
 }
 
 
+/**
+ * Observer lists are allocated lazily and stored as copy-on-write arrays, since most properties
+ * have at most one or two observers and there may be millions of properties.
+ */
 class Observer<T> {
-	private Vector<PropertyObserver<T>> observers_GET = new Vector<PropertyObserver<T>>();
-	private Vector<PropertyObserver<T>> observers_SET = new Vector<PropertyObserver<T>>();
-	private Vector<PropertyObserver<T>> observers_UPDATE = new Vector<PropertyObserver<T>>();
+	private volatile PropertyObserver<T>[] observers_GET = null;
+	private volatile PropertyObserver<T>[] observers_SET = null;
+	private volatile PropertyObserver<T>[] observers_UPDATE = null;
 	
 	protected void handleEvents(Property<T> property, EventType type) {
+		PropertyObserver<T>[] handlers;
 		switch (type) {
-			case GET: for (PropertyObserver<T> o : observers_GET) {o.onChange(property, type);} break;
-			case SET: for (PropertyObserver<T> o : observers_SET) {o.onChange(property, type);} break;
-			case UPDATE: for (PropertyObserver<T> o : observers_UPDATE) {o.onChange(property, type);} break;
+			case GET: handlers = observers_GET; break;
+			case SET: handlers = observers_SET; break;
+			case UPDATE: handlers = observers_UPDATE; break;
+			default: return;
 		}
+		if (handlers == null) return;
+		for (PropertyObserver<T> o : handlers) {o.onChange(property, type);}
 	}
 	
-	protected void addHandler(PropertyObserver<T> o, EventType... types) {
+	protected synchronized void addHandler(PropertyObserver<T> o, EventType... types) {
 		for (EventType type : types) {
 			switch (type) {
-				case GET: observers_GET.add(o); break;
-				case SET: observers_SET.add(o); break;
-				case UPDATE: observers_UPDATE.add(o); break;
+				case GET: observers_GET = add(observers_GET, o); break;
+				case SET: observers_SET = add(observers_SET, o); break;
+				case UPDATE: observers_UPDATE = add(observers_UPDATE, o); break;
 			}
 		}
 	}
 	
-	protected void removeHandler(PropertyObserver<T> o) {
-		observers_GET.remove(o);
-		observers_SET.remove(o);
-		observers_UPDATE.remove(o);
+	protected synchronized void removeHandler(PropertyObserver<T> o) {
+		observers_GET = remove(observers_GET, o);
+		observers_SET = remove(observers_SET, o);
+		observers_UPDATE = remove(observers_UPDATE, o);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> PropertyObserver<T>[] add(PropertyObserver<T>[] handlers, PropertyObserver<T> o) {
+		if (handlers == null) return (PropertyObserver<T>[]) new PropertyObserver<?>[] {o};
+		PropertyObserver<T>[] result = Arrays.copyOf(handlers, handlers.length + 1);
+		result[handlers.length] = o;
+		return result;
+	}
+	
+	private static <T> PropertyObserver<T>[] remove(PropertyObserver<T>[] handlers, PropertyObserver<T> o) {
+		if (handlers == null) return null;
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i].equals(o)) {
+				if (handlers.length == 1) return null;
+				PropertyObserver<T>[] result = Arrays.copyOf(handlers, handlers.length - 1);
+				System.arraycopy(handlers, i + 1, result, i, handlers.length - i - 1);
+				return result;
+			}
+		}
+		return handlers;
 	}
 }
@@ -0,0 +1,39 @@
+package com.quirkygaming.propertylib;
+
+import java.io.Serializable;
+
+import com.quirkygaming.propertylib.PropertyObserver.EventType;
+
+/**
+ * The Property that holds a value directly; the base of MutableProperty, MapProperty and the other value-holding properties.
+ *
+ * @author  Chandler Griscom
+ * @version 1.0
+ */
+class PropertyImpl<T> extends Property<T> implements Serializable {
+	
+	private static final long serialVersionUID = 4567929961845330373L;
+
+	PropertyImpl(T initialValue) {
+		property = initialValue;
+	}
+
+	T property;
+	
+	void setInternal(T v) {
+		property = v;
+	}
+	T getInternal() {
+		return property;
+	}
+	
+	public T get() {
+		signal(EventType.GET);
+		return getInternal();
+	}
+	
+	@Override
+	public String toString() {
+		return property.toString();
+	}
+}
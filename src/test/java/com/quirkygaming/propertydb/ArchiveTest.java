@@ -0,0 +1,146 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.MapProperty;
+
+/**
+ * Exports a directory with a SubDB, a map, a chunked property and a deduplicated subdirectory into an archive,
+ * imports it on one and on several threads, and restores it lazily through an ArchiveBackend, checking the values
+ * each time. Compares export and import with copying the files one by one.
+ *
+ * Usage: ArchiveTest [properties] [threads]
+ */
+public class ArchiveTest {
+	
+	static final File ROOT = new File("/tmp/test_db_archive/");
+	static final File DIR = new File(ROOT, "db");
+	static final File ARCHIVE = new File(ROOT, "db.qgar");
+	static final int CHUNK = 4096;
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		ConcurrentSubDBStressTest.delete(ROOT);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		SubDB<RuntimeException> db = new SubDB<>("users", DIR, ErrorHandler.throwAll());
+		for (int i = 0; i < count; i++) db.getAndCloseProperty("u" + i, 1, "user " + i);
+		MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		for (int i = 0; i < 100; i++) map.put("k" + i, i);
+		PropertyDB.initiateChunkedProperty(DIR, "blob", 1, filled(8 * CHUNK), CHUNK, ErrorHandler.throwAll());
+		File shared = new File(DIR, "shared");
+		PropertyDB.setDeduplication(token, shared, true, ErrorHandler.throwAll());
+		for (int i = 0; i < 100; i++) PropertyDB.initiateProperty(shared, "s" + i, 1, "same", ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		
+		long start = System.nanoTime();
+		int files = PropertyDB.exportDirectory(DIR, ARCHIVE, threads, ErrorHandler.throwAll());
+		long exportMs = millisSince(start);
+		check("every file exported", files == countFiles(DIR) && files >= count + 4);
+		
+		start = System.nanoTime();
+		copy(DIR.toPath(), new File(ROOT, "copy").toPath());
+		long copyMs = millisSince(start);
+		
+		File single = new File(ROOT, "single");
+		start = System.nanoTime();
+		check("imported on one thread", PropertyDB.importArchive(ARCHIVE, single, 1, ErrorHandler.throwAll()) == files);
+		long singleMs = millisSince(start);
+		
+		File parallel = new File(ROOT, "parallel");
+		start = System.nanoTime();
+		check("imported in parallel", PropertyDB.importArchive(ARCHIVE, parallel, threads, ErrorHandler.throwAll()) == files);
+		long parallelMs = millisSince(start);
+		
+		token = PropertyDB.initializeDB(1000000);
+		check("values imported", values(single, count) && values(parallel, count));
+		PropertyDB.closeDatabase(token);
+		
+		File lazy = new File(ROOT, "lazy");
+		ArchiveBackend backend = new ArchiveBackend(new FileBackend(), ARCHIVE, lazy);
+		token = PropertyDB.initializeDB(1000000, backend);
+		db = new SubDB<>("users", lazy, ErrorHandler.throwAll());
+		check("lazy reads", db.getAndCloseProperty("u7", 1, "").equals("user 7") && db.propertyExists("u8"));
+		check("restored on access", backend.restored() < 10 && backend.pending() > count - 10);
+		db.getAndCloseProperty("u9", 2, "replaced");
+		db.deleteProperty("u10");
+		int before = backend.restored();
+		check("restored the rest", backend.restoreAll(threads) == backend.restored() - before && backend.pending() == 0);
+		PropertyDB.closeDatabase(token);
+		backend.close();
+		
+		token = PropertyDB.initializeDB(1000000);
+		check("values restored lazily", values(lazy, count));
+		check("lazy changes kept", PropertyDB.readProperty(lazy, "SubDB_users_u9", 2, "", ErrorHandler.throwAll()).equals("replaced")
+				&& !PropertyDB.propertyExists(lazy, "SubDB_users_u10", 1));
+		PropertyDB.closeDatabase(token);
+		
+		System.out.printf("%,d files, %,d byte archive: export %d ms, import %d ms on 1 thread, %d ms on %d; copying the files took %d ms%n",
+				files, ARCHIVE.length(), exportMs, singleMs, parallelMs, threads, copyMs);
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static boolean values(File directory, int count) {
+		SubDB<RuntimeException> db = new SubDB<>("users", directory, ErrorHandler.throwAll());
+		for (int i = 11; i < count; i++) {
+			if (!db.getAndCloseProperty("u" + i, 1, "").equals("user " + i)) return false;
+		}
+		MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(directory, "map", 1, ErrorHandler.throwAll());
+		boolean values = map.size() == 100 && map.get("k42") == 42;
+		PropertyDB.unloadProperty(map, ErrorHandler.throwAll());
+		byte[] range = PropertyDB.readRange(directory, "blob", 1, 5 * CHUNK - 2, 4, ErrorHandler.throwAll());
+		return values && range[0] == (byte) (5 * CHUNK - 2) && range[3] == (byte) (5 * CHUNK + 1)
+				&& PropertyDB.readProperty(new File(directory, "shared"), "s42", 1, "", ErrorHandler.throwAll()).equals("same");
+	}
+	
+	static byte[] filled(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) bytes[i] = (byte) i;
+		return bytes;
+	}
+	
+	static int countFiles(File directory) {
+		int count = 0;
+		for (File file : directory.listFiles()) count += file.isDirectory() ? countFiles(file) : 1;
+		return count;
+	}
+	
+	static void copy(final Path from, final Path to) throws IOException {
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(to.resolve(from.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, to.resolve(from.relativize(file)));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
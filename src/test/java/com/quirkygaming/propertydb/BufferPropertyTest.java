@@ -0,0 +1,93 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.BufferProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that direct and mapped BufferProperties are saved in normal passes and read back,
+ * that they don't occupy the heap, and that plain byte[] properties are converted.
+ *
+ * Usage: BufferPropertyTest [megabytes]
+ */
+public class BufferPropertyTest {
+	
+	static final File DIR = new File("/tmp/test_db_buffer/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024 * 1024;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		long heap = usedHeap();
+		BufferProperty direct = PropertyDB.initiateBufferProperty(DIR, "direct", 1, ByteBuffer.allocateDirect(size), ErrorHandler.throwAll());
+		BufferProperty mapped = PropertyDB.initiateMappedProperty(DIR, "mapped", 1, size, ErrorHandler.throwAll());
+		check("mapped", mapped.isMapped() && !direct.isMapped());
+		fill(direct, 3);
+		fill(mapped, 5);
+		long start = System.nanoTime();
+		PropertyDB.forceSave(token);
+		double ms = (System.nanoTime() - start) / 1e6;
+		long grown = usedHeap() - heap;
+		check("kept off the heap", grown < size / 4);
+		System.out.printf("Saved two %,d byte buffers in %.1f ms; heap grew %,d bytes%n", size, ms, grown);
+		check("file sizes", new File(DIR, "direct_1.property").length() == BufferFile.HEADER + size
+				&& new File(DIR, "mapped_1.property").length() == BufferFile.HEADER + size);
+		PropertyDB.closeDatabase(token);
+		
+		token = PropertyDB.initializeDB(1000000);
+		direct = PropertyDB.initiateBufferProperty(DIR, "direct", 1, null, ErrorHandler.throwAll());
+		check("direct reloaded", direct.get().isDirect() && filled(direct, 3));
+		mapped = PropertyDB.initiateMappedProperty(DIR, "mapped", 1, 0, ErrorHandler.throwAll());
+		check("mapped reloaded", filled(mapped, 5));
+		PropertyDB.unloadProperty(direct, ErrorHandler.throwAll());
+		mapped.set(ByteBuffer.allocateDirect(10)); // Replaces the mapping
+		PropertyDB.forceSave(token);
+		check("replaced mapping written", !mapped.isMapped() && new File(DIR, "mapped_1.property").length() == BufferFile.HEADER + 10);
+		direct = PropertyDB.initiateMappedProperty(DIR, "direct", 1, 0, ErrorHandler.throwAll());
+		check("direct file mapped", filled(direct, 3));
+		
+		MutableProperty<byte[]> plain = PropertyDB.initiateProperty(DIR, "plain", 1, new byte[] {1, 2, 3}, ErrorHandler.throwAll());
+		PropertyDB.unloadProperty(plain, ErrorHandler.throwAll());
+		BufferProperty converted = PropertyDB.initiateMappedProperty(DIR, "plain", 1, 0, ErrorHandler.throwAll());
+		check("converted", converted.get().capacity() == 3 && converted.get().get(2) == 3);
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void fill(BufferProperty property, int seed) {
+		synchronized (property) {
+			ByteBuffer buffer = property.get();
+			for (int i = 0; i < buffer.limit(); i += 4096) buffer.put(i, (byte) (i / 4096 * seed));
+		}
+		property.update();
+	}
+	
+	static boolean filled(BufferProperty property, int seed) {
+		ByteBuffer buffer = property.get();
+		for (int i = 0; i < buffer.limit(); i += 4096) {
+			if (buffer.get(i) != (byte) (i / 4096 * seed)) return false;
+		}
+		return true;
+	}
+	
+	static long usedHeap() {
+		System.gc();
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
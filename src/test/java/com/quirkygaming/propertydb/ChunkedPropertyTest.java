@@ -0,0 +1,125 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.ChunkedProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that writing to a ChunkedProperty rewrites only the chunks touched, that ranges can be read
+ * without loading the value, that chunks whose write failed are written with the next save,
+ * and that plain byte[] properties are converted.
+ *
+ * Usage: ChunkedPropertyTest [megabytes]
+ */
+public class ChunkedPropertyTest {
+	
+	static final File DIR = new File("/tmp/test_db_chunked/");
+	static final File FILE = new File(DIR, "blob_1.property");
+	static final int CHUNK = 4096;
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024 + 123;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		byte[] expected = new byte[size];
+		new Random(1).nextBytes(expected);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		ChunkedProperty blob = PropertyDB.initiateChunkedProperty(DIR, "blob", 1, expected.clone(), CHUNK, ErrorHandler.throwAll());
+		PropertyDB.forceSave(token);
+		check("written at once", FILE.length() == ChunkedFile.HEADER + size);
+		
+		byte[] before = readFile();
+		byte[] patch = new byte[100];
+		Arrays.fill(patch, (byte) 7);
+		int offset = 5 * CHUNK - 50; // Spans chunks 4 and 5
+		long start = System.nanoTime();
+		blob.write(offset, patch, 0, patch.length);
+		PropertyDB.forceSave(token);
+		double ms = (System.nanoTime() - start) / 1e6;
+		System.arraycopy(patch, 0, expected, offset, patch.length);
+		byte[] after = readFile();
+		check("length unchanged", after.length == before.length);
+		check("only the touched chunks rewritten", changedChunks(before, after) == 2);
+		check("file matches", Arrays.equals(Arrays.copyOfRange(after, ChunkedFile.HEADER, after.length), expected));
+		System.out.printf("%,d byte value; 100 byte write saved in %.2f ms%n", size, ms);
+		
+		blob.write(size - 10, patch, 0, 10); // Last, partial chunk
+		System.arraycopy(patch, 0, expected, size - 10, 10);
+		byte[] range = PropertyDB.readRange(DIR, "blob", 1, size - 20, 20, ErrorHandler.throwAll()); // Flushes first
+		check("range of a loaded property", Arrays.equals(range, Arrays.copyOfRange(expected, size - 20, size)));
+		PropertyDB.closeDatabase(token);
+		
+		range = PropertyDB.readRange(DIR, "blob", 1, offset, 200, ErrorHandler.throwAll());
+		check("range without a database", Arrays.equals(range, Arrays.copyOfRange(expected, offset, offset + 200)));
+		
+		final boolean[] failing = {false};
+		token = PropertyDB.initializeDB(1000000, new FileBackend() {
+			@Override
+			public void writeAt(File location, long position, ByteBuffer data) throws IOException {
+				if (failing[0]) throw new IOException("Write failed");
+				super.writeAt(location, position, data);
+			}
+		});
+		blob = PropertyDB.initiateChunkedProperty(DIR, "blob", 1, null, CHUNK, ErrorHandler.throwAll());
+		check("reloaded", Arrays.equals(blob.get(), expected) && blob.chunkSize() == CHUNK);
+		blob.write(CHUNK, patch, 0, 10);
+		System.arraycopy(patch, 0, expected, CHUNK, 10);
+		failing[0] = true;
+		PropertyDB.forceSave(token);
+		failing[0] = false;
+		before = readFile();
+		blob.write(3 * CHUNK, patch, 0, 10);
+		System.arraycopy(patch, 0, expected, 3 * CHUNK, 10);
+		PropertyDB.forceSave(token);
+		after = readFile();
+		check("failed chunks written next time", changedChunks(before, after) == 2);
+		check("file matches after a failed write", Arrays.equals(Arrays.copyOfRange(after, ChunkedFile.HEADER, after.length), expected));
+		
+		MutableProperty<byte[]> plain = PropertyDB.initiateProperty(DIR, "plain", 1, new byte[] {1, 2, 3}, ErrorHandler.throwAll());
+		PropertyDB.unloadProperty(plain, ErrorHandler.throwAll());
+		ChunkedProperty converted = PropertyDB.initiateChunkedProperty(DIR, "plain", 1, null, CHUNK, ErrorHandler.throwAll());
+		check("converted", Arrays.equals(converted.get(), new byte[] {1, 2, 3}));
+		check("converted range", PropertyDB.readRange(DIR, "plain", 1, 1, 2, ErrorHandler.throwAll())[1] == 3);
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static byte[] readFile() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(FILE, "r");
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			return bytes;
+		} finally {
+			file.close();
+		}
+	}
+	
+	static int changedChunks(byte[] before, byte[] after) {
+		int changed = 0;
+		for (int from = ChunkedFile.HEADER; from < before.length; from += CHUNK) {
+			int to = Math.min(before.length, from + CHUNK);
+			if (!Arrays.equals(Arrays.copyOfRange(before, from, to), Arrays.copyOfRange(after, from, to))) changed++;
+		}
+		return changed;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.HashMap;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Writes the same map-heavy properties uncompressed and compressed, reads both back,
+ * and reports the disk usage of each. Small values stay below the threshold and are written uncompressed.
+ *
+ * Usage: CompressionTest [properties] [entries per property]
+ */
+public class CompressionTest {
+	
+	static final File PLAIN = new File("/tmp/test_db_compression/plain/");
+	static final File COMPRESSED = new File("/tmp/test_db_compression/deflate/");
+	
+	public static void main(String[] args) {
+		int properties = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int entries = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		ConcurrentSubDBStressTest.delete(PLAIN.getParentFile());
+		
+		InitializationToken token = PropertyDB.initializeDB(1000);
+		PropertyDB.setCompression(token, COMPRESSED, new DeflateCodec(), 512, ErrorHandler.throwAll());
+		for (File dir : new File[] {PLAIN, COMPRESSED}) {
+			for (int i = 0; i < properties; i++) {
+				PropertyDB.initiateProperty(dir, "map" + i, 1, value(i, entries), ErrorHandler.throwAll());
+			}
+			PropertyDB.initiateProperty(dir, "small", 1, "tiny", ErrorHandler.throwAll());
+		}
+		PropertyDB.closeDatabase(token);
+		
+		// Read back with compression configured nowhere
+		token = PropertyDB.initializeDB(1000);
+		int mismatches = 0;
+		for (File dir : new File[] {PLAIN, COMPRESSED}) {
+			for (int i = 0; i < properties; i++) {
+				MutableProperty<HashMap<String, String>> map = PropertyDB.initiateProperty(dir, "map" + i, 1, new HashMap<String, String>(), ErrorHandler.throwAll());
+				if (!map.get().equals(value(i, entries))) mismatches++;
+			}
+			if (!"tiny".equals(PropertyDB.initiateProperty(dir, "small", 1, "", ErrorHandler.throwAll()).get())) mismatches++;
+		}
+		PropertyDB.closeDatabase(token);
+		
+		long plain = size(PLAIN), compressed = size(COMPRESSED);
+		System.out.printf("Uncompressed %,d bytes, deflate %,d bytes (%.1f%%); small file %d vs %d bytes; %d mismatches%n",
+				plain, compressed, 100.0 * compressed / plain, new File(PLAIN, "small_1.property").length(),
+				new File(COMPRESSED, "small_1.property").length(), mismatches);
+		if (mismatches > 0 || compressed >= plain) System.exit(1);
+	}
+	
+	static HashMap<String, String> value(int seed, int entries) {
+		HashMap<String, String> map = new HashMap<String, String>();
+		for (int j = 0; j < entries; j++) map.put("player-" + (seed * 31 + j), "guild-" + (j % 7) + ":rank-" + (j % 3));
+		return map;
+	}
+	
+	static long size(File dir) {
+		long total = 0;
+		for (File file : dir.listFiles()) total += file.length();
+		return total;
+	}
+}
@@ -0,0 +1,94 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.ConcurrentSubDB;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Compares initiate/get/update/unload throughput of ConcurrentSubDB against SubDB behind one global lock
+ * at increasing thread counts.
+ *
+ * Usage: ConcurrentSubDBBenchmark [keys] [seconds per run] [max threads]
+ */
+public class ConcurrentSubDBBenchmark {
+	
+	static final File DIR = new File("/tmp/test_db_bench/");
+	
+	interface Store {
+		void cycle(String key, int value);
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000);
+		final ConcurrentSubDB<RuntimeException> concurrent = new ConcurrentSubDB<RuntimeException>("Concurrent", DIR, ErrorHandler.throwAll());
+		final SubDB<RuntimeException> plain = new SubDB<RuntimeException>("Plain", DIR, ErrorHandler.throwAll());
+		for (int i = 0; i < keys; i++) { // Populate so that runs measure loads rather than creation
+			concurrent.getAndCloseProperty("k" + i, 1, i);
+			plain.getAndCloseProperty("k" + i, 1, i);
+		}
+		
+		Store concurrentStore = new Store() {
+			public void cycle(String key, int value) {
+				MutableProperty<Integer> property = concurrent.initiateProperty(key, 1, 0);
+				synchronized (property) {
+					property.set(property.get() + value);
+				}
+				concurrent.unloadProperty(key);
+			}
+		};
+		Store lockedStore = new Store() {
+			public void cycle(String key, int value) {
+				synchronized (plain) {
+					MutableProperty<Integer> property = plain.initiateProperty(key, 1, 0);
+					synchronized (property) {
+						property.set(property.get() + value);
+					}
+					plain.unloadProperty(key);
+				}
+			}
+		};
+		
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double locked = run(lockedStore, threads, keys, seconds);
+			double scaled = run(concurrentStore, threads, keys, seconds);
+			System.out.printf("%2d threads: SubDB+lock %,10.0f ops/s   ConcurrentSubDB %,10.0f ops/s   (%.2fx)%n", threads, locked, scaled, scaled / locked);
+		}
+		PropertyDB.closeDatabase(token);
+	}
+	
+	static double run(final Store store, int threads, final int keys, int seconds) throws InterruptedException {
+		final AtomicLong ops = new AtomicLong();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int partition = t, partitions = threads;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					// Threads work on disjoint keys; same-key access is serialized by design
+					Random random = new Random(partition);
+					long count = 0;
+					while (System.nanoTime() < end) {
+						int k = random.nextInt(keys / partitions) * partitions + partition;
+						store.cycle("k" + k, 1);
+						count++;
+					}
+					ops.addAndGet(count);
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread t : workers) t.start();
+		for (Thread t : workers) t.join();
+		return ops.get() / ((System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,133 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.ConcurrentSubDB;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Hammers a ConcurrentSubDB from several threads, then reopens it and checks that the index
+ * and every stored value match what each thread expects.
+ *
+ * Each thread owns a range of keys whose final state it tracks exactly; all threads also fight
+ * over a few shared keys, which must stay loadable and indexed.
+ *
+ * Usage: ConcurrentSubDBStressTest [threads] [operations per thread]
+ */
+public class ConcurrentSubDBStressTest {
+	
+	static final File DIR = new File("/tmp/test_db_stress/");
+	static final int KEYS_PER_THREAD = 200;
+	static final int SHARED_KEYS = 8;
+	
+	public static void main(String[] args) throws InterruptedException {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(50);
+		final ConcurrentSubDB<RuntimeException> db = new ConcurrentSubDB<RuntimeException>("Stress", DIR, ErrorHandler.throwAll());
+		final AtomicInteger errors = new AtomicInteger();
+		final List<Map<String, Integer>> expected = new ArrayList<Map<String, Integer>>();
+		
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			final Map<String, Integer> state = new HashMap<String, Integer>();
+			expected.add(state);
+			workers.add(new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(id);
+					for (int i = 0; i < operations; i++) {
+						try {
+							if (random.nextInt(10) == 0) {
+								String shared = "shared" + random.nextInt(SHARED_KEYS);
+								db.getAndCloseProperty(shared, 1, 0);
+								continue;
+							}
+							String key = "t" + id + "_" + random.nextInt(KEYS_PER_THREAD);
+							switch (random.nextInt(5)) {
+								case 0: case 1: { // Load and modify
+									MutableProperty<Integer> property = db.getOrInitiateProperty(key, 1, 0);
+									int value = random.nextInt();
+									synchronized (property) {
+										property.set(value);
+									}
+									state.put(key, value);
+									break;
+								}
+								case 2: // Unload
+									if (db.isLoaded(key)) db.unloadProperty(key);
+									break;
+								case 3: // Delete
+									if (db.propertyExists(key)) {
+										db.deleteProperty(key);
+										state.remove(key);
+									}
+									break;
+								case 4: { // Read-only
+									Integer value = db.getAndCloseProperty(key, 1, 0);
+									if (!state.containsKey(key)) state.put(key, 0);
+									if (!value.equals(state.get(key))) throw new IllegalStateException(key + " read " + value + ", expected " + state.get(key));
+									break;
+								}
+							}
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+							errors.incrementAndGet();
+						}
+					}
+				}
+			}, "Stress-" + id));
+		}
+		
+		long start = System.nanoTime();
+		for (Thread t : workers) t.start();
+		for (Thread t : workers) t.join();
+		long elapsed = System.nanoTime() - start;
+		PropertyDB.closeDatabase(token);
+		
+		// Reopen and verify
+		token = PropertyDB.initializeDB(1000);
+		ConcurrentSubDB<RuntimeException> reopened = new ConcurrentSubDB<RuntimeException>("Stress", DIR, ErrorHandler.throwAll());
+		TreeSet<String> expectedKeys = new TreeSet<String>();
+		for (Map<String, Integer> state : expected) expectedKeys.addAll(state.keySet());
+		for (int i = 0; i < SHARED_KEYS; i++) {
+			if (reopened.propertyExists("shared" + i)) expectedKeys.add("shared" + i);
+		}
+		TreeSet<String> indexed = new TreeSet<String>(reopened.getPropertyList());
+		int mismatches = 0;
+		if (!indexed.equals(expectedKeys)) {
+			System.out.println("Index mismatch: " + indexed.size() + " indexed, " + expectedKeys.size() + " expected");
+			mismatches++;
+		}
+		for (Map<String, Integer> state : expected) {
+			for (Map.Entry<String, Integer> e : state.entrySet()) {
+				Integer stored = reopened.getAndCloseProperty(e.getKey(), 1, -1);
+				if (!e.getValue().equals(stored)) {
+					System.out.println(e.getKey() + ": stored " + stored + ", expected " + e.getValue());
+					mismatches++;
+				}
+			}
+		}
+		PropertyDB.closeDatabase(token);
+		
+		System.out.printf("%d threads, %,d ops in %.2f s (%,.0f ops/s); %d errors, %d mismatches%n",
+				threads, (long) threads * operations, elapsed / 1e9, threads * operations / (elapsed / 1e9), errors.get(), mismatches);
+		if (errors.get() > 0 || mismatches > 0) System.exit(1);
+	}
+	
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) for (File child : children) delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,109 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that a deduplicated directory stores each distinct value once, counts its references,
+ * skips unchanged saves, shares loaded immutable values, and deletes values no longer referenced.
+ *
+ * Usage: DedupTest [properties]
+ */
+public class DedupTest {
+	
+	static final File DIR = new File("/tmp/test_db_dedup/");
+	static final File PLAIN = new File(DIR, "plain");
+	static final File DEDUP = new File(DIR, "dedup");
+	static final File STORE = new File(DEDUP, Dedup.STORE);
+	static final String[] VALUES = {"new player", "banned", "moderator", "vip"};
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		PropertyDB.setDeduplication(token, DEDUP, true, ErrorHandler.throwAll());
+		List<MutableProperty<String>> deduped = new ArrayList<MutableProperty<String>>();
+		for (int i = 0; i < count; i++) {
+			PropertyDB.initiateProperty(PLAIN, "p" + i, 1, VALUES[i % VALUES.length], ErrorHandler.throwAll());
+			deduped.add(PropertyDB.initiateProperty(DEDUP, "p" + i, 1, VALUES[i % VALUES.length], ErrorHandler.throwAll()));
+		}
+		PropertyDB.forceSave(token);
+		long plain = size(PLAIN), dedup = size(DEDUP);
+		System.out.printf("%,d properties: %,d bytes plain, %,d bytes deduplicated%n", count, plain, dedup);
+		check("smaller", dedup < plain);
+		check("one blob per value", blobs() == VALUES.length);
+		
+		File first = new File(DEDUP, "p0_1.property");
+		first.setLastModified(0);
+		deduped.get(0).update();
+		PropertyDB.forceSave(token);
+		check("unchanged save skipped", first.lastModified() == 0);
+		
+		deduped.get(0).set("unique");
+		PropertyDB.forceSave(token);
+		check("new value stored", blobs() == VALUES.length + 1);
+		deduped.get(0).set(VALUES[0]);
+		PropertyDB.forceSave(token);
+		check("unreferenced value deleted", blobs() == VALUES.length);
+		PropertyDB.closeDatabase(token);
+		
+		token = PropertyDB.initializeDB(1000000);
+		List<MutableProperty<String>> loaded = new ArrayList<MutableProperty<String>>();
+		for (int i = 0; i < 8; i++) loaded.add(PropertyDB.initiateProperty(DEDUP, "p" + i, 1, null, ErrorHandler.throwAll()));
+		check("values read", loaded.get(1).get().equals(VALUES[1]));
+		check("values shared", loaded.get(0).get() == loaded.get(4).get());
+		
+		for (int i = 0; i < count; i += VALUES.length) PropertyDB.deleteProperty(DEDUP, "p" + i, 1, ErrorHandler.throwAll()); // Every use of VALUES[0]
+		check("released on delete", blobs() == VALUES.length - 1);
+		
+		int distinct = 2000;
+		PropertyDB.setDeduplication(token, DEDUP, true, ErrorHandler.throwAll());
+		for (int i = 0; i < distinct; i++) {
+			PropertyDB.unloadProperty(PropertyDB.initiateProperty(DEDUP, "u" + i, 1, "unique " + i, ErrorHandler.throwAll()), ErrorHandler.throwAll());
+		}
+		int before = Dedup.interned();
+		List<String> held = new ArrayList<String>();
+		for (int i = 0; i < distinct; i++) {
+			MutableProperty<String> property = PropertyDB.initiateProperty(DEDUP, "u" + i, 1, "", ErrorHandler.throwAll());
+			held.add(property.get());
+			PropertyDB.unloadProperty(property, ErrorHandler.throwAll());
+		}
+		check("loaded values interned", Dedup.interned() == before + distinct);
+		held = null;
+		for (int i = 0; i < 10 && Dedup.interned() > before; i++) System.gc();
+		check("collected values purged", Dedup.interned() <= before);
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static int blobs() {
+		String[] names = STORE.list();
+		int blobs = 0;
+		if (names != null) for (String name : names) if (name.endsWith(".blob")) blobs++;
+		return blobs;
+	}
+	
+	static long size(File dir) {
+		long size = 0;
+		File[] files = dir.listFiles();
+		if (files == null) return 0;
+		for (File file : files) size += file.isDirectory() ? size(file) : file.length();
+		return size;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
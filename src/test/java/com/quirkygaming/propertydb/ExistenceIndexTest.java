@@ -0,0 +1,102 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that propertyExists on an indexed directory never misses a property file through creates by every path,
+ * deletes and re-creates, rebuilds of a saturated filter, rescans and migration to shards, and that misses don't
+ * touch storage.
+ *
+ * Usage: ExistenceIndexTest [properties]
+ */
+public class ExistenceIndexTest {
+	
+	static final File DIR = new File("/tmp/test_db_exists/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		for (int i = 0; i < count; i++) PropertyDB.initiateProperty(DIR, "p" + i, 1, i, ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		
+		LatencyBackend storage = new LatencyBackend(new FileBackend(), 0, 0); // Counts operations
+		token = PropertyDB.initializeDB(1000000, storage);
+		PropertyDB.indexDirectory(token, DIR, ErrorHandler.throwAll());
+		check("scanned", all("p", 0, count, 1));
+		storage.resetCounters();
+		int misses = 0;
+		for (int i = 0; i < 10000; i++) if (PropertyDB.propertyExists(DIR, "missing" + i, 1)) misses++;
+		for (int i = 0; i < count; i++) if (PropertyDB.propertyExists(DIR, "p" + i, 2)) misses++;
+		System.out.printf("%,d negative lookups took %,d storage operations%n", 10000 + count, storage.operations());
+		check("negative lookups", misses == 0 && storage.operations() < 500);
+		
+		// Enough creations to saturate the filter, which is then rebuilt from a scan
+		for (int i = 0; i < 3000; i++) PropertyDB.unloadProperty(PropertyDB.initiateProperty(DIR, "q" + i, 1, i, ErrorHandler.throwAll()), ErrorHandler.throwAll());
+		check("created", all("q", 0, 3000, 1));
+		PropertyDB.unloadProperty(PropertyDB.initiateChunkedProperty(DIR, "chunked", 1, new byte[10000], 4096, ErrorHandler.throwAll()), ErrorHandler.throwAll());
+		MutableProperty<?> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		PropertyDB.forceSave(token);
+		PropertyDB.unloadProperty(map, ErrorHandler.throwAll());
+		check("other kinds created", PropertyDB.propertyExists(DIR, "chunked", 1) && PropertyDB.propertyExists(DIR, "map", 1));
+		
+		for (int i = 0; i < 100; i++) PropertyDB.deleteProperty(DIR, "p" + i, 1, ErrorHandler.throwAll());
+		check("deleted", none("p", 0, 100, 1) && all("p", 100, count, 1));
+		for (int i = 0; i < 50; i++) PropertyDB.unloadProperty(PropertyDB.initiateProperty(DIR, "p" + i, 1, i, ErrorHandler.throwAll()), ErrorHandler.throwAll());
+		check("re-created", all("p", 0, 50, 1) && none("p", 50, 100, 1));
+		
+		PropertyDB.registerConverter(token, DIR, null, 1, new VersionConverter<Integer, Long>() {
+			public Long convert(String fieldName, Integer value) {
+				return (long) value;
+			}
+		}, ErrorHandler.throwAll());
+		PropertyDB.unloadProperty(PropertyDB.initiateProperty(DIR, "p200", 2, 0L, ErrorHandler.throwAll()), ErrorHandler.throwAll());
+		check("converted", PropertyDB.propertyExists(DIR, "p200", 2) && !PropertyDB.propertyExists(DIR, "p200", 1));
+		
+		Files.copy(new File(DIR, "p300_1.property").toPath(), new File(DIR, "external_1.property").toPath());
+		PropertyDB.indexDirectory(token, DIR, ErrorHandler.throwAll());
+		check("rescan finds external files", PropertyDB.propertyExists(DIR, "external", 1) && none("p", 50, 100, 1));
+		
+		PropertyDB.closeDatabase(token); // Nothing may be loaded while migrating
+		token = PropertyDB.initializeDB(1000000, storage);
+		PropertyDB.indexDirectory(token, DIR, ErrorHandler.throwAll());
+		ShardedLayout.migrate(DIR, 1, 4, ErrorHandler.throwAll());
+		check("sharded", all("p", 0, 50, 1) && none("p", 50, 100, 1) && all("p", 100, 200, 1) && all("p", 201, count, 1)
+				&& PropertyDB.propertyExists(DIR, "p200", 2) && all("q", 0, 3000, 1) && PropertyDB.propertyExists(DIR, "external", 1));
+		PropertyDB.unloadProperty(PropertyDB.initiateProperty(DIR, "sharded", 1, 0, ErrorHandler.throwAll()), ErrorHandler.throwAll());
+		check("created in a shard", PropertyDB.propertyExists(DIR, "sharded", 1) && new File(Directory.shardFor(DIR, "sharded", 1), "sharded_1.property").isFile());
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static boolean all(String prefix, int from, int to, long version) {
+		for (int i = from; i < to; i++) {
+			if (!PropertyDB.propertyExists(DIR, prefix + i, version)) return false;
+		}
+		return true;
+	}
+	
+	static boolean none(String prefix, int from, int to, long version) {
+		for (int i = from; i < to; i++) {
+			if (PropertyDB.propertyExists(DIR, prefix + i, version)) return false;
+		}
+		return true;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
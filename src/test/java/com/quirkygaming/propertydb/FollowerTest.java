@@ -0,0 +1,95 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MapProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+import com.quirkygaming.propertylib.Property;
+import com.quirkygaming.propertylib.PropertyObserver;
+
+/**
+ * Follows a directory while a writer in another JVM saves a counter, a map through its change log and many
+ * unrelated properties, then deletes a property. Checks that the follower ends up with the writer's values,
+ * that observers saw the counter rise, and that unrelated files caused no reloads.
+ *
+ * Usage: FollowerTest [saves]
+ */
+public class FollowerTest {
+	
+	static final File DIR = new File("/tmp/test_db_follower/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		int saves = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		Follower<RuntimeException> follower = PropertyDB.follow(DIR, ErrorHandler.throwAll());
+		Property<Integer> counter = follower.property("counter", 1, -1);
+		Property<Map<String, Integer>> map = follower.property("map", 1, null);
+		Property<String> doomed = follower.property("doomed", 1, "absent");
+		check("defaults", counter.get() == -1 && map.get() == null && doomed.get().equals("absent"));
+		
+		final List<Integer> seen = new CopyOnWriteArrayList<Integer>();
+		counter.addObserver(new PropertyObserver<Integer>() {
+			public void onChange(Property<Integer> property, PropertyObserver.EventType type) {
+				seen.add(property.get());
+			}
+		}, PropertyObserver.EventType.SET);
+		
+		long start = System.nanoTime();
+		Process writer = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"), Writer.class.getName(), Integer.toString(saves)).inheritIO().start();
+		check("writer finished", writer.waitFor() == 0);
+		long written = System.nanoTime();
+		while (counter.get() != saves && System.nanoTime() - written < 10000000000L) Thread.sleep(1);
+		long caughtUp = System.nanoTime();
+		Thread.sleep(200); // Let the last events arrive
+		
+		check("counter followed", counter.get() == saves);
+		boolean rising = !seen.isEmpty();
+		for (int i = 1; i < seen.size(); i++) if (seen.get(i) < seen.get(i - 1)) rising = false;
+		check("observers signaled in order", rising && seen.get(seen.size() - 1) == saves);
+		check("map log followed", map.get() != null && map.get().size() == saves && map.get().get("k" + (saves - 1)) == saves - 1);
+		check("deletion followed", doomed.get().equals("absent"));
+		check("no rescans", follower.reloads() <= 4L * saves + 10);
+		follower.close();
+		
+		System.out.printf("%d saves in %d ms; follower saw %d changes with %d reloads; caught up %.1f ms after the writer exited%n",
+				saves, (written - start) / 1000000, seen.size(), follower.reloads(), (caughtUp - written) / 1e6);
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	/**
+	 * The writing process
+	 */
+	public static class Writer {
+		public static void main(String[] args) {
+			int saves = Integer.parseInt(args[0]);
+			InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+			MutableProperty<Integer> counter = PropertyDB.initiateProperty(DIR, "counter", 1, 0, ErrorHandler.throwAll());
+			MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+			PropertyDB.initiateProperty(DIR, "doomed", 1, "here", ErrorHandler.throwAll());
+			for (int i = 1; i <= saves; i++) {
+				counter.set(i);
+				map.put("k" + (i - 1), i - 1);
+				for (int j = 0; j < 5; j++) PropertyDB.initiateProperty(DIR, "other" + i + "_" + j, 1, j, ErrorHandler.throwAll());
+				PropertyDB.forceSave(token);
+			}
+			PropertyDB.deleteProperty(DIR, "doomed", 1, ErrorHandler.throwAll());
+			PropertyDB.closeDatabase(token);
+		}
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MapProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that MapProperty changes are appended to the change log rather than rewriting the map,
+ * that they are replayed on load (also after a torn final record), that changes whose append failed are written
+ * with the next checkpoint, and that plain HashMap properties are converted.
+ *
+ * Usage: MapPropertyTest [entries]
+ */
+public class MapPropertyTest {
+	
+	static final File DIR = new File("/tmp/test_db_map/");
+	static final File FILE = new File(DIR, "map_1.property");
+	static final File LOG = new File(DIR, "map_1.property.log");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		HashMap<String, Integer> expected = new HashMap<String, Integer>();
+		for (int i = 0; i < entries; i++) {
+			map.put("k" + i, i);
+			expected.put("k" + i, i);
+		}
+		PropertyDB.forceSave(token);
+		long checkpoint = FILE.length();
+		check("first save writes a checkpoint", !LOG.exists());
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			map.put("k" + i, -i);
+			expected.put("k" + i, -i);
+			map.remove("k" + (entries - 1 - i));
+			expected.remove("k" + (entries - 1 - i));
+			PropertyDB.forceSave(token);
+		}
+		double perSave = (System.nanoTime() - start) / 100 / 1e6;
+		check("changes are appended", FILE.length() == checkpoint && LOG.exists());
+		System.out.printf("Checkpoint %,d bytes; 100 saves of 2 changes appended %,d bytes, %.2f ms per save%n", checkpoint, LOG.length(), perSave);
+		PropertyDB.closeDatabase(token);
+		
+		FileOutputStream torn = new FileOutputStream(LOG, true);
+		torn.write(new byte[] {0, 0, 1, 0, 42}); // A record cut off while being written
+		torn.close();
+		
+		token = PropertyDB.initializeDB(1000000);
+		map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		check("replayed", map.get().equals(expected));
+		map.put("after", 1);
+		expected.put("after", 1);
+		PropertyDB.unloadProperty(map, ErrorHandler.throwAll());
+		map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		check("appends after a torn record", map.get().equals(expected));
+		
+		synchronized (map) {
+			map.get().clear();
+		}
+		map.update();
+		PropertyDB.forceSave(token);
+		check("update writes a checkpoint", !LOG.exists());
+		
+		PropertyDB.closeDatabase(token);
+		final boolean[] failing = {false};
+		token = PropertyDB.initializeDB(1000000, new FileBackend() {
+			@Override
+			public OutputStream append(File location) throws IOException {
+				if (failing[0]) throw new IOException("Append failed");
+				return super.append(location);
+			}
+		});
+		map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		expected.clear();
+		map.put("failed", 1);
+		expected.put("failed", 1);
+		failing[0] = true;
+		PropertyDB.forceSave(token);
+		failing[0] = false;
+		map.put("next", 2);
+		expected.put("next", 2);
+		PropertyDB.forceSave(token);
+		check("failed append writes a checkpoint next", !LOG.exists());
+		PropertyDB.unloadProperty(map, ErrorHandler.throwAll());
+		map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		check("failed append not lost", map.get().equals(expected));
+		
+		HashMap<String, Integer> plain = new HashMap<String, Integer>();
+		plain.put("a", 1);
+		MutableProperty<HashMap<String, Integer>> old = PropertyDB.initiateProperty(DIR, "plain", 1, plain, ErrorHandler.throwAll());
+		PropertyDB.unloadProperty(old, ErrorHandler.throwAll());
+		MapProperty<String, Integer> converted = PropertyDB.initiateMapProperty(DIR, "plain", 1, ErrorHandler.throwAll());
+		check("converted", converted.get("a") == 1);
+		map.put("logged", 1);
+		PropertyDB.forceSave(token);
+		PropertyDB.deleteProperty(map, ErrorHandler.throwAll());
+		check("delete removes the log", !LOG.exists() && !FILE.exists());
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.quirkygaming.errorlib.CustomHandler;
+import com.quirkygaming.errorlib.ErrorHandler;
+
+/**
+ * Checks that registered converters migrate stored properties in the background and on demand,
+ * that loaded properties and failing converters are skipped, and that the rate limit holds.
+ *
+ * Usage: MigrationTest [properties] [threads]
+ */
+public class MigrationTest {
+	
+	static final File DIR = new File("/tmp/test_db_migration/");
+	static final File THROTTLED = new File(DIR, "throttled");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		for (int i = 0; i < count; i++) PropertyDB.initiateProperty(DIR, "p" + i, 1, i, ErrorHandler.throwAll());
+		PropertyDB.initiateProperty(DIR, "bad", 1, 0, ErrorHandler.throwAll());
+		for (int i = 0; i < 200; i++) PropertyDB.initiateProperty(THROTTLED, "t" + i, 1, i, ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		
+		token = PropertyDB.initializeDB(1000000);
+		PropertyDB.registerConverter(token, DIR, null, 1, new VersionConverter<Integer, String>() {
+			public String convert(String fieldName, Integer value) {
+				return "v" + value;
+			}
+		}, ErrorHandler.throwAll());
+		PropertyDB.registerConverter(token, DIR, null, 2, new VersionConverter<String, String>() {
+			public String convert(String fieldName, String value) {
+				return value + "!";
+			}
+		}, ErrorHandler.throwAll());
+		PropertyDB.registerConverter(token, DIR, "bad", 1, new VersionConverter<Integer, String>() {
+			public String convert(String fieldName, Integer value) {
+				throw new IllegalStateException("Unconvertible");
+			}
+		}, ErrorHandler.throwAll());
+		
+		check("converted on demand", PropertyDB.initiateProperty(DIR, "p0", 3, "", ErrorHandler.throwAll()).get().equals("v0!"));
+		check("older file deleted", !PropertyDB.propertyExists(DIR, "p0", 1));
+		PropertyDB.initiateProperty(DIR, "p1", 1, 0, ErrorHandler.throwAll()); // Still in use at the old version
+		
+		final AtomicInteger errors = new AtomicInteger();
+		ErrorHandler<RuntimeException> counting = ErrorHandler.customHandler(new CustomHandler() {
+			public boolean handleException(Throwable thr) {
+				errors.incrementAndGet();
+				return true;
+			}
+		});
+		long start = System.nanoTime();
+		Migration migration = PropertyDB.migrate(token, DIR, threads, 0, counting);
+		check("finished", migration.await(60000));
+		long ms = (System.nanoTime() - start) / 1000000;
+		System.out.printf("Migrated %,d properties on %d threads in %d ms: %s%n", migration.migrated(), threads, ms, migration);
+		check("totals", migration.total() == count && migration.migrated() == count - 2 && migration.skipped() == 1 && migration.failed() == 1);
+		check("failure handled", errors.get() == 1);
+		
+		boolean converted = true;
+		for (int i = 2; i < count; i++) {
+			if (!PropertyDB.readProperty(DIR, "p" + i, 3, "", ErrorHandler.throwAll()).equals("v" + i + "!")) converted = false;
+			if (PropertyDB.propertyExists(DIR, "p" + i, 1) || PropertyDB.propertyExists(DIR, "p" + i, 2)) converted = false;
+		}
+		check("converted in the background", converted);
+		check("loaded property skipped", PropertyDB.propertyExists(DIR, "p1", 1) && !PropertyDB.propertyExists(DIR, "p1", 3));
+		check("failed property kept", PropertyDB.propertyExists(DIR, "bad", 1) && !PropertyDB.propertyExists(DIR, "bad", 2));
+		
+		PropertyDB.registerConverter(token, THROTTLED, null, 1, new VersionConverter<Integer, Long>() {
+			public Long convert(String fieldName, Integer value) {
+				return (long) value;
+			}
+		}, ErrorHandler.throwAll());
+		migration = PropertyDB.migrate(token, THROTTLED, threads, 1000, ErrorHandler.throwAll());
+		check("throttled migration finished", migration.await(60000));
+		System.out.printf("Throttled to 1000/s: %s%n", migration);
+		check("rate limited", migration.migrated() == 200 && migration.rate() <= 1100);
+		check("throttled values", PropertyDB.readProperty(THROTTLED, "t199", 2, 0L, ErrorHandler.throwAll()) == 199L);
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.quirkygaming.propertydb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that each save pass is published as one batch after it is written, with serialized values only for subscribers
+ * that asked for them, that a subscriber which stops requesting has its buffer coalesced and then fails instead of growing,
+ * and that subscribers are completed on close. Reports the cost of publishing to a save pass.
+ *
+ * Usage: PersistPublisherTest [properties]
+ */
+public class PersistPublisherTest {
+	
+	static final File DIR = new File("/tmp/test_db_persisted/");
+	
+	static int failures = 0;
+	
+	// Records everything it receives, requesting one batch at a time until told to stop
+	static class Recorder implements PersistPublisher.Subscriber {
+		final List<List<Persisted>> batches = new ArrayList<List<Persisted>>();
+		final CountDownLatch ended = new CountDownLatch(1);
+		volatile int limit;
+		volatile Throwable error;
+		volatile boolean completed;
+		PersistPublisher.Subscription subscription;
+		
+		Recorder(int limit) {
+			this.limit = limit;
+		}
+		
+		public void onSubscribe(PersistPublisher.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+		
+		public void onNext(List<Persisted> batch) {
+			synchronized (this) {
+				batches.add(batch);
+				notifyAll();
+			}
+			if (batches.size() < limit) subscription.request(1);
+		}
+		
+		public void onError(Throwable error) {
+			this.error = error;
+			ended.countDown();
+		}
+		
+		public void onComplete() {
+			completed = true;
+			ended.countDown();
+		}
+		
+		synchronized List<Persisted> await(int batch) throws InterruptedException {
+			long until = System.currentTimeMillis() + 10000;
+			while (batches.size() <= batch && System.currentTimeMillis() < until) wait(100);
+			return batches.size() > batch ? batches.get(batch) : null;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		List<MutableProperty<String>> properties = new ArrayList<MutableProperty<String>>();
+		for (int i = 0; i < count; i++) properties.add(PropertyDB.initiateProperty(DIR, "p" + i, 1, "", ErrorHandler.throwAll()));
+		long unpublished = pass(token, properties, "a");
+		
+		PersistPublisher publisher = PropertyDB.persisted(token);
+		Recorder full = new Recorder(Integer.MAX_VALUE);
+		Recorder plain = new Recorder(Integer.MAX_VALUE);
+		Recorder slow = new Recorder(1);
+		publisher.subscribe(full, count, true);
+		publisher.subscribe(plain, count, false);
+		publisher.subscribe(slow, count, false);
+		check("subscribed", publisher.subscribers() == 3);
+		
+		long published = pass(token, properties, "b");
+		System.out.printf("Save pass of %,d properties: %d ms unpublished, %d ms published with bytes%n", count, unpublished, published);
+		List<Persisted> batch = full.await(0);
+		check("one batch per pass", batch != null && batch.size() == count);
+		check("events in write order", batch != null && batch.get(0).fieldName().equals("p0") && batch.get(count - 1).version() == 1);
+		check("directory", batch != null && batch.get(0).directory().equals(DIR.getCanonicalFile()));
+		check("serialized value", batch != null && valueOf(batch.get(7)).equals("b7"));
+		batch = plain.await(0);
+		check("no bytes unless asked", batch != null && batch.size() == count && batch.get(7).bytes() == null);
+		
+		properties.get(0).set("unloaded");
+		PropertyDB.unloadProperty(properties.get(0), ErrorHandler.throwAll());
+		batch = full.await(1);
+		check("unload published alone", batch != null && batch.size() == 1 && valueOf(batch.get(0)).equals("unloaded"));
+		properties.remove(0);
+		
+		// The slow subscriber has stopped requesting: passes over the same properties coalesce, new ones overflow
+		for (String round : new String[] {"c", "d", "e"}) pass(token, properties, round);
+		check("slow subscriber coalesced", slow.error == null && publisher.subscribers() == 3);
+		for (int i = 0; i < count; i++) PropertyDB.initiateProperty(DIR, "q" + i, 1, "q", ErrorHandler.throwAll()).set("r");
+		PropertyDB.forceSave(token);
+		check("slow subscriber failed", slow.ended.await(10, TimeUnit.SECONDS) && slow.error instanceof IllegalStateException);
+		check("others unaffected", full.await(5) != null && full.error == null && publisher.subscribers() == 2);
+		
+		plain.subscription.cancel();
+		PropertyDB.closeDatabase(token);
+		check("completed on close", full.ended.await(10, TimeUnit.SECONDS) && full.completed);
+		check("cancelled not completed", !plain.completed && publisher.subscribers() == 0);
+		Recorder late = new Recorder(1);
+		publisher.subscribe(late, 1, false);
+		check("late subscriber completed", late.completed);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	// Sets every property and saves them, returning the time of the save pass
+	static long pass(InitializationToken token, List<MutableProperty<String>> properties, String round) {
+		for (int i = 0; i < properties.size(); i++) properties.get(i).set(round + i);
+		long start = System.nanoTime();
+		PropertyDB.forceSave(token);
+		return (System.nanoTime() - start) / 1000000;
+	}
+	
+	static Object valueOf(Persisted event) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(event.bytes()));
+		try {
+			return ((MutableProperty<?>) in.readObject()).get();
+		} finally {
+			in.close();
+		}
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
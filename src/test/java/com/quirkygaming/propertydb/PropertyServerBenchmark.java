@@ -0,0 +1,140 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.quirkygaming.errorlib.CustomHandler;
+import com.quirkygaming.errorlib.ErrorHandler;
+
+/**
+ * Serves a directory through a PropertyServer and measures client throughput with one request per round trip
+ * and with pipelined batches of several sizes, on one and on several connections. Also checks the values,
+ * compare-and-set updates, deletes, the secret and the server root.
+ *
+ * Usage: PropertyServerBenchmark [properties] [connections]
+ */
+public class PropertyServerBenchmark {
+	
+	static final File ROOT = new File("/tmp/test_db_server/");
+	static final String SECRET = "benchmark";
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		ConcurrentSubDBStressTest.delete(ROOT);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000);
+		PropertyServer server = PropertyServer.start(token, ROOT, 0, SECRET, ErrorHandler.throwAll());
+		final int port = server.port();
+		PropertyClient<RuntimeException> client = new PropertyClient<>(port, SECRET, ErrorHandler.throwAll());
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i += 1000) {
+			PropertyClient<RuntimeException>.Batch batch = client.batch();
+			for (int j = i; j < Math.min(count, i + 1000); j++) batch.set("users", "u" + j, 1, "user " + j);
+			batch.send();
+		}
+		report("set, batches of 1000", count, start);
+		
+		int roundTrips = Math.min(count, 5000);
+		boolean values = true;
+		start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			if (!("user " + i).equals(client.get("users", "u" + i, 1))) values = false;
+		}
+		report("get, one per round trip", roundTrips, start);
+		
+		for (int size : new int[] {10, 100, 1000}) {
+			start = System.nanoTime();
+			for (int i = 0; i + size <= count; i += size) {
+				PropertyClient<RuntimeException>.Batch batch = client.batch();
+				List<PropertyClient.Reply<String>> replies = new ArrayList<>();
+				for (int j = i; j < i + size; j++) replies.add(batch.<String>get("users", "u" + j, 1));
+				batch.send();
+				for (int j = 0; j < size; j++) {
+					if (!("user " + (i + j)).equals(replies.get(j).get())) values = false;
+				}
+			}
+			report("get, batches of " + size, count / size * size, start);
+		}
+		check("values", values);
+		
+		final AtomicInteger mismatches = new AtomicInteger();
+		final int perConnection = count / connections;
+		List<Thread> threads = new ArrayList<>();
+		start = System.nanoTime();
+		for (int c = 0; c < connections; c++) {
+			final int offset = c * perConnection;
+			Thread thread = new Thread() {
+				public void run() {
+					PropertyClient<RuntimeException> own = new PropertyClient<>(port, SECRET, ErrorHandler.throwAll());
+					for (int i = 0; i < perConnection; i += 100) {
+						PropertyClient<RuntimeException>.Batch batch = own.batch();
+						List<PropertyClient.Reply<String>> replies = new ArrayList<>();
+						for (int j = i; j < Math.min(perConnection, i + 100); j++) replies.add(batch.<String>get("users", "u" + (offset + j), 1));
+						batch.send();
+						for (int j = 0; j < replies.size(); j++) {
+							if (!("user " + (offset + i + j)).equals(replies.get(j).get())) mismatches.incrementAndGet();
+						}
+					}
+					own.close();
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) thread.join();
+		report("get, batches of 100 on " + connections + " connections", perConnection * connections, start);
+		check("values on several connections", mismatches.get() == 0);
+		
+		check("update", client.update("counters", "c", 1, null, 1) && !client.update("counters", "c", 1, null, 2)
+				&& client.update("counters", "c", 1, 1, 2) && !client.update("counters", "c", 1, 1, 3)
+				&& client.<Integer>get("counters", "c", 1) == 2 && !client.update("counters", "missing", 1, 1, 2));
+		check("initiate", client.initiate("counters", "c", 1, 0) == 2 && client.initiate("counters", "d", 1, 5) == 5);
+		check("delete", client.delete("users", "u0", 1) && !client.delete("users", "u0", 1) && !client.exists("users", "u0", 1)
+				&& client.get("users", "u0", 1) == null);
+		check("unload", client.unload("users", "u1", 1) && !client.unload("users", "u1", 1) && client.exists("users", "u1", 1));
+		
+		final AtomicInteger errors = new AtomicInteger();
+		ErrorHandler<RuntimeException> counting = ErrorHandler.customHandler(new CustomHandler() {
+			public boolean handleException(Throwable thr) {
+				errors.incrementAndGet();
+				return true;
+			}
+		});
+		PropertyClient<RuntimeException> reporting = new PropertyClient<>(port, SECRET, counting);
+		check("outside of the root", reporting.get("../elsewhere", "x", 1) == null && errors.get() == 1);
+		reporting.close();
+		try {
+			new PropertyClient<>(port, "wrong", ErrorHandler.throwAll());
+			check("secret", false);
+		} catch (RuntimeException e) {
+			// Rejected
+		}
+		
+		client.close();
+		server.close();
+		PropertyDB.closeDatabase(token);
+		check("values saved", PropertyDB.readProperty(new File(ROOT, "users"), "u42", 1, "", ErrorHandler.throwAll()).equals("user 42")
+				&& PropertyDB.readProperty(new File(ROOT, "counters"), "c", 1, 0, ErrorHandler.throwAll()) == 2);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void report(String name, int operations, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-45s %,10.0f ops/s%n", name, operations / seconds);
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
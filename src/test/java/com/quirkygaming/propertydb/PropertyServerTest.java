@@ -0,0 +1,150 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.quirkygaming.errorlib.CustomHandler;
+import com.quirkygaming.errorlib.ErrorHandler;
+
+/**
+ * Sends one pipelined batch mixing every operation and checks each reply in order, including failed requests and
+ * compare-and-set conflicts. Also checks that field names can't leave their directory, that a server needs a secret,
+ * that a client which never completes the handshake is disconnected, and that SET and UPDATE from two clients
+ * never lose a write.
+ */
+public class PropertyServerTest {
+	
+	static final File ROOT = new File("/tmp/test_db_server_protocol/");
+	static final String SECRET = "protocol";
+	
+	static final int CONCURRENT_SETS = 5000;
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		ConcurrentSubDBStressTest.delete(ROOT);
+		ConcurrentSubDBStressTest.delete(new File(ROOT.getParentFile(), "evil_1.property"));
+		
+		final AtomicInteger errors = new AtomicInteger();
+		ErrorHandler<RuntimeException> counting = ErrorHandler.customHandler(new CustomHandler() {
+			public boolean handleException(Throwable thr) {
+				errors.incrementAndGet();
+				return true;
+			}
+		});
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		check("no secret", PropertyServer.start(token, ROOT, 0, null, counting) == null && errors.get() == 1);
+		check("empty secret", PropertyServer.start(token, ROOT, 0, "", counting) == null && errors.get() == 2);
+		errors.set(0);
+		
+		PropertyServer server = PropertyServer.start(token, ROOT, 0, SECRET, ErrorHandler.throwAll());
+		Socket silent = new Socket(InetAddress.getLoopbackAddress(), server.port()); // Never authenticates
+		PropertyClient<RuntimeException> client = new PropertyClient<>(server.port(), SECRET, counting);
+		
+		PropertyClient<RuntimeException>.Batch batch = client.batch();
+		PropertyClient.Reply<String> initiated = batch.initiate("d", "a", 1, "A0");
+		PropertyClient.Reply<String> got = batch.get("d", "a", 1);
+		PropertyClient.Reply<Void> set = batch.set("d", "a", 1, "A1");
+		PropertyClient.Reply<String> gotSet = batch.get("d", "a", 1);
+		PropertyClient.Reply<Boolean> swapped = batch.update("d", "a", 1, "A1", "A2");
+		PropertyClient.Reply<Boolean> conflict = batch.update("d", "a", 1, "A1", "A3");
+		PropertyClient.Reply<Boolean> created = batch.update("d", "b", 1, null, "B0");
+		PropertyClient.Reply<Boolean> createConflict = batch.update("d", "b", 1, null, "B1");
+		PropertyClient.Reply<Boolean> exists = batch.exists("d", "b", 1);
+		PropertyClient.Reply<String> outside = batch.get("../outside", "a", 1);
+		PropertyClient.Reply<String> traversal = batch.initiate("d", "../../evil", 1, "x");
+		PropertyClient.Reply<Void> separator = batch.set("d", "sub/evil", 1, "x");
+		PropertyClient.Reply<Boolean> unloaded = batch.unload("d", "a", 1);
+		PropertyClient.Reply<Boolean> unloadedAgain = batch.unload("d", "a", 1);
+		PropertyClient.Reply<String> stored = batch.get("d", "a", 1);
+		PropertyClient.Reply<Boolean> deleted = batch.delete("d", "b", 1);
+		PropertyClient.Reply<Boolean> deletedAgain = batch.delete("d", "b", 1);
+		PropertyClient.Reply<Boolean> existsDeleted = batch.exists("d", "b", 1);
+		PropertyClient.Reply<String> missing = batch.get("d", "missing", 1);
+		PropertyClient.Reply<Boolean> missingUpdate = batch.update("d", "missing", 1, "x", "y");
+		PropertyClient.Reply<String> last = batch.initiate("d", "c", 1, "C0");
+		batch.send();
+		
+		check("initiate", "A0".equals(initiated.get()) && initiated.failure() == null);
+		check("get", "A0".equals(got.get()));
+		check("set", set.failure() == null);
+		check("get after set", "A1".equals(gotSet.get()));
+		check("update", swapped.get());
+		check("update conflict", !conflict.get() && conflict.failure() == null);
+		check("update creates", created.get());
+		check("create conflict", !createConflict.get());
+		check("exists", exists.get());
+		check("directory outside the root", outside.get() == null && outside.failure() != null);
+		check("field name with ..", traversal.get() == null && traversal.failure() != null);
+		check("field name with a separator", separator.failure() != null);
+		check("unload", unloaded.get() && !unloadedAgain.get());
+		check("get after unload", "A2".equals(stored.get()));
+		check("delete", deleted.get() && !deletedAgain.get() && !existsDeleted.get());
+		check("get missing", missing.get() == null && missing.failure() == null);
+		check("update missing", !missingUpdate.get());
+		check("after failures", "C0".equals(last.get()));
+		check("failures reported", errors.get() == 3);
+		check("single requests", "A2".equals(client.get("d", "a", 1)) && client.exists("d", "c", 1));
+		check("no lost updates", lostUpdates(server.port()) == 0);
+		
+		silent.setSoTimeout(PropertyServer.HANDSHAKE_TIMEOUT_MILLIS * 2);
+		InputStream in = silent.getInputStream();
+		long start = System.nanoTime();
+		check("silent client disconnected", in.read() == -1);
+		System.out.printf("Silent client disconnected after %.1f s%n", (System.nanoTime() - start) / 1e9);
+		silent.close();
+		
+		client.close();
+		server.close();
+		PropertyDB.closeDatabase(token);
+		check("values saved", PropertyDB.readProperty(new File(ROOT, "d"), "a", 1, "", ErrorHandler.throwAll()).equals("A2")
+				&& PropertyDB.readProperty(new File(ROOT, "d"), "c", 1, "", ErrorHandler.throwAll()).equals("C0"));
+		check("nothing written outside", !new File(ROOT.getParentFile(), "evil_1.property").exists()
+				&& !new File(ROOT, "evil_1.property").exists() && !new File(ROOT, "d/sub").exists());
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	// One client sets "B<i>;0" while another increments the number after the ';' with UPDATE. An UPDATE can only
+	// build on the value it compared, so a set that has returned must show up in every later value.
+	static int lostUpdates(int port) throws IOException {
+		final PropertyClient<RuntimeException> setter = new PropertyClient<>(port, SECRET, ErrorHandler.throwAll());
+		final PropertyClient<RuntimeException> updater = new PropertyClient<>(port, SECRET, ErrorHandler.throwAll());
+		setter.initiate("d", "race", 1, "B0;0");
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread updates = new Thread() {
+			public void run() {
+				while (!done.get()) {
+					String value = updater.get("d", "race", 1);
+					int separator = value.indexOf(';');
+					updater.update("d", "race", 1, value, value.substring(0, separator + 1) + (Integer.parseInt(value.substring(separator + 1)) + 1));
+				}
+			}
+		};
+		updates.start();
+		int lost = 0;
+		for (int i = 1; i <= CONCURRENT_SETS; i++) {
+			setter.set("d", "race", 1, "B" + i + ";0");
+			if (!setter.<String>get("d", "race", 1).startsWith("B" + i + ";")) lost++;
+		}
+		done.set(true);
+		try {updates.join();} catch (InterruptedException e) {}
+		setter.close();
+		updater.close();
+		return lost;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.ConcurrentSubDB;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Times repeated getAndCloseProperty reads of stored properties with and without the read cache,
+ * and checks that the index is left alone and that loading or deleting a property invalidates its cached value.
+ *
+ * Usage: ReadCacheTest [properties] [reads]
+ */
+public class ReadCacheTest {
+	
+	static final File DIR = new File("/tmp/test_db_readcache/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int reads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		SubDB<RuntimeException> db = new SubDB<>("players", DIR, ErrorHandler.throwAll());
+		for (int i = 0; i < count; i++) db.getAndCloseProperty("p" + i, 1, i);
+		PropertyDB.forceSave(token);
+		File index = new File(DIR, "SubDB_players_1.property");
+		index.setLastModified(0);
+		
+		long uncached = time(db, count, reads);
+		db.setReadCache(count);
+		long cached = time(db, count, reads);
+		PropertyDB.forceSave(token);
+		System.out.printf("%,d reads of %,d properties: %d ms uncached, %d ms cached%n", reads, count, uncached, cached);
+		check("index not rewritten", index.lastModified() == 0);
+		
+		check("cached read", db.getAndCloseProperty("p1", 1, -1) == 1);
+		MutableProperty<Integer> p1 = db.initiateProperty("p1", 1, -1);
+		p1.set(100);
+		db.unloadProperty(p1);
+		check("loading invalidates", db.getAndCloseProperty("p1", 1, -1) == 100);
+		db.deleteProperty("p1");
+		check("deleting invalidates", db.getAndCloseProperty("p1", 1, -1) == -1);
+		check("missing property created", db.propertyExists("p1") && db.getAndCloseProperty("p1", 1, -2) == -1);
+		
+		ConcurrentSubDB<RuntimeException> concurrent = new ConcurrentSubDB<>("concurrent", DIR, ErrorHandler.throwAll());
+		concurrent.setReadCache(16);
+		concurrent.getAndCloseProperty("a", 1, "first");
+		check("concurrent cached read", concurrent.getAndCloseProperty("a", 1, "").equals("first"));
+		concurrent.<String>initiateProperty("a", 1, "").set("second");
+		concurrent.unloadProperty("a");
+		check("concurrent loading invalidates", concurrent.getAndCloseProperty("a", 1, "").equals("second"));
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static long time(SubDB<RuntimeException> db, int count, int reads) {
+		long start = System.nanoTime();
+		long sum = 0;
+		for (int i = 0; i < reads; i++) sum += db.getAndCloseProperty("p" + (i % count), 1, 0);
+		check("values read", sum == (long) reads / count * ((long) count * (count - 1) / 2));
+		return (System.nanoTime() - start) / 1000000;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Measures the heap cost of the PropertyDB registry per loaded property.
+ *
+ * Usage: RegistryFootprintBenchmark [count...]  (defaults to 1000000 10000000)
+ * 10M entries needs roughly -Xmx4g.
+ *
+ * The database is never closed: the scheduler never fires, and the JVM exits without writing
+ * the created properties. Reported numbers include each entry's place in the initial save queue.
+ */
+public class RegistryFootprintBenchmark {
+	
+	static final File DIR = new File("/tmp/test_db_footprint/");
+	static final Integer VALUE = 0;
+	
+	public static void main(String[] args) {
+		long[] counts = args.length == 0 ? new long[] {1000000, 10000000} : new long[args.length];
+		for (int i = 0; i < args.length; i++) counts[i] = Long.parseLong(args[i]);
+		
+		for (long count : counts) {
+			int n = (int) count;
+			
+			// Baseline: the properties and values alone
+			long before = usedHeap();
+			MutableProperty<?>[] bare = new MutableProperty<?>[n];
+			for (int i = 0; i < n; i++) bare[i] = MutableProperty.newProperty(VALUE);
+			long baseline = usedHeap() - before;
+			bare = null;
+			
+			// Registered through PropertyDB
+			InitializationToken token = PropertyDB.initializeDB(new CustomScheduler() {
+				public void scheduleRepeatingTask(InitializationToken token, Runnable saveRoutine) {}
+				public void onDatabaseClose() {}
+			});
+			ErrorHandler<RuntimeException> handler = ErrorHandler.throwAll();
+			before = usedHeap();
+			MutableProperty<?>[] registered = new MutableProperty<?>[n];
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				registered[i] = PropertyDB.initiateProperty(DIR, "p" + i, 1, VALUE, handler);
+			}
+			long elapsed = System.nanoTime() - start;
+			long total = usedHeap() - before;
+			
+			System.out.printf("%,d entries: %.1f bytes/entry registry overhead (%.1f total, %.1f bare property), %.0f ns/registration%n",
+					count, (total - baseline) / (double) n, total / (double) n, baseline / (double) n, elapsed / (double) n);
+			
+			// Discard without saving; the next round starts from a fresh database
+			registered = null;
+			discard();
+		}
+		System.exit(0);
+	}
+	
+	// Drops the current instance without running the final save
+	static void discard() {
+		try {
+			java.lang.reflect.Field instance = PropertyDB.class.getDeclaredField("INSTANCE");
+			instance.setAccessible(true);
+			instance.set(null, null);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
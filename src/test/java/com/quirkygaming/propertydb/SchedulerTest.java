@@ -0,0 +1,109 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that an ExecutorScheduler saves periodically on an application's executor and leaves it running,
+ * that closing waits for a save in progress instead of interrupting it, and that bulk operations run on
+ * the worker threads a subclass supplies.
+ *
+ * Usage: SchedulerTest [write latency millis]
+ */
+public class SchedulerTest {
+	
+	static final File DIR = new File("/tmp/test_db_scheduler/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		long latency = args.length > 0 ? Long.parseLong(args[0]) : 300;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		ScheduledExecutorService app = Executors.newSingleThreadScheduledExecutor();
+		InitializationToken token = PropertyDB.initializeDB(new ExecutorScheduler(app, 20, TimeUnit.MILLISECONDS));
+		MutableProperty<String> property = PropertyDB.initiateProperty(DIR, "p", 1, "first", ErrorHandler.throwAll());
+		File file = new File(DIR, "p_1.property");
+		for (int i = 0; i < 200 && !file.exists(); i++) Thread.sleep(10);
+		check("saved periodically", file.exists());
+		
+		// Slow writes, so that closing happens during a save
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicLong ended = new AtomicLong();
+		PropertyDB.setMonitor(new Saves(started, ended));
+		PropertyDB.closeDatabase(token);
+		token = PropertyDB.initializeDB(new ExecutorScheduler(app, 20, TimeUnit.MILLISECONDS), new LatencyBackend(new FileBackend(), 0, latency * 1000));
+		property = PropertyDB.initiateProperty(DIR, "p", 1, "", ErrorHandler.throwAll());
+		property.set("second");
+		check("save started", started.await(5, TimeUnit.SECONDS));
+		long start = System.nanoTime();
+		PropertyDB.closeDatabase(token);
+		long closed = System.nanoTime();
+		System.out.printf("Closed after %d ms during a save of %d ms%n", (closed - start) / 1000000, latency);
+		check("close waited for the save", ended.get() != 0 && ended.get() <= closed && (closed - start) / 1000000 >= latency / 2);
+		check("save not interrupted", PropertyDB.readProperty(DIR, "p", 1, "", ErrorHandler.throwAll()).equals("second"));
+		check("application executor left running", !app.isShutdown());
+		PropertyDB.setMonitor(null);
+		app.shutdown();
+		
+		final AtomicInteger created = new AtomicInteger();
+		ThreadFactory workers = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Worker-" + created.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		token = PropertyDB.initializeDB(new ExecutorScheduler(Executors.newSingleThreadScheduledExecutor(), true, 1000, TimeUnit.MILLISECONDS, workers) {});
+		for (int i = 0; i < 100; i++) PropertyDB.initiateProperty(DIR, "q" + i, 1, i, ErrorHandler.throwAll());
+		PropertyDB.forceSave(token);
+		Verification verification = PropertyDB.verifyDirectory(DIR, true, false, 8, ErrorHandler.throwAll());
+		check("bulk operations on the workers", verification.corrupt().isEmpty() && created.get() == 8);
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	// Reports when a save starts and ends
+	static class Saves implements PropertyMonitor {
+		final CountDownLatch started;
+		final AtomicLong ended;
+		
+		Saves(CountDownLatch started, AtomicLong ended) {
+			this.started = started; this.ended = ended;
+		}
+		
+		public Object beginSave(File directory, String fieldName, long version) {
+			started.countDown();
+			return this;
+		}
+		
+		public void endSave(Object save, long bytes) {
+			ended.compareAndSet(0, System.nanoTime());
+		}
+		
+		public Object beginLoad(File directory, String fieldName, long version) {return null;}
+		public void endLoad(Object load, long bytes) {}
+		public Object beginSavePass() {return null;}
+		public void endSavePass(Object pass, int properties) {}
+		public Object beginMonitorWait(String fieldName) {return null;}
+		public void endMonitorWait(Object wait) {}
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.SecondaryIndex;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.MutableProperty;
+import com.quirkygaming.propertylib.Property;
+import com.quirkygaming.propertylib.PropertyObserver;
+import com.quirkygaming.propertylib.PropertyObserver.EventType;
+
+/**
+ * Checks that a secondary index follows set, update, unload and delete, including sets from other threads,
+ * survives a restart, and picks up values written while it was not open or set without being unloaded.
+ * A set is indexed once, and only rewrites the stored index if its key changed.
+ */
+public class SecondaryIndexTest {
+	
+	static final File DIR = new File("/tmp/test_db_index/");
+	
+	static int extracted = 0;
+	
+	static final Function<Object, Character> FIRST_LETTER = new Function<Object, Character>() {
+		public Character apply(Object value) {
+			extracted++;
+			String string = value.toString();
+			return string.isEmpty() ? null : string.charAt(0);
+		}
+	};
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(50);
+		SubDB<RuntimeException> db = new SubDB<RuntimeException>("Players", DIR, ErrorHandler.throwAll());
+		db.getAndCloseProperty("alice", 1, "apple");
+		db.getAndCloseProperty("bob", 1, "banana");
+		SecondaryIndex<Character> index = db.addIndex("letter", FIRST_LETTER);
+		check("built from stored values", index.get('a'), "alice");
+		
+		MutableProperty<String> carol = db.initiateProperty("carol", 1, "avocado");
+		check("indexed on load", index.get('a'), "alice", "carol");
+		final String[] seen = {null};
+		carol.addObserver(new PropertyObserver<String>() {
+			public void onChange(Property<String> property, EventType type) {
+				seen[0] = property.get();
+			}
+		}, EventType.SET);
+		carol.set("cherry");
+		check("observers signaled before set", Arrays.asList(seen[0]), "avocado");
+		check("set moves the key", index.get('a'), "alice");
+		check("range", index.range('b', 'd'), "bob", "carol");
+		check("key of a set field", Arrays.asList(String.valueOf(index.keyOf("carol"))), "c");
+		
+		File stored = new File(DIR, "SubDBIndex_Players_letter_1.property");
+		PropertyDB.forceSave(token);
+		stored.setLastModified(0);
+		extracted = 0;
+		carol.set("cranberry"); // Same key
+		index.get('c');
+		index.range('a', 'z');
+		index.size();
+		check("set extracted once", Arrays.asList(String.valueOf(extracted)), "1");
+		PropertyDB.forceSave(token);
+		check("same key not rewritten", Arrays.asList(String.valueOf(stored.lastModified())), "0");
+		
+		final MutableProperty<String> frank = db.initiateProperty("frank", 1, "fig");
+		Thread setter = new Thread() {
+			public void run() {
+				for (int i = 0; i < 20000; i++) {
+					synchronized (frank) {frank.set(i % 2 == 0 ? "grape" : "fig");}
+				}
+				synchronized (frank) {frank.set("guava");}
+			}
+		};
+		setter.start();
+		while (setter.isAlive()) index.range('a', 'z'); // Queries while the other thread sets
+		setter.join();
+		check("set from another thread", index.get('g'), "frank");
+		check("old key dropped", index.get('f'));
+		
+		MutableProperty<StringBuilder> dave = db.initiateProperty("dave", 1, new StringBuilder("date"));
+		db.dropIndex("letter");
+		SecondaryIndex<Character> builder = db.addIndex("builder", new Function<Object, Character>() {
+			public Character apply(Object value) {
+				return value instanceof StringBuilder ? ((StringBuilder) value).charAt(0) : null;
+			}
+		});
+		check("null keys are skipped", builder.range('a', 'z'), "dave");
+		synchronized (dave) {
+			dave.get().setCharAt(0, 'm');
+		}
+		dave.update();
+		check("update moves the key", builder.get('m'), "dave");
+		db.deleteProperty("dave");
+		check("delete removes the key", builder.get('m'));
+		db.dropIndex("builder");
+		
+		index = db.addIndex("letter", FIRST_LETTER);
+		db.unloadProperty("carol");
+		frank.set("kiwi"); // Set and never unloaded; the stored index must not keep "g"
+		PropertyDB.closeDatabase(token);
+		
+		// Written while the index is not open
+		token = PropertyDB.initializeDB(50);
+		db = new SubDB<RuntimeException>("Players", DIR, ErrorHandler.throwAll());
+		db.getAndCloseProperty("erin", 1, "elderberry");
+		db.deleteProperty("bob");
+		index = db.addIndex("letter", FIRST_LETTER);
+		check("persisted", index.get('c'), "carol");
+		check("set before close", index.get('k'), "frank");
+		check("old key not persisted", index.get('g'));
+		check("catches up on new values", index.get('e'), "erin");
+		check("catches up on deletes", index.get('b'));
+		db.destroySubDB();
+		check("destroy closes indexes", Arrays.asList(String.valueOf(db.getIndex("letter"))), "null");
+		PropertyDB.closeDatabase(token);
+		
+		String[] left = DIR.list();
+		check("destroy removes index files", left == null ? Arrays.<String>asList() : Arrays.asList(left));
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void check(String name, List<String> actual, String... expected) {
+		if (!actual.equals(Arrays.asList(expected))) {
+			System.out.println("FAILED " + name + ": " + actual + ", expected " + Arrays.asList(expected));
+			failures++;
+		}
+	}
+}
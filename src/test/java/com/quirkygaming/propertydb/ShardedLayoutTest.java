@@ -0,0 +1,101 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.quirkygaming.errorlib.CustomHandler;
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.MapProperty;
+
+/**
+ * Migrates a flat directory to the sharded layout and checks that only property files are moved, that a map's
+ * change log follows its property, and that properties and SubDBs are found and created in their shards afterwards.
+ *
+ * Usage: ShardedLayoutTest [properties] [threads]
+ */
+public class ShardedLayoutTest {
+	
+	static final File DIR = new File("/tmp/test_db_sharded/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		for (int i = 0; i < count; i++) PropertyDB.initiateProperty(DIR, "p" + i, 1, "value " + i, ErrorHandler.throwAll());
+		MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		for (int i = 0; i < 100; i++) {
+			map.put("k" + i, i);
+			expected.put("k" + i, i);
+		}
+		PropertyDB.forceSave(token);
+		map.put("logged", -1); // Only in the change log
+		expected.put("logged", -1);
+		PropertyDB.forceSave(token);
+		SubDB<RuntimeException> db = new SubDB<RuntimeException>("users", DIR, ErrorHandler.throwAll());
+		db.getAndCloseProperty("alice", 1, "a");
+		PropertyDB.closeDatabase(token);
+		
+		check("map logged", new File(DIR, "map_1.property.log").isFile());
+		touch(new File(DIR, "p0_1.property.tmp")); // Left behind by an interrupted write
+		touch(new File(DIR, "notes_x.property"));
+		
+		final int[] errors = {0};
+		ErrorHandler<RuntimeException> counting = ErrorHandler.customHandler(new CustomHandler() {
+			public boolean handleException(Throwable thr) {
+				errors[0]++;
+				return true;
+			}
+		});
+		ShardedLayout.enable(DIR, 2, counting);
+		check("enable refuses flat files", errors[0] == 1 && ShardedLayout.levels(DIR) == 0);
+		
+		ShardedLayout.migrate(DIR, 2, threads, ErrorHandler.throwAll());
+		check("marker", ShardedLayout.levels(DIR) == 2);
+		String[] flat = DIR.list();
+		int left = 0;
+		for (String name : flat) if (new File(DIR, name).isFile() && !name.equals(Directory.SHARD_MARKER)) left++;
+		check("only property files moved", left == 2 && new File(DIR, "p0_1.property.tmp").isFile() && new File(DIR, "notes_x.property").isFile());
+		File shard = Directory.shardFor(DIR, "map", 2);
+		check("log moved with its property", new File(shard, "map_1.property").isFile() && new File(shard, "map_1.property.log").isFile());
+		
+		token = PropertyDB.initializeDB(1000000);
+		boolean found = true;
+		for (int i = 0; i < count; i++) {
+			if (!PropertyDB.propertyExists(DIR, "p" + i, 1) || !PropertyDB.readProperty(DIR, "p" + i, 1, "", ErrorHandler.throwAll()).equals("value " + i)) found = false;
+		}
+		check("sharded lookups", found && !PropertyDB.propertyExists(DIR, "p0", 2));
+		map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		check("map replayed from its shard", map.get().equals(expected));
+		db = new SubDB<RuntimeException>("users", DIR, ErrorHandler.throwAll());
+		check("SubDB in shards", db.getAndCloseProperty("alice", 1, "").equals("a"));
+		PropertyDB.initiateProperty(DIR, "fresh", 1, "new", ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		check("created in its shard", new File(Directory.shardFor(DIR, "fresh", 2), "fresh_1.property").isFile() && !new File(DIR, "fresh_1.property").exists());
+		
+		ShardedLayout.migrate(DIR, 3, threads, counting);
+		check("level change refused", errors[0] == 2 && ShardedLayout.levels(DIR) == 2);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void touch(File file) throws IOException {
+		new FileOutputStream(file).close();
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
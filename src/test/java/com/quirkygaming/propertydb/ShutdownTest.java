@@ -0,0 +1,95 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that a deadline-bounded close saves high priority directories first, journals what it
+ * could not save in time, and that recovering the journal writes every property.
+ *
+ * Usage: ShutdownTest [properties] [timeout millis]
+ */
+public class ShutdownTest {
+	
+	static final File DIR = new File("/tmp/test_db_shutdown/");
+	static final File LOW = new File(DIR, "low");
+	static final File HIGH = new File(DIR, "high");
+	static final File JOURNAL = new File(DIR, "recovery.journal");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long timeout = args.length > 1 ? Long.parseLong(args[1]) : 200;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		long serial = run(count, false, timeout);
+		long parallel = run(count, true, 60000);
+		System.out.printf("Closing with %,d pending: %d ms serial, %d ms parallel%n", count, serial, parallel);
+		
+		run(count, true, timeout);
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static long run(int count, boolean deadline, long timeout) {
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		PropertyDB.setSavePriority(token, HIGH, 1, ErrorHandler.throwAll());
+		List<MutableProperty<int[]>> low = new ArrayList<MutableProperty<int[]>>();
+		List<MutableProperty<int[]>> high = new ArrayList<MutableProperty<int[]>>();
+		for (int i = 0; i < count; i++) {
+			low.add(PropertyDB.initiateProperty(LOW, "p" + i, 1, new int[256], ErrorHandler.throwAll()));
+			if (i % 100 == 0) high.add(PropertyDB.initiateProperty(HIGH, "p" + i, 1, new int[256], ErrorHandler.throwAll()));
+		}
+		PropertyDB.forceSave(token);
+		final int stamp = (int) System.nanoTime();
+		for (MutableProperty<int[]> p : low) p.get()[0] = stamp;
+		for (MutableProperty<int[]> p : high) p.get()[0] = stamp;
+		for (MutableProperty<int[]> p : high) p.update();
+		for (MutableProperty<int[]> p : low) p.update();
+		
+		long start = System.nanoTime();
+		if (!deadline) {
+			PropertyDB.closeDatabase(token);
+			return (System.nanoTime() - start) / 1000000;
+		}
+		
+		final int[] reports = {0, 0};
+		int journaled = PropertyDB.closeDatabase(token, 0, timeout, JOURNAL, new ShutdownListener() {
+			public void onProgress(int saved, int total) {
+				reports[0]++;
+				reports[1] = saved;
+			}
+		}, ErrorHandler.throwAll());
+		long millis = (System.nanoTime() - start) / 1000000;
+		int total = count + high.size();
+		System.out.printf("Deadline %d ms: saved %,d, journaled %,d in %d ms; %d progress reports%n", timeout, reports[1], journaled, millis, reports[0]);
+		check("everything saved or journaled", reports[1] + journaled == total);
+		check("progress reported", reports[0] > 0);
+		check("journal only when needed", JOURNAL.exists() == (journaled > 0));
+		check("high priority saved first", journaled == 0 || allStamped(HIGH, count, 100, stamp));
+		
+		check("recovered", PropertyDB.recoverJournal(JOURNAL, ErrorHandler.throwAll()) == journaled && !JOURNAL.exists());
+		check("all written", allStamped(LOW, count, 1, stamp) && allStamped(HIGH, count, 100, stamp));
+		return millis;
+	}
+	
+	static boolean allStamped(File dir, int count, int step, int stamp) {
+		for (int i = 0; i < count; i += step) {
+			int[] value = PropertyDB.readProperty(dir, "p" + i, 1, null, ErrorHandler.throwAll());
+			if (value == null || value[0] != stamp) return false;
+		}
+		return true;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
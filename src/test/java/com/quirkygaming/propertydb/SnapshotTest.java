@@ -0,0 +1,128 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.ChunkedProperty;
+import com.quirkygaming.propertylib.MapProperty;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Takes a full and then an incremental snapshot while another thread keeps saving, and checks that each snapshot
+ * holds the values of when it was taken, that unchanged files are hard-linked from the previous snapshot,
+ * and that deletions carry over. Checks that the pause of a full snapshot doesn't grow with the number of files,
+ * and reports how long writes were paused.
+ *
+ * Usage: SnapshotTest [properties]
+ */
+public class SnapshotTest {
+	
+	static final File ROOT = new File("/tmp/test_db_snapshot/");
+	static final File DIR = new File(ROOT, "db");
+	static final File TARGET = new File(ROOT, "snapshots");
+	static final File SMALL = new File(ROOT, "small");
+	static final int SMALL_COUNT = 10;
+	static final int CHUNK = 4096;
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		ConcurrentSubDBStressTest.delete(ROOT);
+		
+		final InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		for (int i = 0; i < count; i++) PropertyDB.initiateProperty(DIR, "p" + i, 1, "value " + i, ErrorHandler.throwAll());
+		MutableProperty<String> changing = PropertyDB.initiateProperty(DIR, "changing", 1, "before", ErrorHandler.throwAll());
+		final MutableProperty<Long> counter = PropertyDB.initiateProperty(DIR, "counter", 1, 0L, ErrorHandler.throwAll());
+		MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		map.put("a", 1);
+		ChunkedProperty blob = PropertyDB.initiateChunkedProperty(DIR, "blob", 1, new byte[16 * CHUNK], CHUNK, ErrorHandler.throwAll());
+		for (int i = 0; i < SMALL_COUNT; i++) PropertyDB.initiateProperty(SMALL, "p" + i, 1, "value " + i, ErrorHandler.throwAll());
+		PropertyDB.forceSave(token);
+		
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong slowest = new AtomicLong();
+		Thread writer = new Thread() {
+			public void run() {
+				while (running.get()) {
+					long start = System.nanoTime();
+					counter.set(counter.get() + 1);
+					PropertyDB.forceSave(token);
+					slowest.set(Math.max(slowest.get(), System.nanoTime() - start));
+				}
+			}
+		};
+		writer.start();
+		
+		Snapshot small = PropertyDB.snapshot(token, SMALL, new File(ROOT, "small-snapshots"), ErrorHandler.throwAll());
+		check("small snapshot written", small.await(60000) && small.succeeded() && small.changed() == SMALL_COUNT);
+		Snapshot full = PropertyDB.snapshot(token, DIR, TARGET, ErrorHandler.throwAll());
+		check("full snapshot written", full.await(60000) && full.succeeded() && full.location().isDirectory());
+		System.out.println(full);
+		check("full snapshot", !full.isIncremental() && full.changed() >= count + 4);
+		// Both pauses only link what the writer saved meanwhile; allow for scheduling noise
+		check("full pause independent of file count", full.pauseMicros() <= 10 * small.pauseMicros() + 20000);
+		
+		changing.set("after");
+		map.put("b", 2);
+		blob.write(3 * CHUNK, filled(CHUNK, 1), 0, CHUNK);
+		PropertyDB.deleteProperty(DIR, "p1", 1, ErrorHandler.throwAll());
+		PropertyDB.forceSave(token);
+		
+		Snapshot incremental = PropertyDB.snapshot(token, DIR, TARGET, ErrorHandler.throwAll());
+		map.put("late", 3); // Appended to the log after the pause
+		blob.write(3 * CHUNK, filled(CHUNK, 2), 0, CHUNK); // Rewritten in place after the pause
+		changing.set("late");
+		PropertyDB.forceSave(token);
+		check("incremental snapshot written", incremental.await(60000) && incremental.succeeded());
+		System.out.println(incremental);
+		running.set(false);
+		writer.join();
+		check("incremental", incremental.isIncremental() && incremental.changed() < 10 && incremental.deleted() >= 1
+				&& incremental.linked() >= count - 1);
+		
+		File first = full.location();
+		File second = incremental.location();
+		check("values at the first snapshot", PropertyDB.readProperty(first, "changing", 1, "", ErrorHandler.throwAll()).equals("before")
+				&& PropertyDB.readProperty(first, "p1", 1, "", ErrorHandler.throwAll()).equals("value 1"));
+		check("values at the second snapshot", PropertyDB.readProperty(second, "changing", 1, "", ErrorHandler.throwAll()).equals("after")
+				&& PropertyDB.readProperty(second, "p2", 1, "", ErrorHandler.throwAll()).equals("value 2"));
+		check("deletion carried over", !PropertyDB.propertyExists(second, "p1", 1));
+		MapProperty<String, Integer> snapshotMap = PropertyDB.initiateMapProperty(second, "map", 1, ErrorHandler.throwAll());
+		check("map log captured in place", snapshotMap.size() == 2 && snapshotMap.get("b") == 2);
+		byte[] chunk = PropertyDB.readRange(second, "blob", 1, 3 * CHUNK, CHUNK, ErrorHandler.throwAll());
+		check("chunks captured in place", Arrays.equals(chunk, filled(CHUNK, 1)));
+		check("unchanged files linked", linkCount(new File(second, "p2_1.property")) >= 2
+				&& Files.isSameFile(new File(first, "p2_1.property").toPath(), new File(second, "p2_1.property").toPath()));
+		check("changed files copied", linkCount(new File(second, "changing_1.property")) == 1);
+		check("staging removed", !new File(DIR, Directory.SNAPSHOT_STAGING).exists());
+		PropertyDB.closeDatabase(token);
+		
+		System.out.printf("Writes paused %d us for the full snapshot of %d files, %d us for %d files and %d us for the incremental snapshot; slowest save while running: %.1f ms%n",
+				full.pauseMicros(), full.changed(), small.pauseMicros(), SMALL_COUNT, incremental.pauseMicros(), slowest.get() / 1e6);
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static byte[] filled(int length, int value) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+	
+	static int linkCount(File file) throws IOException {
+		return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.Arrays;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.ChunkedProperty;
+import com.quirkygaming.propertylib.MapProperty;
+
+/**
+ * Runs the same workload on the memory, file and latency-injecting backends, checking that each
+ * reads back what it wrote, and reports the total time and the time the latency backend spent in storage.
+ *
+ * Usage: StorageBackendTest [properties] [read latency micros] [write latency micros]
+ */
+public class StorageBackendTest {
+	
+	static final File DIR = new File("/tmp/test_db_backend/");
+	static final File SHARED = new File(DIR, "shared");
+	static final int CHUNK = 4096;
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long readMicros = args.length > 1 ? Long.parseLong(args[1]) : 50;
+		long writeMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+		ConcurrentSubDBStressTest.delete(DIR);
+		run(new MemoryBackend(), count); // Warm up
+		
+		MemoryBackend memory = new MemoryBackend();
+		long memoryMs = run(memory, count);
+		check("memory backend leaves the disk alone", !DIR.exists());
+		check("memory backend holds the files", memory.size() > 0);
+		
+		long fileMs = run(new FileBackend(), count);
+		check("file backend writes to disk", DIR.isDirectory());
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		LatencyBackend latency = new LatencyBackend(new MemoryBackend(), readMicros, writeMicros);
+		long latencyMs = run(latency, count);
+		double storageMs = latency.storageNanos() / 1e6;
+		check("latency injected", latency.storageNanos() >= latency.operations() * Math.min(readMicros, writeMicros) * 1000);
+		
+		System.out.printf("%,d properties: memory %d ms, file %d ms, latency %d ms (%,d operations, %.0f ms in storage, %.0f ms elsewhere)%n",
+				count, memoryMs, fileMs, latencyMs, latency.operations(), storageMs, latencyMs - storageMs);
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static long run(StorageBackend backend, int count) {
+		long start = System.nanoTime();
+		byte[] patch = new byte[100];
+		Arrays.fill(patch, (byte) 7);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000, backend); // Saves only when forced
+		SubDB<RuntimeException> db = new SubDB<>("backend", DIR, ErrorHandler.throwAll());
+		for (int i = 0; i < count; i++) db.getAndCloseProperty("p" + i, 1, "value " + i);
+		for (int i = 0; i < count; i += 2) db.deleteProperty("p" + i);
+		
+		MapProperty<String, Integer> map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		for (int i = 0; i < 100; i++) map.put("k" + i, i);
+		PropertyDB.forceSave(token);
+		for (int i = 0; i < 10; i++) {
+			map.put("k" + i, -i);
+			PropertyDB.forceSave(token); // Appended to the log
+		}
+		
+		ChunkedProperty blob = PropertyDB.initiateChunkedProperty(DIR, "blob", 1, new byte[64 * CHUNK], CHUNK, ErrorHandler.throwAll());
+		PropertyDB.forceSave(token);
+		blob.write(5 * CHUNK - 50, patch, 0, patch.length);
+		
+		PropertyDB.setDeduplication(token, SHARED, true, ErrorHandler.throwAll());
+		for (int i = 0; i < 100; i++) PropertyDB.initiateProperty(SHARED, "s" + i, 1, "same", ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		
+		token = PropertyDB.initializeDB(1000000, backend);
+		db = new SubDB<>("backend", DIR, ErrorHandler.throwAll());
+		boolean values = true;
+		for (int i = 0; i < count; i++) {
+			if (db.propertyExists("p" + i) != (i % 2 == 1)) values = false;
+			else if (i % 2 == 1 && !db.getAndCloseProperty("p" + i, 1, "").equals("value " + i)) values = false;
+		}
+		check("values read back", values);
+		
+		map = PropertyDB.initiateMapProperty(DIR, "map", 1, ErrorHandler.throwAll());
+		check("map log replayed", map.size() == 100 && map.get("k3") == -3 && map.get("k50") == 50);
+		byte[] range = PropertyDB.readRange(DIR, "blob", 1, 5 * CHUNK - 60, 120, ErrorHandler.throwAll());
+		check("chunk rewritten", range[0] == 0 && range[10] == 7 && range[109] == 7 && range[110] == 0);
+		check("deduplicated values read back", PropertyDB.readProperty(SHARED, "s42", 1, "", ErrorHandler.throwAll()).equals("same"));
+		PropertyDB.closeDatabase(token);
+		return (System.nanoTime() - start) / 1000000;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.quirkygaming.errorlib.CustomHandler;
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks the SubDB index and the property files after each bulk operation, across a restart,
+ * then measures clearing a large SubDB with destroySubDB.
+ *
+ * Usage: SubDBBulkTest [entries to clear]
+ */
+public class SubDBBulkTest {
+	
+	static final File DIR = new File("/tmp/test_db_bulk/");
+	
+	static int failures = 0;
+	static int errors = 0;
+	
+	static final ErrorHandler<RuntimeException> COUNTING = ErrorHandler.customHandler(new CustomHandler() {
+		public boolean handleException(Throwable thr) {
+			errors++;
+			return true;
+		}
+	});
+	
+	public static void main(String[] args) {
+		int clearing = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		SubDB<RuntimeException> db = new SubDB<RuntimeException>("bulk", DIR, COUNTING);
+		db.getAndCloseProperty("a1", 1, "stored a1"); // Exists before the batch
+		
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			keys.add("a" + i);
+			keys.add("b" + i);
+		}
+		Map<String, MutableProperty<String>> loaded = db.initiateAll(keys, 1, "initial");
+		check("initiateAll result", loaded.size() == keys.size() && new ArrayList<String>(loaded.keySet()).equals(keys));
+		check("initiateAll loaded", loadedCount(db, keys) == keys.size() && db.getPropertyList().size() == keys.size());
+		check("initiateAll read stored", loaded.get("a1").get().equals("stored a1") && loaded.get("a2").get().equals("initial"));
+		check("initiateAll indexed", indexed(db, keys) == keys.size());
+		PropertyDB.forceSave(token);
+		check("initiateAll files", files(keys, 1) == keys.size());
+		
+		db.initiateAll(Arrays.asList("a0", "c0"), 1, "again"); // a0 is already loaded
+		check("initiateAll reports loaded", errors == 1 && db.isLoaded("c0") && loaded.get("a0").get().equals("initial"));
+		db.deleteProperty("c0");
+		errors = 0;
+		
+		for (MutableProperty<String> property : loaded.values()) property.set("changed");
+		List<String> unloading = new ArrayList<String>(keys);
+		unloading.add("missing");
+		db.unloadAll(unloading);
+		check("unloadAll reports missing", errors == 1);
+		check("unloadAll unloaded", loadedCount(db, keys) == 0);
+		check("unloadAll kept index", indexed(db, keys) == keys.size() && db.getPropertyList().size() == keys.size());
+		check("unloadAll saved", stored(keys, "changed") == keys.size());
+		errors = 0;
+		PropertyDB.closeDatabase(token);
+		
+		token = PropertyDB.initializeDB(1000000);
+		db = new SubDB<RuntimeException>("bulk", DIR, COUNTING);
+		check("index persisted", indexed(db, keys) == keys.size());
+		
+		db.initiateAll(Arrays.asList("b0", "b1"), 1, "");
+		check("deleteByPrefix count", db.deleteByPrefix("a") == 100);
+		List<String> as = new ArrayList<String>(), bs = new ArrayList<String>();
+		for (String key : keys) (key.startsWith("a") ? as : bs).add(key);
+		check("deleteByPrefix index", indexed(db, as) == 0 && indexed(db, bs) == 100);
+		check("deleteByPrefix files", files(as, 1) == 0 && files(bs, 1) == 100);
+		
+		List<String> deleting = new ArrayList<String>(bs.subList(0, 50)); // b0 and b1 are loaded
+		deleting.add("missing");
+		db.deleteAll(deleting);
+		check("deleteAll reports missing", errors == 1);
+		deleting.remove("missing");
+		check("deleteAll index", indexed(db, deleting) == 0 && indexed(db, bs) == 50);
+		check("deleteAll unloaded", !db.isLoaded("b0") && !db.isLoaded("b1") && db.getPropertyList().size() == 50);
+		check("deleteAll files", files(deleting, 1) == 0 && files(bs, 1) == 50);
+		errors = 0;
+		PropertyDB.closeDatabase(token);
+		
+		token = PropertyDB.initializeDB(1000000);
+		db = new SubDB<RuntimeException>("bulk", DIR, COUNTING);
+		check("deletes persisted", indexed(db, keys) == 50 && indexed(db, bs.subList(50, 100)) == 50);
+		
+		List<String> many = new ArrayList<String>(clearing);
+		for (int i = 0; i < clearing; i++) many.add("m" + i);
+		db.unloadAll(db.initiateAll(many, 1, "value").keySet());
+		PropertyDB.forceSave(token);
+		check("large SubDB stored", indexed(db, many) == clearing && files(many, 1) == clearing);
+		
+		long start = System.nanoTime();
+		db.destroySubDB();
+		long nanos = System.nanoTime() - start;
+		check("destroySubDB files", files(many, 1) == 0 && files(bs, 1) == 0 && !new File(DIR, "SubDB_bulk_1.property").exists());
+		check("destroySubDB errors", errors == 0);
+		PropertyDB.closeDatabase(token);
+		System.out.printf("Cleared %,d entries in %.1f ms%n", clearing + 50, nanos / 1e6);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static int loadedCount(SubDB<RuntimeException> db, List<String> keys) {
+		int count = 0;
+		for (String key : keys) if (db.isLoaded(key)) count++;
+		return count;
+	}
+	
+	static int indexed(SubDB<RuntimeException> db, List<String> keys) {
+		int count = 0;
+		for (String key : keys) if (db.propertyExists(key)) count++;
+		return count;
+	}
+	
+	static int files(List<String> keys, long version) {
+		int count = 0;
+		for (String key : keys) if (new File(DIR, "SubDB_bulk_" + key + "_" + version + ".property").isFile()) count++;
+		return count;
+	}
+	
+	static int stored(List<String> keys, String value) {
+		int count = 0;
+		for (String key : keys) {
+			if (value.equals(PropertyDB.readProperty(DIR, "SubDB_bulk_" + key, 1, null, ErrorHandler.throwAll()))) count++;
+		}
+		return count;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
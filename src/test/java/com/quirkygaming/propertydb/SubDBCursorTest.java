@@ -0,0 +1,119 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.ConcurrentSubDB;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertydb.sublayer.SubDBCursor;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Checks that SubDB cursors yield keys in order, honor key ranges and prefixes, read values without loading them
+ * or rewriting the index, and behave as documented when the index changes during iteration.
+ */
+public class SubDBCursorTest {
+	
+	static final File DIR = new File("/tmp/test_db_cursor/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) {
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		SubDB<RuntimeException> db = new SubDB<RuntimeException>("cursor", DIR, ErrorHandler.throwAll());
+		for (String key : Arrays.asList("b2", "a10", "c", "a1", "b1", "a2")) db.getAndCloseProperty(key, 1, "value " + key);
+		db.getAndCloseProperty("v2", 2, "version 2");
+		MutableProperty<String> loaded = db.initiateProperty("b3", 1, "saved");
+		loaded.set("pending"); // Not written yet
+		PropertyDB.forceSave(token);
+		File index = new File(DIR, "SubDB_cursor_1.property");
+		index.setLastModified(0);
+		loaded.set("pending"); // Queues a save of b3 only
+		
+		check("order", keys(db.cursor()).equals(Arrays.asList("a1", "a10", "a2", "b1", "b2", "b3", "c", "v2")));
+		check("range", keys(db.cursor("a10", "b2")).equals(Arrays.asList("a10", "a2", "b1")));
+		check("empty range", keys(db.cursor("d", "e")).isEmpty());
+		check("prefix", keys(db.cursorByPrefix("a")).equals(Arrays.asList("a1", "a10", "a2")));
+		check("prefix of one key", keys(db.cursorByPrefix("a1")).equals(Arrays.asList("a1", "a10")));
+		check("no match", keys(db.cursorByPrefix("z")).isEmpty());
+		
+		SubDBCursor<RuntimeException> cursor = db.cursorByPrefix("b");
+		List<String> values = new ArrayList<String>();
+		while (cursor.hasNext()) {
+			cursor.next();
+			values.add(cursor.key() + "=" + cursor.<String>value());
+		}
+		check("values", values.equals(Arrays.asList("b1=value b1", "b2=value b2", "b3=pending")));
+		cursor = db.cursorByPrefix("v");
+		cursor.next();
+		check("version", cursor.version() == 2 && "version 2".equals(cursor.value()));
+		check("nothing loaded", !db.isLoaded("b1") && !db.isLoaded("v2") && db.isLoaded("b3"));
+		PropertyDB.forceSave(token);
+		check("index not rewritten", index.lastModified() == 0);
+		
+		cursor = db.cursor();
+		try {
+			cursor.key();
+			check("key before next", false);
+		} catch (NoSuchElementException e) {}
+		cursor.next();
+		try {
+			cursor.remove();
+			check("read-only", false);
+		} catch (UnsupportedOperationException e) {}
+		
+		cursor = db.cursor(); // A SubDB must not change under its cursor
+		cursor.next();
+		db.getAndCloseProperty("a3", 1, "value a3");
+		try {
+			cursor.next();
+			check("SubDB fails fast", false);
+		} catch (ConcurrentModificationException e) {}
+		
+		ConcurrentSubDB<RuntimeException> concurrent = new ConcurrentSubDB<RuntimeException>("concurrent", DIR, ErrorHandler.throwAll());
+		for (String key : Arrays.asList("k1", "k2", "k3", "k4", "k5")) concurrent.getAndCloseProperty(key, 1, "value " + key);
+		cursor = concurrent.cursor();
+		List<String> seen = new ArrayList<String>();
+		List<String> seenValues = new ArrayList<String>();
+		while (cursor.hasNext()) {
+			String key = cursor.next();
+			seen.add(key);
+			if (key.equals("k2")) {
+				concurrent.deleteProperty("k4"); // Ahead of the cursor: skipped
+				concurrent.getAndCloseProperty("k6", 1, "value k6"); // Ahead of the cursor: seen
+				concurrent.getAndCloseProperty("k0", 1, "value k0"); // Behind the cursor: not seen
+				concurrent.deleteProperty("k3"); // Next key, may already be fetched by hasNext
+			}
+			seenValues.add(cursor.<String>value());
+		}
+		check("concurrent ahead", !seen.contains("k4") && seen.contains("k6") && !seen.contains("k0"));
+		check("concurrent order", seen.indexOf("k2") < seen.indexOf("k5") && seen.indexOf("k5") < seen.indexOf("k6"));
+		int k3 = seen.indexOf("k3");
+		check("deleted value is null", k3 < 0 || seenValues.get(k3) == null);
+		check("concurrent after", keys(concurrent.cursor()).equals(Arrays.asList("k0", "k1", "k2", "k5", "k6")));
+		PropertyDB.closeDatabase(token);
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static List<String> keys(SubDBCursor<RuntimeException> cursor) {
+		List<String> keys = new ArrayList<String>();
+		while (cursor.hasNext()) keys.add(cursor.next());
+		return keys;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
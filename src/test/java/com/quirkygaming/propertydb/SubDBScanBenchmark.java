@@ -0,0 +1,61 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.sublayer.SubDB;
+import com.quirkygaming.propertydb.sublayer.SubDBScan;
+
+/**
+ * Sums a value over every property of a SubDB, first serially through getAndCloseProperty
+ * and then with a SubDBScan, and checks that both agree.
+ *
+ * Usage: SubDBScanBenchmark [keys] [values per property] [threads]
+ */
+public class SubDBScanBenchmark {
+	
+	static final File DIR = new File("/tmp/test_db_scan/");
+	
+	public static void main(String[] args) {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000);
+		SubDB<RuntimeException> db = new SubDB<RuntimeException>("Scan", DIR, ErrorHandler.throwAll());
+		for (int i = 0; i < keys; i++) {
+			ArrayList<Integer> value = new ArrayList<Integer>();
+			for (int j = 0; j < size; j++) value.add(i + j);
+			db.getAndCloseProperty("k" + i, 1, value);
+		}
+		PropertyDB.forceSave(token);
+		
+		long start = System.nanoTime();
+		long serial = 0;
+		for (String key : db.getPropertyList()) {
+			List<Integer> value = db.getAndCloseProperty(key, 1, new ArrayList<Integer>());
+			for (int v : value) serial += v;
+		}
+		double serialSeconds = (System.nanoTime() - start) / 1e9;
+		
+		start = System.nanoTime();
+		SubDBScan<ArrayList<Integer>> scan = db.<ArrayList<Integer>>scan(ErrorHandler.throwAll()).parallelism(threads).memoryBudget(8L << 20);
+		long parallel = scan.run(s -> s.mapToLong(e -> {
+			long sum = 0;
+			for (int v : e.getValue()) sum += v;
+			return sum;
+		}).sum());
+		double parallelSeconds = (System.nanoTime() - start) / 1e9;
+		PropertyDB.closeDatabase(token);
+		
+		System.out.printf("%,d properties: serial %.2f s, scan with %d threads %.2f s (%.2fx)%n",
+				keys, serialSeconds, threads, parallelSeconds, serialSeconds / parallelSeconds);
+		if (serial != parallel) {
+			System.out.println("Sums differ: " + serial + " vs " + parallel);
+			System.exit(1);
+		}
+	}
+}
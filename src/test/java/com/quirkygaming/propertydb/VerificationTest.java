@@ -0,0 +1,121 @@
+package com.quirkygaming.propertydb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertylib.MutableProperty;
+
+/**
+ * Damages property files in different ways and checks that a header scan finds the truncated and unknown ones,
+ * a checksum scan also finds altered payloads, quarantined properties are created afresh, and loading a damaged file
+ * reports it. Also checks CRC-32C against its standard test vector.
+ *
+ * Usage: VerificationTest [properties] [threads]
+ */
+public class VerificationTest {
+	
+	static final File DIR = new File("/tmp/test_db_verify/");
+	
+	static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		ConcurrentSubDBStressTest.delete(DIR);
+		
+		byte[] vector = "123456789".getBytes(StandardCharsets.US_ASCII);
+		Crc32c fallback = new Crc32c();
+		fallback.update(vector, 0, vector.length);
+		check("CRC-32C", fallback.getValue() == 0xE3069283L && Crc32c.of(vector, 0, vector.length) == 0xE3069283);
+		
+		InitializationToken token = PropertyDB.initializeDB(1000000); // Saves only when forced
+		PropertyDB.setCompression(token, null, new DeflateCodec(), 1024, ErrorHandler.throwAll());
+		for (int i = 0; i < count; i++) {
+			PropertyDB.initiateProperty(DIR, "p" + i, 1, i % 10 == 0 ? new byte[4096] : (Serializable) ("value " + i), ErrorHandler.throwAll());
+		}
+		PropertyDB.initiateChunkedProperty(DIR, "chunked", 1, new byte[10000], 4096, ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		ObjectOutputStream legacy = new ObjectOutputStream(new FileOutputStream(new File(DIR, "legacy_1.property")));
+		legacy.writeObject(MutableProperty.newProperty("legacy"));
+		legacy.close();
+		
+		flip(new File(DIR, "p1_1.property"), 30); // Payload altered; only the checksum shows it
+		flip(new File(DIR, "p10_1.property"), 100); // Compressed payload altered
+		truncate(new File(DIR, "p2_1.property"), 25);
+		truncate(new File(DIR, "chunked_1.property"), 5000);
+		flip(new File(DIR, "p3_1.property"), 0); // Unknown magic
+		
+		Verification headers = PropertyDB.verifyDirectory(DIR, false, false, threads, ErrorHandler.throwAll());
+		System.out.println("Headers: " + headers);
+		check("header scan", headers.corrupt().size() == 3 && headers.checked() == 0 && headers.unchecked() == count - 1);
+		check("truncated found", headers.corrupt().containsKey(new File(DIR, "p2_1.property")) && headers.corrupt().containsKey(new File(DIR, "chunked_1.property")));
+		
+		Verification checksums = PropertyDB.verifyDirectory(DIR, true, false, threads, ErrorHandler.throwAll());
+		System.out.printf("Checksums: %s (%.0f files/s)%n", checksums, (count + 2) * 1000.0 / Math.max(1, checksums.millis()));
+		Map<File, String> corrupt = checksums.corrupt();
+		check("checksum scan", corrupt.size() == 5 && checksums.checked() == count - 4 && checksums.unchecked() == 1);
+		check("altered payloads found", "Checksum mismatch".equals(corrupt.get(new File(DIR, "p1_1.property")))
+				&& "Checksum mismatch".equals(corrupt.get(new File(DIR, "p10_1.property"))));
+		
+		token = PropertyDB.initializeDB(1000000);
+		try {
+			PropertyDB.initiateProperty(DIR, "p1", 1, "", ErrorHandler.throwAll());
+			check("damaged file reported on load", false);
+		} catch (RuntimeException e) {
+			check("damaged file reported on load", causedBy(e, CorruptPropertyException.class));
+		}
+		MutableProperty<String> p4 = PropertyDB.initiateProperty(DIR, "p4", 1, "", ErrorHandler.throwAll());
+		Verification quarantined = PropertyDB.verifyDirectory(DIR, true, true, threads, ErrorHandler.throwAll());
+		System.out.println("Quarantine: " + quarantined);
+		check("quarantined", quarantined.quarantined() == 5 && quarantined.skipped() == 1 && new File(DIR, Directory.QUARANTINE).list().length == 5);
+		check("fresh after quarantine", PropertyDB.initiateProperty(DIR, "p1", 1, "fresh", ErrorHandler.throwAll()).get().equals("fresh"));
+		check("intact values", p4.get().equals("value 4") && PropertyDB.readProperty(DIR, "legacy", 1, "", ErrorHandler.throwAll()).equals("legacy"));
+		PropertyDB.closeDatabase(token);
+		check("clean afterwards", PropertyDB.verifyDirectory(DIR, true, false, threads, ErrorHandler.throwAll()).corrupt().isEmpty());
+		
+		System.out.println(failures == 0 ? "All passed" : failures + " failed");
+		if (failures > 0) System.exit(1);
+	}
+	
+	static void flip(File file, long position) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	static void truncate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	static boolean causedBy(Throwable t, Class<?> type) {
+		for (; t != null; t = t.getCause()) {
+			if (type.isInstance(t)) return true;
+		}
+		return false;
+	}
+	
+	static void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name);
+			failures++;
+		}
+	}
+}
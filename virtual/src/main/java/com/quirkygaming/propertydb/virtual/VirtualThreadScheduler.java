@@ -0,0 +1,27 @@
+package com.quirkygaming.propertydb.virtual;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.quirkygaming.propertydb.ExecutorScheduler;
+
+/**
+ * An ExecutorScheduler that saves on a virtual thread and runs bulk operations on virtual threads, one per worker,
+ * so that operations on thousands of files can be given thousands of workers each blocking on one file.
+ * Closing waits for a save in progress like the default scheduler.
+ *
+ * Unlike the default scheduler's thread, virtual threads don't keep the JVM alive. Before Java 24, a worker
+ * blocked while holding a monitor, as saves of a closing drain do, occupies its carrier thread.
+ * @author chandler
+ *
+ */
+public class VirtualThreadScheduler extends ExecutorScheduler {
+	
+	/**
+	 * @param periodMillis Delay between saves
+	 */
+	public VirtualThreadScheduler(long periodMillis) {
+		super(Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("PropertyDB-Save").factory()), true,
+				periodMillis, TimeUnit.MILLISECONDS, Thread.ofVirtual().name("PropertyDB-IO-", 1).factory());
+	}
+}
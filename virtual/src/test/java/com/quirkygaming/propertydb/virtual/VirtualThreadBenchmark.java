@@ -0,0 +1,58 @@
+package com.quirkygaming.propertydb.virtual;
+
+import java.io.File;
+
+import com.quirkygaming.errorlib.ErrorHandler;
+import com.quirkygaming.propertydb.CustomScheduler;
+import com.quirkygaming.propertydb.ExecutorScheduler;
+import com.quirkygaming.propertydb.InitializationToken;
+import com.quirkygaming.propertydb.LatencyBackend;
+import com.quirkygaming.propertydb.MemoryBackend;
+import com.quirkygaming.propertydb.PropertyDB;
+import com.quirkygaming.propertydb.Verification;
+
+/**
+ * Verifies a directory on storage with a fixed read latency, with as many workers as given, on the platform
+ * threads of an ExecutorScheduler and on the virtual threads of a VirtualThreadScheduler.
+ *
+ * Usage: VirtualThreadBenchmark [properties] [read latency micros] [workers...]
+ */
+public class VirtualThreadBenchmark {
+	
+	static final File DIR = new File("/tmp/test_db_virtual/");
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 5000;
+		int[] workers = {256, 2000, 10000};
+		if (args.length > 2) {
+			workers = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) workers[i - 2] = Integer.parseInt(args[i]);
+		}
+		
+		MemoryBackend memory = new MemoryBackend();
+		InitializationToken token = PropertyDB.initializeDB(new ExecutorScheduler(1000000), memory);
+		for (int i = 0; i < count; i++) PropertyDB.initiateProperty(DIR, "p" + i, 1, "value " + i, ErrorHandler.throwAll());
+		PropertyDB.closeDatabase(token);
+		LatencyBackend storage = new LatencyBackend(memory, latency, 0);
+		
+		for (int threads : workers) {
+			long platform = verify(new ExecutorScheduler(1000000), storage, threads, count);
+			long virtual = verify(new VirtualThreadScheduler(1000000), storage, threads, count);
+			System.out.printf("%,d files at %d us, %,d workers: platform threads %d ms, virtual threads %d ms%n", count, latency, threads, platform, virtual);
+		}
+	}
+	
+	static long verify(CustomScheduler scheduler, LatencyBackend storage, int threads, int count) {
+		InitializationToken token = PropertyDB.initializeDB(scheduler, storage);
+		try {
+			long start = System.nanoTime();
+			Verification verification = PropertyDB.verifyDirectory(DIR, true, false, threads, ErrorHandler.throwAll());
+			long ms = (System.nanoTime() - start) / 1000000;
+			if (verification.checked() != count) throw new IllegalStateException("Verified " + verification);
+			return ms;
+		} finally {
+			PropertyDB.closeDatabase(token);
+		}
+	}
+}